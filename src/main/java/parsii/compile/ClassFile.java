@@ -0,0 +1,445 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.compile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files as required by the {@link ExpressionCompiler}.
+ * <p>
+ * Only the subset of the class file format needed to generate simple expression classes is supported: a constant
+ * pool containing UTF8, class, double, name and type, field and method entries, plain fields and methods having a
+ * single <tt>Code</tt> attribute. Class files are generated with version 50 (Java 6) so that no stack map frames
+ * have to be computed.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELD_REF = 9;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String name;
+    private final String superName;
+    private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private final DataOutputStream constantsOut = new DataOutputStream(constants);
+    private final Map<String, Integer> constantIndex = new HashMap<String, Integer>();
+    private int nextConstant = 1;
+    private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+    private final DataOutputStream fieldsOut = new DataOutputStream(fields);
+    private int numberOfFields = 0;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int numberOfMethods = 0;
+
+    /**
+     * Creates a new class file for a public final class.
+     *
+     * @param name      the internal name (using / as separator) of the class to generate
+     * @param superName the internal name of the super class
+     */
+    ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    /**
+     * Returns the internal name of the class being generated.
+     *
+     * @return the internal name of the generated class
+     */
+    String getName() {
+        return name;
+    }
+
+    private int constant(String key, int tag, Object... values) {
+        Integer index = constantIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            constantsOut.writeByte(tag);
+            for (Object value : values) {
+                if (value instanceof String) {
+                    constantsOut.writeUTF((String) value);
+                } else if (value instanceof Double) {
+                    constantsOut.writeDouble((Double) value);
+                } else if (tag == CONSTANT_INTEGER) {
+                    constantsOut.writeInt((Integer) value);
+                } else {
+                    constantsOut.writeShort((Integer) value);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = nextConstant;
+        // Doubles occupy two entries in the constant pool
+        nextConstant += tag == CONSTANT_DOUBLE ? 2 : 1;
+        constantIndex.put(key, index);
+        return index;
+    }
+
+    int utf8(String value) {
+        return constant("U:" + value, CONSTANT_UTF8, value);
+    }
+
+    int classRef(String internalName) {
+        return constant("C:" + internalName, CONSTANT_CLASS, utf8(internalName));
+    }
+
+    int intConstant(int value) {
+        return constant("I:" + value, CONSTANT_INTEGER, value);
+    }
+
+    int doubleConstant(double value) {
+        return constant("D:" + Double.doubleToRawLongBits(value), CONSTANT_DOUBLE, value);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N:" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return constant("F:" + owner + "." + name + ":" + descriptor,
+                        CONSTANT_FIELD_REF,
+                        classRef(owner),
+                        nameAndType(name, descriptor));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return constant("M:" + owner + "." + name + ":" + descriptor,
+                        CONSTANT_METHOD_REF,
+                        classRef(owner),
+                        nameAndType(name, descriptor));
+    }
+
+    /**
+     * Adds a field without any attributes.
+     *
+     * @param access     the access flags of the field
+     * @param name       the name of the field
+     * @param descriptor the type descriptor of the field
+     */
+    void addField(int access, String name, String descriptor) {
+        try {
+            fieldsOut.writeShort(access);
+            fieldsOut.writeShort(utf8(name));
+            fieldsOut.writeShort(utf8(descriptor));
+            fieldsOut.writeShort(0);
+            numberOfFields++;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds a method using the given code as body.
+     *
+     * @param access     the access flags of the method
+     * @param name       the name of the method
+     * @param descriptor the method descriptor
+     * @param code       the byte code of the method
+     */
+    void addMethod(int access, String name, String descriptor, Code code) {
+        try {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(descriptor));
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(utf8("Code"));
+            methodsOut.writeInt(12 + code.length());
+            methodsOut.writeShort(code.getMaxStack());
+            methodsOut.writeShort(code.getMaxLocals());
+            methodsOut.writeInt(code.length());
+            methodsOut.write(code.buffer, 0, code.length());
+            // No exception table and no further attributes
+            methodsOut.writeShort(0);
+            methodsOut.writeShort(0);
+            numberOfMethods++;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Assembles the class file.
+     *
+     * @return the binary representation of the generated class
+     */
+    byte[] toByteArray() {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(result);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(50);
+            out.writeShort(nextConstant);
+            constants.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(numberOfFields);
+            fields.writeTo(out);
+            out.writeShort(numberOfMethods);
+            methods.writeTo(out);
+            out.writeShort(0);
+            out.flush();
+            return result.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Collects the byte code of a single method while keeping track of the required stack size.
+     */
+    static class Code {
+        static final int ICONST_0 = 0x03;
+        static final int DCONST_0 = 0x0e;
+        static final int DCONST_1 = 0x0f;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC_W = 0x13;
+        static final int LDC2_W = 0x14;
+        static final int DLOAD = 0x18;
+        static final int ALOAD_0 = 0x2a;
+        static final int ALOAD_1 = 0x2b;
+        static final int DALOAD = 0x31;
+        static final int AALOAD = 0x32;
+        static final int DSTORE = 0x39;
+        static final int DASTORE = 0x52;
+        static final int DADD = 0x63;
+        static final int DSUB = 0x67;
+        static final int DMUL = 0x6b;
+        static final int DDIV = 0x6f;
+        static final int DREM = 0x73;
+        static final int L2D = 0x8a;
+        static final int DCMPL = 0x97;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int GOTO = 0xa7;
+        static final int DRETURN = 0xaf;
+        static final int RETURN = 0xb1;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int WIDE = 0xc4;
+
+        private final ClassFile classFile;
+        private byte[] buffer = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        /**
+         * Creates a new code buffer.
+         *
+         * @param classFile the class containing the method, which provides the constant pool
+         * @param maxLocals the number of local variable slots used by the parameters (including <tt>this</tt>)
+         */
+        Code(ClassFile classFile, int maxLocals) {
+            this.classFile = classFile;
+            this.maxLocals = maxLocals;
+        }
+
+        private void put(int value) {
+            if (length == buffer.length) {
+                byte[] newBuffer = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                buffer = newBuffer;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void putShort(int value) {
+            put(value >> 8);
+            put(value);
+        }
+
+        /**
+         * Records the effect of an instruction on the operand stack.
+         *
+         * @param delta the number of slots pushed (positive) or popped (negative)
+         */
+        void adjustStack(int delta) {
+            stack += delta;
+            if (stack > maxStack) {
+                maxStack = stack;
+            }
+        }
+
+        /**
+         * Returns the current size of the operand stack.
+         *
+         * @return the number of stack slots currently in use
+         */
+        int getStack() {
+            return stack;
+        }
+
+        /**
+         * Resets the current size of the operand stack, which is required when emitting alternative branches.
+         *
+         * @param stack the number of stack slots in use
+         */
+        void setStack(int stack) {
+            this.stack = stack;
+        }
+
+        int getMaxStack() {
+            return maxStack;
+        }
+
+        int getMaxLocals() {
+            return maxLocals;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /**
+         * Emits an instruction without operands.
+         *
+         * @param opcode     the instruction to emit
+         * @param stackDelta the effect on the operand stack
+         */
+        void op(int opcode, int stackDelta) {
+            put(opcode);
+            adjustStack(stackDelta);
+        }
+
+        /**
+         * Emits an instruction which references the constant pool.
+         *
+         * @param opcode     the instruction to emit
+         * @param index      the index of the constant
+         * @param stackDelta the effect on the operand stack
+         */
+        void op(int opcode, int index, int stackDelta) {
+            put(opcode);
+            putShort(index);
+            adjustStack(stackDelta);
+        }
+
+        /**
+         * Emits an <tt>invokespecial</tt>, <tt>invokevirtual</tt> or <tt>invokestatic</tt>.
+         *
+         * @param opcode     the invoke instruction to emit
+         * @param methodRef  the index of the method reference in the constant pool
+         * @param stackDelta the effect on the operand stack (results minus arguments)
+         */
+        void invoke(int opcode, int methodRef, int stackDelta) {
+            op(opcode, methodRef, stackDelta);
+        }
+
+        /**
+         * Pushes the given int constant onto the stack.
+         *
+         * @param value the value to push
+         */
+        void pushInt(int value) {
+            if (value >= 0 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(value);
+                adjustStack(1);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                putShort(value);
+                adjustStack(1);
+            } else {
+                // Larger values are loaded from the constant pool
+                op(LDC_W, classFile.intConstant(value), 1);
+            }
+        }
+
+        /**
+         * Allocates a new local variable slot for a double.
+         *
+         * @return the index of the allocated local variable
+         */
+        int newDoubleLocal() {
+            int result = maxLocals;
+            maxLocals += 2;
+            return result;
+        }
+
+        private void localOp(int opcode, int index) {
+            if (index > 255) {
+                put(WIDE);
+                put(opcode);
+                putShort(index);
+            } else {
+                put(opcode);
+                put(index);
+            }
+        }
+
+        void loadDouble(int index) {
+            localOp(DLOAD, index);
+            adjustStack(2);
+        }
+
+        void storeDouble(int index) {
+            localOp(DSTORE, index);
+            adjustStack(-2);
+        }
+
+        /**
+         * Emits a jump instruction whose target is filled in later via {@link #bind(int)}.
+         *
+         * @param opcode     the jump instruction to emit
+         * @param stackDelta the effect on the operand stack
+         * @return a handle which has to be passed to {@link #bind(int)}
+         */
+        int jump(int opcode, int stackDelta) {
+            int position = length;
+            put(opcode);
+            putShort(0);
+            adjustStack(stackDelta);
+            return position;
+        }
+
+        /**
+         * Makes the given jump point to the current position.
+         *
+         * @param jump the handle returned by {@link #jump(int, int)}
+         */
+        void bind(int jump) {
+            int offset = length - jump;
+            buffer[jump + 1] = (byte) (offset >> 8);
+            buffer[jump + 2] = (byte) offset;
+        }
+    }
+}
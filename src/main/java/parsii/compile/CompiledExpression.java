@@ -0,0 +1,96 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.compile;
+
+import parsii.eval.Batch;
+import parsii.eval.BinaryOperation;
+import parsii.eval.Expression;
+
+/**
+ * Base class of all classes generated by the {@link ExpressionCompiler}.
+ * <p>
+ * The generated subclass implements {@link #evaluate()} and {@link #evaluate(double[])} as straight-line byte code.
+ * This class keeps the original expression around, so that it can still be inspected and printed.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public abstract class CompiledExpression extends Expression {
+
+    private final Expression source;
+
+    /**
+     * Invoked by the constructor of the generated subclass.
+     *
+     * @param source the expression which was compiled
+     */
+    protected CompiledExpression(Expression source) {
+        this.source = source;
+    }
+
+    /**
+     * Returns the expression which was compiled into this class.
+     *
+     * @return the original expression tree
+     */
+    public Expression getSource() {
+        return source;
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        // A whole block is best computed by the tree itself, as each node processes all rows at once
+        source.evaluate(batch, result);
+    }
+
+    @Override
+    public boolean isConstant() {
+        return source.isConstant();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+    /*
+     * The helpers below are invoked by the generated code. They mirror the semantics of BinaryOperation and the
+     * built-in functions and are small enough to be inlined by the JIT.
+     */
+
+    protected static double lt(double a, double b) {
+        return a < b ? 1 : 0;
+    }
+
+    protected static double ltEq(double a, double b) {
+        return a < b || Math.abs(a - b) < BinaryOperation.EPSILON ? 1 : 0;
+    }
+
+    protected static double gt(double a, double b) {
+        return a > b ? 1 : 0;
+    }
+
+    protected static double gtEq(double a, double b) {
+        return a > b || Math.abs(a - b) < BinaryOperation.EPSILON ? 1 : 0;
+    }
+
+    protected static double eq(double a, double b) {
+        return Math.abs(a - b) < BinaryOperation.EPSILON ? 1 : 0;
+    }
+
+    protected static double neq(double a, double b) {
+        return Math.abs(a - b) > BinaryOperation.EPSILON ? 1 : 0;
+    }
+
+    protected static double round(double a) {
+        // Math.round would turn NaN into 0 where UnaryFunction propagates NaN
+        return Double.isNaN(a) ? a : Math.round(a);
+    }
+}
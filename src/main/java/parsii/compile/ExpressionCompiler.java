@@ -0,0 +1,502 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.compile;
+
+import parsii.eval.BinaryOperation;
+import parsii.eval.Expression;
+import parsii.eval.Function;
+import parsii.eval.FunctionCall;
+import parsii.eval.Functions;
+import parsii.eval.LetExpression;
+import parsii.eval.Product;
+import parsii.eval.Program;
+import parsii.eval.Sum;
+import parsii.eval.Variable;
+import parsii.eval.VariableReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles an expression tree into a JVM class.
+ * <p>
+ * Evaluating a parsed expression walks the tree and performs a virtual call per node. For expressions which are
+ * evaluated very often, this compiler generates a class whose {@link Expression#evaluate()} method consists of
+ * straight-line arithmetic instead. Variables are read via fields of the generated class and the built-in
+ * {@link Functions} are translated into direct calls of the appropriate {@link Math} methods.
+ * </p>
+ * <p>
+ * The generated class also implements {@link Expression#evaluate(double[])}, which reads all variables directly from
+ * the given frame. A compiled expression can therefore be shared by many threads, each using its own frame.
+ * </p>
+ * <p>
+ * Nodes which cannot be translated (e.g. calls of user defined functions) are kept as they are and invoked from
+ * within the generated code. Each compiled expression is loaded by its own class loader, so that the generated
+ * class can be garbage collected once the expression is no longer used.
+ * </p>
+ * <p>
+ * Using the compiler is as easy as:
+ * <code>
+ * Expression expr = ExpressionCompiler.compile(Parser.parse("3 + a * 4", scope));
+ * </code>
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class ExpressionCompiler {
+
+    private static final String BASE_CLASS = "parsii/compile/CompiledExpression";
+    private static final String EXPRESSION_CLASS = "parsii/eval/Expression";
+    private static final String VARIABLE_CLASS = "parsii/eval/Variable";
+    private static final String MATH_CLASS = "java/lang/Math";
+    private static final String EXPRESSION_TYPE = "L" + EXPRESSION_CLASS + ";";
+    private static final String VARIABLE_TYPE = "L" + VARIABLE_CLASS + ";";
+    private static final String CONSTRUCTOR_TYPE = "([" + VARIABLE_TYPE + "[" + EXPRESSION_TYPE + EXPRESSION_TYPE + ")V";
+    private static final String UNARY_TYPE = "(D)D";
+    private static final String BINARY_TYPE = "(DD)D";
+    private static final String FRAME_TYPE = "([D)D";
+
+    /*
+     * Jumps within the generated code use 16 bit offsets, larger methods are therefore not compiled
+     */
+    private static final int MAX_CODE_LENGTH = Short.MAX_VALUE;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+    private static final Map<Function, String> unaryMathFunctions = new IdentityHashMap<Function, String>();
+    private static final Map<Function, String> binaryMathFunctions = new IdentityHashMap<Function, String>();
+    private static final Map<BinaryOperation.Op, String> operatorHelpers = new HashMap<BinaryOperation.Op, String>();
+
+    static {
+        unaryMathFunctions.put(Functions.SIN, "sin");
+        unaryMathFunctions.put(Functions.COS, "cos");
+        unaryMathFunctions.put(Functions.TAN, "tan");
+        unaryMathFunctions.put(Functions.SINH, "sinh");
+        unaryMathFunctions.put(Functions.COSH, "cosh");
+        unaryMathFunctions.put(Functions.TANH, "tanh");
+        unaryMathFunctions.put(Functions.ASIN, "asin");
+        unaryMathFunctions.put(Functions.ACOS, "acos");
+        unaryMathFunctions.put(Functions.ATAN, "atan");
+        unaryMathFunctions.put(Functions.ABS, "abs");
+        unaryMathFunctions.put(Functions.FLOOR, "floor");
+        unaryMathFunctions.put(Functions.CEIL, "ceil");
+        unaryMathFunctions.put(Functions.SQRT, "sqrt");
+        unaryMathFunctions.put(Functions.EXP, "exp");
+        unaryMathFunctions.put(Functions.LN, "log");
+        unaryMathFunctions.put(Functions.LOG, "log10");
+        unaryMathFunctions.put(Functions.SIGN, "signum");
+        unaryMathFunctions.put(Functions.DEG, "toDegrees");
+        unaryMathFunctions.put(Functions.RAD, "toRadians");
+
+        binaryMathFunctions.put(Functions.ATAN2, "atan2");
+        binaryMathFunctions.put(Functions.MIN, "min");
+        binaryMathFunctions.put(Functions.MAX, "max");
+
+        operatorHelpers.put(BinaryOperation.Op.LT, "lt");
+        operatorHelpers.put(BinaryOperation.Op.LT_EQ, "ltEq");
+        operatorHelpers.put(BinaryOperation.Op.GT, "gt");
+        operatorHelpers.put(BinaryOperation.Op.GT_EQ, "gtEq");
+        operatorHelpers.put(BinaryOperation.Op.EQ, "eq");
+        operatorHelpers.put(BinaryOperation.Op.NEQ, "neq");
+    }
+
+    private final ClassFile classFile;
+    private final List<Variable> variables = new ArrayList<Variable>();
+    private final Map<Variable, Integer> variableFields = new IdentityHashMap<Variable, Integer>();
+    private final List<Expression> delegates = new ArrayList<Expression>();
+    private final Map<Expression, Integer> delegateFields = new IdentityHashMap<Expression, Integer>();
+
+    /*
+     * Contains the method currently being generated. If framed is true, this is evaluate(double[]), which reads
+     * variables from the frame passed in as first parameter, otherwise evaluate()
+     */
+    private ClassFile.Code code;
+    private boolean framed;
+    private Map<Variable, Integer> temporaryLocals;
+
+    /**
+     * Compiles the given expression into a generated class.
+     * <p>
+     * The expression should be simplified (as done by {@link parsii.eval.Parser}) before being compiled. Variables are
+     * still read upon each evaluation, therefore the compiled expression reflects changes of variable values just like
+     * the original expression.
+     * </p>
+     *
+     * @param expression the expression to compile
+     * @return an expression which evaluates to the same values as the given one. If the expression is too large to be
+     *         compiled, the given expression itself is returned
+     */
+    public static Expression compile(Expression expression) {
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        return new ExpressionCompiler().generate(expression);
+    }
+
+    /**
+     * Compiles the body of the given program into a generated class.
+     * <p>
+     * All results are therefore computed by a single generated method.
+     * </p>
+     *
+     * @param program the program to compile
+     * @return a program which computes the same results using a compiled body. If the body is too large to be
+     *         compiled, the given program itself is returned
+     */
+    public static Program compile(Program program) {
+        if (program == null) {
+            throw new IllegalArgumentException("program must not be null");
+        }
+        Expression body = compile(program.getBody());
+        return body == program.getBody() ? program : program.withBody(body);
+    }
+
+    /*
+     * Use the static compile method
+     */
+    private ExpressionCompiler() {
+        classFile = new ClassFile("parsii/compile/GeneratedExpression" + classCounter.incrementAndGet(), BASE_CLASS);
+    }
+
+    private Expression generate(Expression expression) {
+        ClassFile.Code evaluate = generateEvaluate(expression, false);
+        ClassFile.Code evaluateFramed = generateEvaluate(expression, true);
+        if (evaluate.length() > MAX_CODE_LENGTH || evaluateFramed.length() > MAX_CODE_LENGTH) {
+            return expression;
+        }
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "evaluate", "()D", evaluate);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "evaluate", FRAME_TYPE, evaluateFramed);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", CONSTRUCTOR_TYPE, generateConstructor());
+
+        try {
+            Class<?> generatedClass = new GeneratedClassLoader().define(classFile);
+            return (Expression) generatedClass.getConstructor(Variable[].class, Expression[].class, Expression.class)
+                                              .newInstance(variables.toArray(new Variable[variables.size()]),
+                                                           delegates.toArray(new Expression[delegates.size()]),
+                                                           expression);
+        } catch (Exception e) {
+            throw new IllegalStateException(String.format("Cannot compile expression '%s': %s",
+                                                          expression,
+                                                          e.getMessage()), e);
+        }
+    }
+
+    /*
+     * Generates either evaluate() or evaluate(double[]), the latter has the frame as additional local.
+     */
+    private ClassFile.Code generateEvaluate(Expression expression, boolean framed) {
+        this.framed = framed;
+        this.code = new ClassFile.Code(classFile, framed ? 2 : 1);
+        this.temporaryLocals = new IdentityHashMap<Variable, Integer>();
+        emit(expression);
+        code.op(ClassFile.Code.DRETURN, -2);
+        return code;
+    }
+
+    /*
+     * Generates a constructor which copies the given variables and delegates into fields of the generated class.
+     */
+    private ClassFile.Code generateConstructor() {
+        ClassFile.Code init = new ClassFile.Code(classFile, 4);
+        init.op(ClassFile.Code.ALOAD_0, 1);
+        init.op(ClassFile.Code.ALOAD_0 + 3, 1);
+        init.invoke(ClassFile.Code.INVOKESPECIAL,
+                    classFile.methodRef(BASE_CLASS, "<init>", "(" + EXPRESSION_TYPE + ")V"),
+                    -2);
+        for (int i = 0; i < variables.size(); i++) {
+            classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "v" + i, VARIABLE_TYPE);
+            copyIntoField(init, 1, i, "v" + i, VARIABLE_TYPE);
+        }
+        for (int i = 0; i < delegates.size(); i++) {
+            classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "e" + i, EXPRESSION_TYPE);
+            copyIntoField(init, 2, i, "e" + i, EXPRESSION_TYPE);
+        }
+        init.op(ClassFile.Code.RETURN, 0);
+        return init;
+    }
+
+    private void copyIntoField(ClassFile.Code init, int array, int index, String field, String type) {
+        init.op(ClassFile.Code.ALOAD_0, 1);
+        init.op(ClassFile.Code.ALOAD_0 + array, 1);
+        init.pushInt(index);
+        init.op(ClassFile.Code.AALOAD, -1);
+        init.op(ClassFile.Code.PUTFIELD, classFile.fieldRef(classFile.getName(), field, type), -2);
+    }
+
+    /*
+     * Emits code which leaves the value of the given expression on the operand stack.
+     */
+    private void emit(Expression expr) {
+        if (expr.isConstant()) {
+            emitConstant(expr.evaluate());
+        } else if (expr instanceof VariableReference) {
+            emitVariable(((VariableReference) expr).getVariable());
+        } else if (expr instanceof BinaryOperation) {
+            emitBinaryOperation((BinaryOperation) expr);
+        } else if (expr instanceof FunctionCall) {
+            emitFunctionCall((FunctionCall) expr);
+        } else if (expr instanceof Sum) {
+            emitSum((Sum) expr);
+        } else if (expr instanceof Product) {
+            emitProduct((Product) expr);
+        } else if (expr instanceof LetExpression) {
+            emitLet((LetExpression) expr);
+        } else {
+            emitDelegate(expr);
+        }
+    }
+
+    private void emitConstant(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            code.op(ClassFile.Code.DCONST_0, 2);
+        } else if (value == 1d) {
+            code.op(ClassFile.Code.DCONST_1, 2);
+        } else {
+            code.op(ClassFile.Code.LDC2_W, classFile.doubleConstant(value), 2);
+        }
+    }
+
+    private void emitVariable(Variable variable) {
+        Integer local = temporaryLocals.get(variable);
+        if (local != null) {
+            code.loadDouble(local);
+            return;
+        }
+        if (framed && variable.getSlot() >= 0) {
+            code.op(ClassFile.Code.ALOAD_1, 1);
+            code.pushInt(variable.getSlot());
+            code.op(ClassFile.Code.DALOAD, 0);
+            return;
+        }
+        emitVariableField(variable);
+        code.invoke(ClassFile.Code.INVOKEVIRTUAL, classFile.methodRef(VARIABLE_CLASS, "getValue", "()D"), 1);
+    }
+
+    /*
+     * Pushes the field which contains the given variable
+     */
+    private void emitVariableField(Variable variable) {
+        Integer index = variableFields.get(variable);
+        if (index == null) {
+            index = variables.size();
+            variables.add(variable);
+            variableFields.put(variable, index);
+        }
+        code.op(ClassFile.Code.ALOAD_0, 1);
+        code.op(ClassFile.Code.GETFIELD, classFile.fieldRef(classFile.getName(), "v" + index, VARIABLE_TYPE), 0);
+    }
+
+    /*
+     * Each assigned variable is kept in a local of the generated method. The value is also written to the variable
+     * (or the frame) so that delegates, which read the variable themselves, see the same value.
+     */
+    private void emitLet(LetExpression let) {
+        for (int i = 0; i < let.getVariables().size(); i++) {
+            Variable variable = let.getVariables().get(i);
+            emit(let.getDefinitions().get(i));
+            int local = code.newDoubleLocal();
+            code.storeDouble(local);
+            if (framed && variable.getSlot() >= 0) {
+                code.op(ClassFile.Code.ALOAD_1, 1);
+                code.pushInt(variable.getSlot());
+                code.loadDouble(local);
+                code.op(ClassFile.Code.DASTORE, -4);
+            } else {
+                emitVariableField(variable);
+                code.loadDouble(local);
+                code.invoke(ClassFile.Code.INVOKEVIRTUAL, classFile.methodRef(VARIABLE_CLASS, "setValue", "(D)V"), -3);
+            }
+            temporaryLocals.put(variable, local);
+        }
+        emit(let.getResult());
+    }
+
+    private void emitBinaryOperation(BinaryOperation op) {
+        if (op.getOp() == BinaryOperation.Op.AND || op.getOp() == BinaryOperation.Op.OR) {
+            emitLogicalOperation(op.getOp(), op.getLeft(), op.getRight());
+            return;
+        }
+        emit(op.getLeft());
+        emit(op.getRight());
+        switch (op.getOp()) {
+            case ADD:
+                code.op(ClassFile.Code.DADD, -2);
+                break;
+            case SUBTRACT:
+                code.op(ClassFile.Code.DSUB, -2);
+                break;
+            case MULTIPLY:
+                code.op(ClassFile.Code.DMUL, -2);
+                break;
+            case DIVIDE:
+                code.op(ClassFile.Code.DDIV, -2);
+                break;
+            case MODULO:
+                code.op(ClassFile.Code.DREM, -2);
+                break;
+            case POWER:
+                code.invoke(ClassFile.Code.INVOKESTATIC, classFile.methodRef(MATH_CLASS, "pow", BINARY_TYPE), -2);
+                break;
+            default:
+                code.invoke(ClassFile.Code.INVOKESTATIC,
+                            classFile.methodRef(BASE_CLASS, operatorHelpers.get(op.getOp()), BINARY_TYPE),
+                            -2);
+        }
+    }
+
+    private void emitSum(Sum sum) {
+        emitConstant(sum.getConstant());
+        List<Expression> terms = sum.getTerms();
+        for (int i = 0; i < terms.size(); i++) {
+            emit(terms.get(i));
+            code.op(sum.isSubtracted(i) ? ClassFile.Code.DSUB : ClassFile.Code.DADD, -2);
+        }
+    }
+
+    private void emitProduct(Product product) {
+        emitConstant(product.getConstant());
+        for (Expression factor : product.getFactors()) {
+            emit(factor);
+            code.op(ClassFile.Code.DMUL, -2);
+        }
+    }
+
+    private void emitFunctionCall(FunctionCall call) {
+        Function function = call.getFunction();
+        List<Expression> parameters = call.getParameters();
+        if (unaryMathFunctions.containsKey(function)) {
+            emit(parameters.get(0));
+            code.invoke(ClassFile.Code.INVOKESTATIC,
+                        classFile.methodRef(MATH_CLASS, unaryMathFunctions.get(function), UNARY_TYPE),
+                        0);
+        } else if (function == Functions.ROUND) {
+            emit(parameters.get(0));
+            code.invoke(ClassFile.Code.INVOKESTATIC, classFile.methodRef(BASE_CLASS, "round", UNARY_TYPE), 0);
+        } else if (binaryMathFunctions.containsKey(function)) {
+            emit(parameters.get(0));
+            emit(parameters.get(1));
+            code.invoke(ClassFile.Code.INVOKESTATIC,
+                        classFile.methodRef(MATH_CLASS, binaryMathFunctions.get(function), BINARY_TYPE),
+                        -2);
+        } else if (function == Functions.IF) {
+            emitIf(parameters.get(0), parameters.get(1), parameters.get(2));
+        } else {
+            emitDelegate(call);
+        }
+    }
+
+    /*
+     * The right operand is only evaluated if the left one doesn't determine the result, just like BinaryOperation
+     * does. An operand is true if it is exactly 1.
+     */
+    private void emitLogicalOperation(BinaryOperation.Op op, Expression left, Expression right) {
+        int stack = code.getStack();
+        emit(left);
+        code.op(ClassFile.Code.DCONST_1, 2);
+        code.op(ClassFile.Code.DCMPL, -3);
+        int shortCircuit = op == BinaryOperation.Op.AND ? ClassFile.Code.IFNE : ClassFile.Code.IFEQ;
+        int jumpToShortCircuit = code.jump(shortCircuit, -1);
+
+        emit(right);
+        code.op(ClassFile.Code.DCONST_1, 2);
+        code.op(ClassFile.Code.DCMPL, -3);
+        int jumpToFalse = code.jump(ClassFile.Code.IFNE, -1);
+
+        if (op == BinaryOperation.Op.OR) {
+            code.bind(jumpToShortCircuit);
+        }
+        code.op(ClassFile.Code.DCONST_1, 2);
+        int jumpToEnd = code.jump(ClassFile.Code.GOTO, 0);
+
+        code.bind(jumpToFalse);
+        if (op == BinaryOperation.Op.AND) {
+            code.bind(jumpToShortCircuit);
+        }
+        code.setStack(stack);
+        code.op(ClassFile.Code.DCONST_0, 2);
+
+        code.bind(jumpToEnd);
+    }
+
+    /*
+     * Only the selected branch is evaluated, just like Functions.IF does.
+     */
+    private void emitIf(Expression condition, Expression whenTrue, Expression whenFalse) {
+        emit(condition);
+        int local = code.newDoubleLocal();
+        code.storeDouble(local);
+
+        // NaN is the only value which isn't equal to itself
+        code.loadDouble(local);
+        code.loadDouble(local);
+        code.op(ClassFile.Code.DCMPL, -3);
+        int jumpToNaN = code.jump(ClassFile.Code.IFNE, -1);
+
+        code.loadDouble(local);
+        code.op(ClassFile.Code.DCONST_1, 2);
+        code.op(ClassFile.Code.DCMPL, -3);
+        int jumpToFalse = code.jump(ClassFile.Code.IFNE, -1);
+
+        int stack = code.getStack();
+        emit(whenTrue);
+        int jumpToEndFromTrue = code.jump(ClassFile.Code.GOTO, 0);
+
+        code.bind(jumpToFalse);
+        code.setStack(stack);
+        emit(whenFalse);
+        int jumpToEndFromFalse = code.jump(ClassFile.Code.GOTO, 0);
+
+        code.bind(jumpToNaN);
+        code.setStack(stack);
+        code.loadDouble(local);
+
+        code.bind(jumpToEndFromTrue);
+        code.bind(jumpToEndFromFalse);
+    }
+
+    /*
+     * Expressions which cannot be translated are stored in a field and evaluated by the generated code.
+     */
+    private void emitDelegate(Expression expr) {
+        Integer index = delegateFields.get(expr);
+        if (index == null) {
+            index = delegates.size();
+            delegates.add(expr);
+            delegateFields.put(expr, index);
+        }
+        code.op(ClassFile.Code.ALOAD_0, 1);
+        code.op(ClassFile.Code.GETFIELD, classFile.fieldRef(classFile.getName(), "e" + index, EXPRESSION_TYPE), 0);
+        if (framed) {
+            code.op(ClassFile.Code.ALOAD_1, 1);
+            code.invoke(ClassFile.Code.INVOKEVIRTUAL,
+                        classFile.methodRef(EXPRESSION_CLASS, "evaluate", FRAME_TYPE),
+                        0);
+        } else {
+            code.invoke(ClassFile.Code.INVOKEVIRTUAL, classFile.methodRef(EXPRESSION_CLASS, "evaluate", "()D"), 1);
+        }
+    }
+
+    /*
+     * Each generated class gets its own loader so that it can be unloaded along with the compiled expression.
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+        GeneratedClassLoader() {
+            super(ExpressionCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(ClassFile classFile) {
+            byte[] bytes = classFile.toByteArray();
+            return defineClass(classFile.getName().replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+}
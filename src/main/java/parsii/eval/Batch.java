@@ -0,0 +1,364 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Provides the input of a batch evaluation, started via {@link Expression#evaluate(java.util.Map, double[], int, int)}.
+ * <p>
+ * The rows to evaluate are processed in blocks of up to {@link #BLOCK_SIZE} rows. Each expression computes its result
+ * for the whole block at once (see {@link Expression#evaluate(Batch, double[])}) so that the costs of walking the tree
+ * are paid once per block instead of once per row.
+ * </p>
+ * <p>
+ * Next to the input columns, a batch also manages the temporary buffers required by the expressions to store
+ * intermediate results. A batch is used by a single thread only.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class Batch {
+
+    /**
+     * Contains the maximal number of rows being processed at once.
+     */
+    public static final int BLOCK_SIZE = 1024;
+
+    /*
+     * Each worker of a parallel evaluation should process several chunks, so that the workload is distributed
+     * evenly even if some threads are slowed down
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final Map<Variable, double[]> columns;
+    private final List<double[]> freeBuffers = new ArrayList<double[]>();
+    private final Map<Variable, double[]> temporaries = new IdentityHashMap<Variable, double[]>();
+    private int offset;
+    private int length;
+
+    /**
+     * Creates a new batch for the given input columns.
+     *
+     * @param columns contains the input values per variable. Variables which are not contained in this map are read
+     *                as usual.
+     */
+    protected Batch(Map<Variable, double[]> columns) {
+        for (Variable variable : columns.keySet()) {
+            if (variable.isConstant()) {
+                throw new IllegalArgumentException(String.format("%s is constant!", variable.getName()));
+            }
+        }
+        this.columns = columns;
+    }
+
+    /**
+     * Moves the batch to the next block of rows.
+     *
+     * @param offset the index of the first row of the block
+     * @param length the number of rows in the block
+     */
+    protected void moveTo(int offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns the index of the first row of the current block.
+     * <p>
+     * This index can be used to access the input column as returned by {@link #getColumn(Variable)}
+     * </p>
+     *
+     * @return the index of the first row of the current block in the input columns
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of rows in the current block.
+     *
+     * @return the number of rows to compute, which is at most {@link #BLOCK_SIZE}
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the column of input values for the given variable.
+     *
+     * @param variable the variable to fetch the values for
+     * @return the input values of the variable or <tt>null</tt> if the value of the variable is constant throughout
+     *         the batch
+     */
+    public double[] getColumn(Variable variable) {
+        return columns.get(variable);
+    }
+
+    /**
+     * Binds the values of a temporary variable for the current block.
+     * <p>
+     * This is used by expressions like {@link LetExpression} which compute intermediate results and store them in
+     * a variable. In contrast to the input columns, the given values are relative to the current block, so that
+     * <tt>values[i]</tt> is the value for the row <tt>getOffset() + i</tt>.
+     * </p>
+     *
+     * @param variable the variable to bind
+     * @param values   the values of the variable for the current block or <tt>null</tt> to remove the binding
+     */
+    public void setTemporary(Variable variable, double[] values) {
+        if (values == null) {
+            temporaries.remove(variable);
+        } else {
+            temporaries.put(variable, values);
+        }
+    }
+
+    /**
+     * Returns the values of a temporary variable as bound by {@link #setTemporary(Variable, double[])}.
+     *
+     * @param variable the variable to fetch the values for
+     * @return the values of the variable for the current block or <tt>null</tt> if the variable is not bound
+     */
+    public double[] getTemporary(Variable variable) {
+        return temporaries.get(variable);
+    }
+
+    /**
+     * Provides a temporary buffer which can store the results of a whole block.
+     * <p>
+     * Buffers should be released via {@link #releaseBuffer(double[])} once they are no longer used so that they
+     * can be reused for further computations.
+     * </p>
+     *
+     * @return a buffer of {@link #BLOCK_SIZE} values
+     */
+    public double[] acquireBuffer() {
+        if (freeBuffers.isEmpty()) {
+            return new double[BLOCK_SIZE];
+        }
+        return freeBuffers.remove(freeBuffers.size() - 1);
+    }
+
+    /**
+     * Releases a buffer acquired via {@link #acquireBuffer()}.
+     *
+     * @param buffer the buffer which is no longer used
+     */
+    public void releaseBuffer(double[] buffer) {
+        freeBuffers.add(buffer);
+    }
+
+    /**
+     * Evaluates the given expression once per row of the current block.
+     * <p>
+     * This is used as fallback by expressions which cannot compute a whole block at once. Each row is evaluated via
+     * {@link Expression#evaluate(double[])} using a frame which contains the input values and temporaries of the row
+     * along with the current values of all other variables of the expression. Therefore the variables themselves
+     * remain untouched and all workers of a parallel evaluation can use this fallback at once. Expressions which
+     * don't read their variables from a frame (see {@link Expression#evaluate(double[])}) see the current values of
+     * the variables instead of the input values.
+     * </p>
+     *
+     * @param expression the expression to evaluate
+     * @param result     the buffer to store the results in
+     */
+    public void evaluateRowByRow(Expression expression, double[] result) {
+        Set<Variable> referenced = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+        collectVariables(expression, referenced);
+        List<Variable> bound = new ArrayList<Variable>();
+        List<double[]> values = new ArrayList<double[]>();
+        List<Integer> offsets = new ArrayList<Integer>();
+        int frameSize = 0;
+        for (Variable variable : referenced) {
+            frameSize = Math.max(frameSize, variable.getSlot() + 1);
+            double[] temporary = temporaries.get(variable);
+            double[] column = columns.get(variable);
+            if (variable.getSlot() >= 0 && (temporary != null || column != null)) {
+                bound.add(variable);
+                values.add(temporary != null ? temporary : column);
+                offsets.add(temporary != null ? 0 : offset);
+            }
+        }
+        double[] frame = new double[frameSize];
+        for (Variable variable : referenced) {
+            if (variable.getSlot() >= 0) {
+                frame[variable.getSlot()] = variable.getValue();
+            }
+        }
+        for (int row = 0; row < length; row++) {
+            for (int i = 0; i < bound.size(); i++) {
+                frame[bound.get(i).getSlot()] = values.get(i)[offsets.get(i) + row];
+            }
+            result[row] = expression.evaluate(frame);
+        }
+    }
+
+    /*
+     * Collects all variables which are read or assigned by the given expression when it is evaluated using a frame
+     */
+    static void collectVariables(Expression expr, Set<Variable> variables) {
+        if (expr instanceof VariableReference) {
+            variables.add(((VariableReference) expr).getVariable());
+        } else if (expr instanceof BinaryOperation) {
+            // Walk the left spine in a loop, as chains of operations can be very deep
+            Expression current = expr;
+            while (current instanceof BinaryOperation) {
+                collectVariables(((BinaryOperation) current).getRight(), variables);
+                current = ((BinaryOperation) current).getLeft();
+            }
+            collectVariables(current, variables);
+        } else if (expr instanceof FunctionCall) {
+            collectVariables(((FunctionCall) expr).getParameters(), variables);
+        } else if (expr instanceof Sum) {
+            collectVariables(((Sum) expr).getTerms(), variables);
+        } else if (expr instanceof Product) {
+            collectVariables(((Product) expr).getFactors(), variables);
+        } else if (expr instanceof LetExpression) {
+            LetExpression let = (LetExpression) expr;
+            variables.addAll(let.getVariables());
+            collectVariables(let.getDefinitions(), variables);
+            collectVariables(let.getResult(), variables);
+        } else if (expr instanceof LogicalChain) {
+            collectVariables(((LogicalChain) expr).getOperands(), variables);
+        } else if (expr instanceof IncrementalExpression) {
+            collectVariables(((IncrementalExpression) expr).getSource(), variables);
+        } else if (expr instanceof PostfixExpression) {
+            collectVariables(((PostfixExpression) expr).getSource(), variables);
+        }
+    }
+
+    static void collectVariables(List<Expression> expressions, Set<Variable> variables) {
+        for (Expression expr : expressions) {
+            collectVariables(expr, variables);
+        }
+    }
+
+    /*
+     * Lazily creates the shared executor used by parallel evaluations if no executor is given
+     */
+    private static class DefaultExecutor {
+        private static final ExecutorService INSTANCE =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    private int counter = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "parsii-batch-" + (++counter));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the executor used by {@link Expression#parallelEvaluate(java.util.Map, double[], int, int)}.
+     * <p>
+     * This is a fixed thread pool using one daemon thread per available processor.
+     * </p>
+     *
+     * @return the default executor used for parallel evaluations
+     */
+    public static ExecutorService getDefaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * Splits the given range of rows into chunks, which are evaluated in parallel by the given executor.
+     * <p>
+     * The calling thread processes chunks itself and only waits for chunks which are already being processed by
+     * other threads. Chunks are never handed to a specific task, so tasks which start late simply find no work left.
+     * Therefore a parallel evaluation can also be started by a task running in the given executor (e.g. a nested
+     * parallel evaluation), without waiting for tasks queued behind it.
+     * </p>
+     *
+     * @param expression the expression to evaluate
+     * @param columns    the input values per variable
+     * @param out        the array to store the results in
+     * @param from       the first row to evaluate (inclusive)
+     * @param to         the last row to evaluate (exclusive)
+     * @param executor   the executor used to evaluate the chunks
+     */
+    protected static void evaluateParallel(final Expression expression,
+                                           final Map<Variable, double[]> columns,
+                                           final double[] out,
+                                           final int from,
+                                           final int to,
+                                           ExecutorService executor) {
+        int rows = to - from;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunks = threads * CHUNKS_PER_THREAD;
+        // Chunks are aligned to full blocks, so that only the last block of the last chunk is partially filled
+        final int chunkSize = Math.max(1, (rows + chunks * BLOCK_SIZE - 1) / (chunks * BLOCK_SIZE)) * BLOCK_SIZE;
+        if (chunkSize >= rows) {
+            expression.evaluate(columns, out, from, to);
+            return;
+        }
+
+        final int numberOfChunks = (rows + chunkSize - 1) / chunkSize;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final CountDownLatch completedChunks = new CountDownLatch(numberOfChunks);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < numberOfChunks) {
+                    try {
+                        if (failure.get() == null) {
+                            int chunkFrom = from + chunk * chunkSize;
+                            expression.evaluate(columns, out, chunkFrom, Math.min(to, chunkFrom + chunkSize));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        completedChunks.countDown();
+                    }
+                }
+            }
+        };
+        try {
+            for (int i = 1; i < Math.min(threads, numberOfChunks); i++) {
+                executor.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            // The remaining chunks are processed by the calling thread
+        }
+        worker.run();
+        try {
+            completedChunks.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a parallel evaluation", e);
+        }
+        Throwable error = failure.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a function which computes its results for a whole block of rows at once.
+ * <p>
+ * When evaluating a {@link Batch}, a {@link FunctionCall} computes all arguments for the current block and then
+ * invokes {@link #eval(double[][], double[], int)} once, instead of invoking the function once per row. Functions which
+ * are expensive to call (e.g. lookups in interpolation tables or calls into native libraries) can therefore process
+ * all rows in one sweep. The scalar methods of {@link Function} are still used when evaluating a single row.
+ * </p>
+ * <p>
+ * Functions which don't implement this interface are invoked per row via a {@link BatchFunctionAdapter}.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public interface BatchFunction extends Function {
+
+    /**
+     * Performs the computation of the function for a block of rows.
+     * <p>
+     * All arguments are computed before the function is invoked, even if the function is a {@link LazyFunction}.
+     * In contrast to the scalar methods, rows for which an argument is NaN are passed to the function as well. Most
+     * functions should return NaN for such rows. The arrays are reused by the caller and must not be kept.
+     * </p>
+     *
+     * @param argColumns contains one column of values per argument. <tt>argColumns[i][row]</tt> is the value of the
+     *                   i-th argument for the given row
+     * @param out        the array to store the results in. <tt>out[row]</tt> receives the result for the given row
+     * @param len        the number of rows to compute. The columns might be longer than this
+     */
+    void eval(double[][] argColumns, double[] out, int len);
+}
@@ -0,0 +1,108 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.List;
+
+/**
+ * Provides a {@link BatchFunction} for a function which can only be invoked for a single row.
+ * <p>
+ * The adapter invokes the scalar function once per row, just like a {@link FunctionCall} would do when evaluating the
+ * row on its own. This is the fallback used by {@link FunctionCall} for functions not implementing
+ * {@link BatchFunction}. It can also be used by batch functions to handle rare cases by the scalar implementation.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class BatchFunctionAdapter implements BatchFunction {
+
+    private final Function function;
+
+    /**
+     * Creates a new adapter for the given function.
+     *
+     * @param function the function to invoke once per row
+     */
+    public BatchFunctionAdapter(Function function) {
+        if (function == null) {
+            throw new IllegalArgumentException("function must not be null");
+        }
+        this.function = function;
+    }
+
+    /**
+     * Invokes the scalar function once per row.
+     * <p>
+     * The function is invoked via a {@link FunctionCall}, therefore the same rules apply as for a single row: e.g. the
+     * function isn't invoked for rows where an argument is NaN (unless it is a generic or lazy function).
+     * </p>
+     *
+     * @param argColumns contains one column of values per argument
+     * @param out        the array to store the results in
+     * @param len        the number of rows to compute
+     */
+    @Override
+    public void eval(double[][] argColumns, double[] out, int len) {
+        FunctionCall call = new FunctionCall();
+        call.setFunction(function);
+        ComputedValue[] arguments = new ComputedValue[argColumns.length];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = new ComputedValue();
+            call.addParameter(arguments[i]);
+        }
+        for (int row = 0; row < len; row++) {
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i].value = argColumns[i][row];
+            }
+            out[row] = call.evaluate();
+        }
+    }
+
+    /*
+     * Passes a pre-computed argument to the function
+     */
+    private static class ComputedValue extends Expression {
+        private double value;
+
+        @Override
+        public double evaluate() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Returns the function invoked by this adapter.
+     *
+     * @return the scalar function which is adapted
+     */
+    public Function getFunction() {
+        return function;
+    }
+
+    @Override
+    public int getNumberOfArguments() {
+        return function.getNumberOfArguments();
+    }
+
+    @Override
+    public double eval(List<Expression> args) {
+        return function.eval(args);
+    }
+
+    @Override
+    public boolean isNaturalFunction() {
+        return function.isNaturalFunction();
+    }
+}
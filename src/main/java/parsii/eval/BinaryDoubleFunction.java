@@ -0,0 +1,31 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a function with two arguments, which are passed as primitive values.
+ * <p>
+ * A {@link FunctionCall} evaluates both arguments and invokes {@link #eval(double, double)} directly. Just like for
+ * {@link BinaryFunction}, the function isn't invoked if one of the arguments is NaN, instead NaN is the result.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public interface BinaryDoubleFunction extends Function {
+
+    /**
+     * Performs the computation of the function.
+     *
+     * @param a the first argument of the function
+     * @param b the second argument of the function
+     * @return the result of calling the function with a and b
+     */
+    double eval(double a, double b);
+}
@@ -46,6 +46,29 @@ public abstract class BinaryFunction implements Function {
      */
     protected abstract double eval(double a, double b);
 
+    /**
+     * Performs the computation of the binary function for a whole block of values.
+     * <p>
+     * This is used when evaluating a {@link Batch}. By default {@link #eval(double, double)} is invoked per pair of
+     * values. Just like when evaluating a single pair, NaN is not passed to the function but directly returned.
+     * </p>
+     *
+     * @param a      the first arguments of the function, which are replaced by the results
+     * @param b      the second arguments of the function
+     * @param length the number of values to compute
+     */
+    protected void eval(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (Double.isNaN(b[i])) {
+                if (!Double.isNaN(a[i])) {
+                    a[i] = b[i];
+                }
+            } else if (!Double.isNaN(a[i])) {
+                a[i] = eval(a[i], b[i]);
+            }
+        }
+    }
+
     @Override
     public boolean isNaturalFunction() {
         return true;
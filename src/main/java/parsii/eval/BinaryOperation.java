@@ -8,6 +8,9 @@
 
 package parsii.eval;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Represents a binary operation.
  * <p>
@@ -43,6 +46,12 @@ public class BinaryOperation extends Expression {
     private Expression right;
     private boolean sealed = false;
 
+    /*
+     * Caches the structural hash code, 0 means that it hasn't been computed yet. This is reset once an operand is
+     * replaced.
+     */
+    private int hash;
+
     /**
      * When comparing two double values, those are considered equal, if their difference is lower than the defined
      * epsilon. This is way better than relying on an exact comparison due to rounding errors
@@ -80,6 +89,7 @@ public class BinaryOperation extends Expression {
      */
     public void setLeft(Expression left) {
         this.left = left;
+        this.hash = 0;
     }
 
 
@@ -97,8 +107,6 @@ public class BinaryOperation extends Expression {
      * <p>
      * Binary operations are sealed if they're e.g. surrounded by braces.
      * </p>
-     *
-     * @see Parser#reOrder(Expression, Expression, parsii.eval.BinaryOperation.Op)
      */
     public void seal() {
         sealed = true;
@@ -115,10 +123,41 @@ public class BinaryOperation extends Expression {
     }
 
 
+    /**
+     * Evaluates the operation.
+     * <p>
+     * Logical operations (<tt>&amp;&amp;</tt> and <tt>||</tt>) only evaluate the right operand if the left one
+     * doesn't already determine the result. For all other operations both operands are evaluated.
+     * </p>
+     *
+     * @return the result of the operation
+     */
     @Override
     public double evaluate() {
-        double a = left.evaluate();
-        double b = right.evaluate();
+        if (op == Op.AND) {
+            return left.evaluate() == 1 && right.evaluate() == 1 ? 1 : 0;
+        }
+        if (op == Op.OR) {
+            return left.evaluate() == 1 || right.evaluate() == 1 ? 1 : 0;
+        }
+        return evaluate(left.evaluate(), right.evaluate());
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        if (op == Op.AND) {
+            return left.evaluate(frame) == 1 && right.evaluate(frame) == 1 ? 1 : 0;
+        }
+        if (op == Op.OR) {
+            return left.evaluate(frame) == 1 || right.evaluate(frame) == 1 ? 1 : 0;
+        }
+        return evaluate(left.evaluate(frame), right.evaluate(frame));
+    }
+
+    /*
+     * Applies the operation to the given operands
+     */
+    private double evaluate(double a, double b) {
         if (op == Op.ADD) {
             return a + b;
         } else if (op == Op.SUBTRACT) {
@@ -152,10 +191,182 @@ public class BinaryOperation extends Expression {
         throw new UnsupportedOperationException(String.valueOf(op));
     }
 
+    /**
+     * Evaluates the operation for all rows of the current block.
+     * <p>
+     * In contrast to evaluating a single row, both operands of logical operations are always computed, as each
+     * operand processes the whole block at once.
+     * </p>
+     *
+     * @param batch  provides the input values of the current block
+     * @param result the buffer to store the results in
+     */
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        left.evaluate(batch, result);
+        double[] b = batch.acquireBuffer();
+        right.evaluate(batch, b);
+        evaluate(result, b, batch.getLength());
+        batch.releaseBuffer(b);
+    }
+
+    /*
+     * Computes a[i] = a[i] op b[i]. The operator is only checked once, so that each loop is as tight as possible.
+     * The loops are kept free of short-circuit operators and other branches so that the JIT can compile them into
+     * SIMD instructions.
+     */
+    private void evaluate(double[] a, double[] b, int length) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] + b[i];
+                }
+                return;
+            case SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] - b[i];
+                }
+                return;
+            case MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] * b[i];
+                }
+                return;
+            case DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] / b[i];
+                }
+                return;
+            case MODULO:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] % b[i];
+                }
+                return;
+            case POWER:
+                for (int i = 0; i < length; i++) {
+                    a[i] = Math.pow(a[i], b[i]);
+                }
+                return;
+            case LT:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] < b[i] ? 1 : 0;
+                }
+                return;
+            case LT_EQ:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] < b[i] | Math.abs(a[i] - b[i]) < EPSILON ? 1 : 0;
+                }
+                return;
+            case EQ:
+                for (int i = 0; i < length; i++) {
+                    a[i] = Math.abs(a[i] - b[i]) < EPSILON ? 1 : 0;
+                }
+                return;
+            case GT_EQ:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] > b[i] | Math.abs(a[i] - b[i]) < EPSILON ? 1 : 0;
+                }
+                return;
+            case GT:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] > b[i] ? 1 : 0;
+                }
+                return;
+            case NEQ:
+                for (int i = 0; i < length; i++) {
+                    a[i] = Math.abs(a[i] - b[i]) > EPSILON ? 1 : 0;
+                }
+                return;
+            case AND:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] == 1 & b[i] == 1 ? 1 : 0;
+                }
+                return;
+            case OR:
+                for (int i = 0; i < length; i++) {
+                    a[i] = a[i] == 1 | b[i] == 1 ? 1 : 0;
+                }
+                return;
+            default:
+                throw new UnsupportedOperationException(String.valueOf(op));
+        }
+    }
+
     @Override
     public Expression simplify() {
-        left = left.simplify();
-        right = right.simplify();
+        // The parser generates left handed trees, which can be very deep for long sums or products. Therefore the
+        // left spine is simplified in a loop (bottom up) instead of using recursion.
+        List<BinaryOperation> spine = new ArrayList<BinaryOperation>();
+        Expression current = this;
+        while (current instanceof BinaryOperation) {
+            spine.add((BinaryOperation) current);
+            current = ((BinaryOperation) current).left;
+        }
+        Expression result = current.simplify();
+        // Chains of additions / subtractions or multiplications are collected into a flat Sum or Product. As these
+        // are only created here, they can safely be extended by the following operations of the chain.
+        Sum sum = null;
+        Product product = null;
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            BinaryOperation node = spine.get(i);
+            node.right = node.right.simplify();
+            node.hash = 0;
+            if (node.isAdditive()) {
+                if (result != sum
+                    && result instanceof BinaryOperation
+                    && ((BinaryOperation) result).isAdditive()) {
+                    BinaryOperation chain = (BinaryOperation) result;
+                    sum = new Sum();
+                    sum.addTerm(chain.left, false);
+                    sum.addTerm(chain.right, chain.op == Op.SUBTRACT);
+                    result = sum;
+                }
+                if (result == sum) {
+                    sum.addTerm(node.right, node.op == Op.SUBTRACT);
+                    continue;
+                }
+            } else if (node.op == Op.MULTIPLY) {
+                if (result != product
+                    && result instanceof BinaryOperation
+                    && ((BinaryOperation) result).op == Op.MULTIPLY) {
+                    BinaryOperation chain = (BinaryOperation) result;
+                    product = new Product();
+                    product.addFactor(chain.left);
+                    product.addFactor(chain.right);
+                    result = product;
+                }
+                if (result == product) {
+                    product.addFactor(node.right);
+                    continue;
+                }
+            }
+            node.left = reduce(result);
+            result = node.simplifyOperation();
+        }
+        return reduce(result);
+    }
+
+    private boolean isAdditive() {
+        return op == Op.ADD || op == Op.SUBTRACT;
+    }
+
+    /*
+     * Sums and products might contain less than two terms once all constants are combined
+     */
+    private static Expression reduce(Expression expr) {
+        if (expr instanceof Sum) {
+            return ((Sum) expr).reduce();
+        }
+        if (expr instanceof Product) {
+            return ((Product) expr).reduce();
+        }
+        return expr;
+    }
+
+    /*
+     * Simplifies this operation once both operands have been simplified
+     */
+    private Expression simplifyOperation() {
         // First of all we check of both sides are constant. If true, we can directly evaluate the result...
         if (left.isConstant() && right.isConstant()) {
             return new Constant(evaluate());
@@ -168,6 +379,7 @@ public class BinaryOperation extends Expression {
                 Expression tmp = right;
                 right = left;
                 left = tmp;
+                hash = 0;
             }
 
             if (right instanceof BinaryOperation) {
@@ -198,7 +410,59 @@ public class BinaryOperation extends Expression {
             }
         }
 
-        return super.simplify();
+        return this;
+    }
+
+    /**
+     * Determines if the given object is an equal operation.
+     * <p>
+     * Two operations are equal if they perform the same operation on equal operands. Whether an operation is sealed
+     * is ignored, as this doesn't change its result.
+     * </p>
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is structurally equal to this operation, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        // Just like in simplify, the left spine is compared in a loop to support long chains of operations
+        Object a = this;
+        Object b = obj;
+        while (a instanceof BinaryOperation && b instanceof BinaryOperation) {
+            if (a == b) {
+                return true;
+            }
+            BinaryOperation opA = (BinaryOperation) a;
+            BinaryOperation opB = (BinaryOperation) b;
+            if (opA.op != opB.op || opA.hashCode() != opB.hashCode() || !opA.right.equals(opB.right)) {
+                return false;
+            }
+            a = opA.left;
+            b = opB.left;
+        }
+        if (a instanceof BinaryOperation || b instanceof BinaryOperation) {
+            return false;
+        }
+        return a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+        if (hash != 0) {
+            return hash;
+        }
+        List<BinaryOperation> spine = new ArrayList<BinaryOperation>();
+        Expression current = this;
+        while (current instanceof BinaryOperation && ((BinaryOperation) current).hash == 0) {
+            spine.add((BinaryOperation) current);
+            current = ((BinaryOperation) current).left;
+        }
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            BinaryOperation node = spine.get(i);
+            int result = 31 * (31 * node.op.ordinal() + node.left.hashCode()) + node.right.hashCode();
+            node.hash = result == 0 ? 1 : result;
+        }
+        return hash;
     }
 
     @Override
@@ -0,0 +1,442 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Brings expressions into a canonical form, so that equivalent expressions become structurally equal.
+ * <p>
+ * Expressions like <tt>a + b</tt> and <tt>b + a</tt> compute the same value but aren't equal (see
+ * {@link Expression#equals(Object)}), as their operands are in a different order. The canonical form of both is
+ * equal, therefore it can be used as key of caches or to find duplicate formulas:
+ * <code>
+ * Expression key = Canonicalizer.canonicalize(Parser.parse(formula, scope));
+ * </code>
+ * </p>
+ * <p>
+ * The canonical form is created by the following rules:
+ * <ul>
+ * <li>Additions and subtractions are flattened into a {@link Sum}, multiplications into a {@link Product}. Nested
+ * sums and products are merged into their parent.</li>
+ * <li>Constants are combined. Calls of natural functions and operations with constant operands are computed. Negative
+ * zero is replaced by zero.</li>
+ * <li>Operands of commutative operations (sums, products, =, !=, &amp;&amp;, ||, min and max) are sorted. Chains of
+ * &amp;&amp; or || are flattened, so that all their operands are sorted together.</li>
+ * <li><tt>a &gt; b</tt> is expressed as <tt>b &lt; a</tt> and <tt>a &gt;= b</tt> as <tt>b &lt;= a</tt>.</li>
+ * </ul>
+ * As the order in which terms are added or multiplied changes, the result of the canonical form might differ from the
+ * original expression due to rounding. The order of operands is arbitrary but fixed: It is determined by the kind of
+ * operand, the names of variables and finally structural hash codes. Unknown kinds of nodes like
+ * {@link LetExpression} are kept as they are (along with their children).
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class Canonicalizer {
+
+    /*
+     * Orders the operands of commutative operations: Constants come first, then variables (by name) and then all
+     * other nodes grouped by their kind. Within a group, operands are ordered by their structural hash code, so that
+     * equal operands are next to each other no matter in which order they were given. Different operations or calls
+     * with the same hash code are ordered by their structure.
+     */
+    private static final Comparator<Expression> ORDER = new Comparator<Expression>() {
+        @Override
+        public int compare(Expression a, Expression b) {
+            int result = rank(a) - rank(b);
+            if (result != 0) {
+                return result;
+            }
+            if (a instanceof Constant) {
+                return Double.compare(a.evaluate(), b.evaluate());
+            }
+            if (a instanceof VariableReference) {
+                result = ((VariableReference) a).getVariable()
+                                                .getName()
+                                                .compareTo(((VariableReference) b).getVariable().getName());
+                if (result != 0) {
+                    return result;
+                }
+            }
+            result = compareInts(a.hashCode(), b.hashCode());
+            if (result != 0 || a.equals(b)) {
+                return result;
+            }
+            if (a instanceof BinaryOperation || a instanceof FunctionCall) {
+                return compareStructure(a, b);
+            }
+            return compareInts(System.identityHashCode(a), System.identityHashCode(b));
+        }
+    };
+
+    /*
+     * Orders two different operations or function calls which have the same hash code by comparing their children.
+     * Therefore the order doesn't depend on the identity of the nodes, which would make the canonical forms of equal
+     * expressions differ now and then.
+     */
+    private static int compareStructure(Expression a, Expression b) {
+        while (a instanceof BinaryOperation && b instanceof BinaryOperation) {
+            BinaryOperation opA = (BinaryOperation) a;
+            BinaryOperation opB = (BinaryOperation) b;
+            int result = opA.getOp().compareTo(opB.getOp());
+            if (result == 0) {
+                result = ORDER.compare(opA.getRight(), opB.getRight());
+            }
+            if (result != 0) {
+                return result;
+            }
+            // Chains grow on the left, therefore this side is walked in a loop
+            a = opA.getLeft();
+            b = opB.getLeft();
+        }
+        if (!(a instanceof FunctionCall) || !(b instanceof FunctionCall)) {
+            return ORDER.compare(a, b);
+        }
+        List<Expression> parametersA = ((FunctionCall) a).getParameters();
+        List<Expression> parametersB = ((FunctionCall) b).getParameters();
+        int result = compareInts(parametersA.size(), parametersB.size());
+        for (int i = 0; result == 0 && i < parametersA.size(); i++) {
+            result = ORDER.compare(parametersA.get(i), parametersB.get(i));
+        }
+        if (result != 0) {
+            return result;
+        }
+        // Functions are shared by all calls, so their identity doesn't change
+        return compareInts(System.identityHashCode(((FunctionCall) a).getFunction()),
+                           System.identityHashCode(((FunctionCall) b).getFunction()));
+    }
+
+    private static int rank(Expression expr) {
+        if (expr instanceof Constant) {
+            return 0;
+        }
+        if (expr instanceof VariableReference) {
+            return 1;
+        }
+        if (expr instanceof FunctionCall) {
+            return 2;
+        }
+        if (expr instanceof BinaryOperation) {
+            return 3;
+        }
+        if (expr instanceof Sum) {
+            return 4;
+        }
+        if (expr instanceof Product) {
+            return 5;
+        }
+        return 6;
+    }
+
+    private static int compareInts(int a, int b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /*
+     * Collects the terms of a sum while flattening nested sums
+     */
+    private static class Terms {
+        private double constant;
+        private final List<Expression> terms = new ArrayList<Expression>();
+        private final List<Boolean> subtracted = new ArrayList<Boolean>();
+
+        /*
+         * Adds the given term, which must already be canonical
+         */
+        private void add(Expression term, boolean negate) {
+            if (term.isConstant()) {
+                constant = negate ? constant - term.evaluate() : constant + term.evaluate();
+            } else if (term instanceof Sum) {
+                Sum sum = (Sum) term;
+                constant = negate ? constant - sum.getConstant() : constant + sum.getConstant();
+                for (int i = 0; i < sum.getTerms().size(); i++) {
+                    terms.add(sum.getTerms().get(i));
+                    subtracted.add(sum.isSubtracted(i) != negate);
+                }
+            } else {
+                terms.add(term);
+                subtracted.add(negate);
+            }
+        }
+
+        private Expression toExpression() {
+            if (terms.isEmpty()) {
+                return constant(constant);
+            }
+            if (terms.size() == 1 && constant == 0 && !subtracted.get(0)) {
+                return terms.get(0);
+            }
+            Integer[] order = new Integer[terms.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int result = ORDER.compare(terms.get(a), terms.get(b));
+                    if (result != 0) {
+                        return result;
+                    }
+                    return subtracted.get(a).compareTo(subtracted.get(b));
+                }
+            });
+            Sum result = new Sum();
+            result.addTerm(constant(constant), false);
+            for (Integer index : order) {
+                result.addTerm(terms.get(index), subtracted.get(index));
+            }
+            return result;
+        }
+    }
+
+    /*
+     * Collects the factors of a product while flattening nested products
+     */
+    private static class Factors {
+        private double constant = 1d;
+        private final List<Expression> factors = new ArrayList<Expression>();
+
+        /*
+         * Adds the given factor, which must already be canonical
+         */
+        private void add(Expression factor) {
+            if (factor.isConstant()) {
+                constant *= factor.evaluate();
+            } else if (factor instanceof Product) {
+                constant *= ((Product) factor).getConstant();
+                factors.addAll(((Product) factor).getFactors());
+            } else {
+                factors.add(factor);
+            }
+        }
+
+        private Expression toExpression() {
+            if (factors.isEmpty()) {
+                return constant(constant);
+            }
+            if (factors.size() == 1 && constant == 1) {
+                return factors.get(0);
+            }
+            Collections.sort(factors, ORDER);
+            Product result = new Product();
+            result.addFactor(constant(constant));
+            for (Expression factor : factors) {
+                result.addFactor(factor);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Computes the canonical form of the given expression.
+     *
+     * @param expression the expression to bring into canonical form. The expression itself remains unchanged
+     * @return an expression computing the same value as the given one (apart from rounding), which is equal to the
+     *         canonical form of all expressions differing only in the order of commutative operands or the grouping
+     *         of sums and products
+     */
+    public static Expression canonicalize(Expression expression) {
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        return canonical(expression);
+    }
+
+    /*
+     * Use the static canonicalize method
+     */
+    private Canonicalizer() {
+    }
+
+    private static Expression canonical(Expression expr) {
+        if (expr instanceof Constant || expr instanceof VariableReference && expr.isConstant()) {
+            return constant(expr.evaluate());
+        }
+        if (expr instanceof BinaryOperation) {
+            return canonicalOperation((BinaryOperation) expr);
+        }
+        if (expr instanceof FunctionCall) {
+            return canonicalCall((FunctionCall) expr);
+        }
+        if (expr instanceof Sum) {
+            Sum sum = (Sum) expr;
+            Terms terms = new Terms();
+            terms.constant = sum.getConstant();
+            for (int i = 0; i < sum.getTerms().size(); i++) {
+                terms.add(canonical(sum.getTerms().get(i)), sum.isSubtracted(i));
+            }
+            return terms.toExpression();
+        }
+        if (expr instanceof Product) {
+            Product product = (Product) expr;
+            Factors factors = new Factors();
+            factors.constant = product.getConstant();
+            for (Expression factor : product.getFactors()) {
+                factors.add(canonical(factor));
+            }
+            return factors.toExpression();
+        }
+        return expr;
+    }
+
+    /*
+     * Negative zero and zero as well as all NaNs are represented by the same constant
+     */
+    private static Constant constant(double value) {
+        if (value == 0) {
+            return new Constant(0d);
+        }
+        return new Constant(Double.isNaN(value) ? Double.NaN : value);
+    }
+
+    /*
+     * Parsed expressions are left handed trees, which can be very deep for long chains of operations. Therefore the
+     * left spine is processed in a loop (bottom up) instead of using recursion. Consecutive additions, multiplications
+     * and logical operations of the same kind are collected and combined once, which also keeps the canonical form of
+     * long chains flat.
+     */
+    private static Expression canonicalOperation(BinaryOperation op) {
+        List<BinaryOperation> spine = new ArrayList<BinaryOperation>();
+        Expression current = op;
+        while (current instanceof BinaryOperation) {
+            spine.add((BinaryOperation) current);
+            current = ((BinaryOperation) current).getLeft();
+        }
+        Expression result = canonical(current);
+        int index = spine.size() - 1;
+        while (index >= 0) {
+            BinaryOperation.Op operation = spine.get(index).getOp();
+            if (operation == BinaryOperation.Op.ADD || operation == BinaryOperation.Op.SUBTRACT) {
+                Terms terms = new Terms();
+                terms.add(result, false);
+                while (index >= 0 && (spine.get(index).getOp() == BinaryOperation.Op.ADD
+                                      || spine.get(index).getOp() == BinaryOperation.Op.SUBTRACT)) {
+                    terms.add(canonical(spine.get(index).getRight()),
+                              spine.get(index).getOp() == BinaryOperation.Op.SUBTRACT);
+                    index--;
+                }
+                result = terms.toExpression();
+            } else if (operation == BinaryOperation.Op.MULTIPLY) {
+                Factors factors = new Factors();
+                factors.add(result);
+                while (index >= 0 && spine.get(index).getOp() == BinaryOperation.Op.MULTIPLY) {
+                    factors.add(canonical(spine.get(index).getRight()));
+                    index--;
+                }
+                result = factors.toExpression();
+            } else if (operation == BinaryOperation.Op.AND || operation == BinaryOperation.Op.OR) {
+                List<Expression> operands = new ArrayList<Expression>();
+                addOperands(operation, result, operands);
+                while (index >= 0 && spine.get(index).getOp() == operation) {
+                    addOperands(operation, canonical(spine.get(index).getRight()), operands);
+                    index--;
+                }
+                result = logicalChain(operation, operands);
+            } else {
+                result = canonicalOperation(operation, result, canonical(spine.get(index).getRight()));
+                index--;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Combines two canonical operands using an operation which is neither an addition, a multiplication nor a
+     * logical operation
+     */
+    private static Expression canonicalOperation(BinaryOperation.Op operation, Expression left, Expression right) {
+        if (operation == BinaryOperation.Op.GT || operation == BinaryOperation.Op.GT_EQ) {
+            Expression tmp = left;
+            left = right;
+            right = tmp;
+            operation = operation == BinaryOperation.Op.GT ? BinaryOperation.Op.LT : BinaryOperation.Op.LT_EQ;
+        } else if (isCommutative(operation) && ORDER.compare(left, right) > 0) {
+            Expression tmp = left;
+            left = right;
+            right = tmp;
+        }
+        BinaryOperation result = new BinaryOperation(operation, left, right);
+        if (left.isConstant() && right.isConstant()) {
+            return constant(result.evaluate());
+        }
+        return result;
+    }
+
+    /*
+     * Adds the given canonical operand of a logical operation. Chains of the same operation are flattened, so that
+     * all operands of a chain are sorted together.
+     */
+    private static void addOperands(BinaryOperation.Op operation, Expression operand, List<Expression> operands) {
+        while (operand instanceof BinaryOperation && ((BinaryOperation) operand).getOp() == operation) {
+            operands.add(((BinaryOperation) operand).getRight());
+            operand = ((BinaryOperation) operand).getLeft();
+        }
+        operands.add(operand);
+    }
+
+    /*
+     * Creates a left handed chain of the given operands, which are sorted as && and || are commutative and
+     * associative (both yield either 0 or 1)
+     */
+    private static Expression logicalChain(BinaryOperation.Op operation, List<Expression> operands) {
+        Collections.sort(operands, ORDER);
+        boolean constant = true;
+        boolean anyTrue = false;
+        boolean allTrue = true;
+        for (Expression operand : operands) {
+            if (operand.isConstant()) {
+                boolean value = operand.evaluate() == 1;
+                anyTrue |= value;
+                allTrue &= value;
+            } else {
+                constant = false;
+            }
+        }
+        if (constant) {
+            return constant((operation == BinaryOperation.Op.AND ? allTrue : anyTrue) ? 1d : 0d);
+        }
+        Expression result = operands.get(0);
+        for (int i = 1; i < operands.size(); i++) {
+            result = new BinaryOperation(operation, result, operands.get(i));
+        }
+        return result;
+    }
+
+    private static boolean isCommutative(BinaryOperation.Op operation) {
+        return operation == BinaryOperation.Op.EQ || operation == BinaryOperation.Op.NEQ;
+    }
+
+    private static Expression canonicalCall(FunctionCall call) {
+        List<Expression> parameters = new ArrayList<Expression>();
+        boolean constant = call.getFunction().isNaturalFunction();
+        for (Expression parameter : call.getParameters()) {
+            Expression canonical = canonical(parameter);
+            constant &= canonical.isConstant();
+            parameters.add(canonical);
+        }
+        if (call.getFunction() == Functions.MIN || call.getFunction() == Functions.MAX) {
+            Collections.sort(parameters, ORDER);
+        }
+        FunctionCall result = new FunctionCall();
+        result.setFunction(call.getFunction());
+        for (Expression parameter : parameters) {
+            result.addParameter(parameter);
+        }
+        if (constant) {
+            return constant(result.evaluate());
+        }
+        return result;
+    }
+}
@@ -8,6 +8,8 @@
 
 package parsii.eval;
 
+import java.util.Arrays;
+
 /**
  * Represents a constant numeric expression.
  *
@@ -31,11 +33,33 @@ public class Constant extends Expression {
         return value;
     }
 
+    @Override
+    public double evaluate(double[] frame) {
+        return value;
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        Arrays.fill(result, 0, batch.getLength(), value);
+    }
+
     @Override
     public boolean isConstant() {
         return true;
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Constant
+               && Double.doubleToLongBits(value) == Double.doubleToLongBits(((Constant) obj).value);
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(value);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
     @Override
     public String toString() {
         return String.valueOf(value);
@@ -8,11 +8,21 @@
 
 package parsii.eval;
 
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
 /**
  * Represents the result of a parsed expression.
  * <p>
  * Can be evaluated to return a double value. If an error occurs <code>Double.NaN</code> will be returned.
  * </p>
+ * <p>
+ * The built-in nodes (constants, variable references, operations, sums, products and function calls) implement
+ * {@link #equals(Object)} and {@link #hashCode()} structurally: Two expressions are equal if they perform the same
+ * operations on equal operands in the same order. Hash codes are cached, therefore an expression must not be modified
+ * once it has been used as key of a map. To also recognize expressions like <tt>a + b</tt> and <tt>b + a</tt>, they
+ * can be brought into a canonical form first (see {@link Canonicalizer}).
+ * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
@@ -26,6 +36,113 @@ public abstract class Expression {
      */
     public abstract double evaluate();
 
+    /**
+     * Evaluates the expression to a double number, reading the values of all variables from the given frame.
+     * <p>
+     * The frame contains one value per variable, indexed by {@link Variable#getSlot()} and is best created using
+     * {@link Scope#createFrame()}. As neither the expression nor its variables are modified, a single expression
+     * can be evaluated by many threads at once, as long as each thread uses its own frame.
+     * </p>
+     * <p>
+     * By default this calls {@link #evaluate()}. All built-in expressions override this method to read their
+     * variables from the frame.
+     * </p>
+     *
+     * @param frame the values of the variables, indexed by their slot
+     * @return the double value as a result of evaluating this expression. Returns NaN if an error occurs
+     */
+    public double evaluate(double[] frame) {
+        return evaluate();
+    }
+
+    /**
+     * Evaluates the expression once per row of the given input columns.
+     * <p>
+     * Instead of setting the variables and calling {@link #evaluate()} once per row, the rows are processed in blocks
+     * (see {@link Batch}). Each node of the expression is therefore visited once per block and computes the results for
+     * all rows of the block in a tight loop.
+     * </p>
+     *
+     * @param columns contains the input values per variable. A variable which has no column is read as usual
+     * @param out     the array to store the results in. <tt>out[i]</tt> receives the result for row <tt>i</tt>
+     * @param from    the first row to evaluate (inclusive)
+     * @param to      the last row to evaluate (exclusive)
+     */
+    public void evaluate(Map<Variable, double[]> columns, double[] out, int from, int to) {
+        if (from < 0 || from > to || out.length < to) {
+            throw new IllegalArgumentException(String.format("Invalid range: %d - %d", from, to));
+        }
+        for (Map.Entry<Variable, double[]> column : columns.entrySet()) {
+            if (column.getValue().length < to) {
+                throw new IllegalArgumentException(String.format("Column for %s contains less than %d rows",
+                                                                 column.getKey().getName(),
+                                                                 to));
+            }
+        }
+        Batch batch = new Batch(columns);
+        double[] result = batch.acquireBuffer();
+        for (int offset = from; offset < to; offset += Batch.BLOCK_SIZE) {
+            int length = Math.min(Batch.BLOCK_SIZE, to - offset);
+            batch.moveTo(offset, length);
+            evaluate(batch, result);
+            System.arraycopy(result, 0, out, offset, length);
+        }
+    }
+
+    /**
+     * Evaluates the expression once per row of the given input columns, using all available processors.
+     * <p>
+     * The rows are split into chunks which are evaluated by the {@link Batch#getDefaultExecutor() default executor}
+     * along with the calling thread. Each chunk is evaluated as described in
+     * {@link #evaluate(java.util.Map, double[], int, int)}. Variables are read from the given columns instead of being
+     * modified, therefore all chunks can be evaluated at once.
+     * </p>
+     *
+     * @param columns contains the input values per variable. A variable which has no column is read as usual
+     * @param out     the array to store the results in. <tt>out[i]</tt> receives the result for row <tt>i</tt>
+     * @param from    the first row to evaluate (inclusive)
+     * @param to      the last row to evaluate (exclusive)
+     */
+    public void parallelEvaluate(Map<Variable, double[]> columns, double[] out, int from, int to) {
+        parallelEvaluate(columns, out, from, to, Batch.getDefaultExecutor());
+    }
+
+    /**
+     * Evaluates the expression once per row of the given input columns, using the given executor.
+     *
+     * @param columns  contains the input values per variable. A variable which has no column is read as usual
+     * @param out      the array to store the results in. <tt>out[i]</tt> receives the result for row <tt>i</tt>
+     * @param from     the first row to evaluate (inclusive)
+     * @param to       the last row to evaluate (exclusive)
+     * @param executor the executor used to evaluate chunks of rows in parallel
+     * @see #parallelEvaluate(java.util.Map, double[], int, int)
+     */
+    public void parallelEvaluate(Map<Variable, double[]> columns,
+                                 double[] out,
+                                 int from,
+                                 int to,
+                                 ExecutorService executor) {
+        if (from < 0 || from > to || out.length < to) {
+            throw new IllegalArgumentException(String.format("Invalid range: %d - %d", from, to));
+        }
+        Batch.evaluateParallel(this, columns, out, from, to, executor);
+    }
+
+    /**
+     * Evaluates the expression for all rows of the current block of the given batch.
+     * <p>
+     * By default, the expression is evaluated row by row. Subclasses should override this method to compute the
+     * whole block at once.
+     * </p>
+     *
+     * @param batch  provides the input values of the current block
+     * @param result the buffer to store the results in. <tt>result[i]</tt> receives the result for the row
+     *               <tt>batch.getOffset() + i</tt>
+     */
+    public void evaluate(Batch batch, double[] result) {
+        batch.evaluateRowByRow(this, result);
+    }
+
     /**
      * Returns a simplified version of this expression.
      *
@@ -0,0 +1,322 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches parsed expressions by their formula and scope.
+ * <p>
+ * The cache is bounded by the number of entries and evicts the least recently used entries once it is full. It can be
+ * used by many threads at once: Entries are kept in a {@link ConcurrentHashMap} and a cache hit only records the
+ * time of the access in its entry, so that threads reading the cache never block each other. If several threads
+ * request the same formula which isn't cached yet, the formula is only parsed once and all threads receive the same
+ * expression. Parsing is done outside of any lock, so that only threads waiting for the same formula are blocked.
+ * </p>
+ * <p>
+ * Once the cache is full, the least recently used entries are determined by sorting all entries by their last access
+ * and the oldest ones are removed. To make up for the costs of sorting, a sixteenth of the entries is evicted at once,
+ * so that not every further miss has to evict entries again.
+ * </p>
+ * <p>
+ * As the same expression is handed out to all callers, it must not be evaluated by several threads using
+ * {@link Expression#evaluate()}, as this reads the values of the shared variables of the scope. Instead each caller
+ * should create its own frame using {@link Scope#createFrame()}, fill in the values using
+ * {@link Variable#setValue(double[], double)} and then call {@link Expression#evaluate(double[])}.
+ * </p>
+ * <p>
+ * Errors are not cached: If a formula cannot be parsed, the {@link ParseException} is thrown to all threads which
+ * waited for the formula and the next request will try to parse it again.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class ExpressionCache {
+
+    /*
+     * Once the cache is full, it is shrunk by maximumSize / EVICTION_DIVISOR entries (at least one)
+     */
+    private static final int EVICTION_DIVISOR = 16;
+
+    private final int maximumSize;
+    private final FunctionRegistry functions;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /*
+     * Provides the access times of entries, so that the least recently used entries can be determined
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /*
+     * Contains all entries. An entry contains a FutureTask, so that concurrent requests for the same formula can
+     * wait for a single parse.
+     */
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    /*
+     * Ensures that only one thread at a time evicts entries
+     */
+    private final Object evictionLock = new Object();
+
+    /*
+     * Identifies an entry: The formula along with the scope used to resolve its variables
+     */
+    private static class Key {
+        private final String formula;
+        private final Scope scope;
+
+        private Key(String formula, Scope scope) {
+            this.formula = formula;
+            this.scope = scope;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return scope == other.scope && formula.equals(other.formula);
+        }
+
+        @Override
+        public int hashCode() {
+            return formula.hashCode() * 31 + System.identityHashCode(scope);
+        }
+    }
+
+    /*
+     * Contains the expression (once it is parsed) along with the time of the last access
+     */
+    private static class Entry {
+        private final Key key;
+        private final FutureTask<Expression> task;
+        private volatile long lastAccess;
+
+        private Entry(Key key, FutureTask<Expression> task, long lastAccess) {
+            this.key = key;
+            this.task = task;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /*
+     * Orders entries from the least to the most recently used one
+     */
+    private static final Comparator<Entry> BY_LAST_ACCESS = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+        }
+    };
+
+    /**
+     * Creates a new cache which keeps up to the given number of expressions.
+     * <p>
+     * Functions are resolved using the {@link FunctionRegistry#getDefault() default registry}.
+     * </p>
+     *
+     * @param maximumSize the maximal number of expressions to keep
+     */
+    public ExpressionCache(int maximumSize) {
+        this(maximumSize, FunctionRegistry.getDefault());
+    }
+
+    /**
+     * Creates a new cache which keeps up to the given number of expressions.
+     *
+     * @param maximumSize the maximal number of expressions to keep
+     * @param functions   the registry used to resolve functions when parsing a formula
+     */
+    public ExpressionCache(int maximumSize, FunctionRegistry functions) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize < 1");
+        }
+        if (functions == null) {
+            throw new IllegalArgumentException("functions must not be null");
+        }
+        this.maximumSize = maximumSize;
+        this.functions = functions;
+    }
+
+    /**
+     * Returns the expression for the given formula and scope.
+     * <p>
+     * If the expression isn't cached yet, it is parsed using {@link Parser#parse(String, Scope, FunctionRegistry)}
+     * and put into the cache.
+     * </p>
+     *
+     * @param formula the formula to parse
+     * @param scope   the scope used to resolve variables
+     * @return the parsed expression, which might be shared with other callers
+     * @throws ParseException if the formula contains one or more errors
+     */
+    public Expression get(final String formula, final Scope scope) throws ParseException {
+        if (formula == null) {
+            throw new IllegalArgumentException("formula must not be null");
+        }
+        if (scope == null) {
+            throw new IllegalArgumentException("scope must not be null");
+        }
+        Key key = new Key(formula, scope);
+        Entry entry = entries.get(key);
+        boolean load = false;
+        if (entry == null) {
+            Entry newEntry = new Entry(key, new FutureTask<Expression>(new Callable<Expression>() {
+                @Override
+                public Expression call() throws Exception {
+                    return Parser.parse(formula, scope, functions);
+                }
+            }), clock.incrementAndGet());
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+                load = true;
+            }
+        }
+        if (load) {
+            misses.incrementAndGet();
+            if (entries.size() > maximumSize) {
+                evict();
+            }
+            entry.task.run();
+        } else {
+            hits.incrementAndGet();
+            entry.lastAccess = clock.incrementAndGet();
+        }
+
+        try {
+            return entry.task.get();
+        } catch (ExecutionException e) {
+            if (load) {
+                entries.remove(key, entry);
+            }
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("Interrupted while waiting for: %s", formula), e);
+        }
+    }
+
+    /*
+     * Removes the least recently used entries, so that the cache is a bit smaller than its maximal size
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            if (entries.size() <= maximumSize) {
+                return;
+            }
+            List<Entry> candidates = new ArrayList<Entry>(entries.values());
+            Collections.sort(candidates, BY_LAST_ACCESS);
+            int excess = candidates.size() - maximumSize + Math.max(1, maximumSize / EVICTION_DIVISOR) - 1;
+            for (int i = 0; i < excess && i < candidates.size(); i++) {
+                Entry candidate = candidates.get(i);
+                if (entries.remove(candidate.key, candidate)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /*
+     * Unwraps the error which occurred while parsing
+     */
+    private ParseException rethrow(Throwable cause) throws ParseException {
+        if (cause instanceof ParseException) {
+            throw (ParseException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    /**
+     * Removes all cached expressions.
+     * <p>
+     * The statistics are kept.
+     * </p>
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached expressions.
+     *
+     * @return the number of expressions currently in the cache (including those being parsed)
+     */
+    public int size() {
+        return entries.size();
+    }
+    /**
+     * Returns the maximal number of cached expressions.
+     *
+     * @return the maximal number of expressions kept by this cache
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns the number of requests which were served from the cache.
+     * <p>
+     * This includes requests which waited for another thread parsing the same formula.
+     * </p>
+     *
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which required to parse a formula.
+     *
+     * @return the number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of expressions which were removed as the cache was full.
+     *
+     * @return the number of evicted entries
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExpressionCache: %d/%d entries, %d hits, %d misses, %d evictions",
+                             size(),
+                             maximumSize,
+                             getHits(),
+                             getMisses(),
+                             getEvictions());
+    }
+}
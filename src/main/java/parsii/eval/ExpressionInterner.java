@@ -0,0 +1,219 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares identical nodes among many expressions (hash-consing).
+ * <p>
+ * Interning an expression replaces each node by a canonical instance: Two nodes are considered identical if they
+ * are structurally equal (see {@link Expression#equals(Object)}), therefore a whole subtree like
+ * <tt>price * (1 + tax)</tt> is only kept once, no matter how many expressions contain it. This turns a large set of
+ * expressions into a directed acyclic graph, which saves a lot of memory and permits to recognize shared subtrees
+ * by comparing references. Expressions which only differ in the order of commutative operands (like <tt>a + b</tt>
+ * and <tt>b + a</tt>) are only shared if they are brought into their canonical form first (see {@link Canonicalizer}).
+ * </p>
+ * <p>
+ * Canonical nodes are only weakly referenced by the interner and are therefore dropped once no expression uses them
+ * anymore. An interner can be used by many threads at once. Interning is usually performed by the parser (see
+ * {@link Parser#parse(String, Scope, FunctionRegistry, ExpressionInterner)}) once an expression has been simplified.
+ * </p>
+ * <p>
+ * As interned nodes are shared, they must not be modified afterwards. Note that {@link Expression#simplify()} might
+ * modify the expression it is invoked on, therefore an interned expression must not be simplified again. Unknown
+ * kinds of nodes like {@link LetExpression} are kept as they are (along with their children), as they cannot be
+ * shared safely.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class ExpressionInterner {
+
+    /*
+     * Maps each canonical node to itself. The map only weakly references its keys and the values must therefore be
+     * weak references as well, otherwise canonical nodes would never be collected. As the children of a canonical
+     * node are canonical themselves, comparing nodes mostly boils down to comparing references.
+     */
+    private final Map<Expression, WeakReference<Expression>> nodes =
+            new WeakHashMap<Expression, WeakReference<Expression>>();
+    private long hits;
+    private long misses;
+
+    /**
+     * Replaces all nodes of the given expression by their canonical instances.
+     *
+     * @param expression the expression to intern. The expression itself remains unchanged, as nodes whose children
+     *                   have been replaced are copied.
+     * @return an expression computing the same value as the given one, which consists of canonical nodes only
+     */
+    public synchronized Expression intern(Expression expression) {
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        return internNode(expression);
+    }
+
+    private Expression internNode(Expression expr) {
+        if (expr instanceof BinaryOperation) {
+            return internBinaryOperation((BinaryOperation) expr);
+        }
+        if (expr instanceof Constant || expr instanceof VariableReference) {
+            return lookup(expr);
+        }
+        if (expr instanceof FunctionCall) {
+            return internFunctionCall((FunctionCall) expr);
+        }
+        if (expr instanceof Sum) {
+            return internSum((Sum) expr);
+        }
+        if (expr instanceof Product) {
+            return internProduct((Product) expr);
+        }
+        return expr;
+    }
+
+    /*
+     * Parsed expressions are left handed trees, which can be very deep for long chains of comparisons or logical
+     * operations. Therefore the left spine is interned in a loop (bottom up) instead of using recursion.
+     */
+    private Expression internBinaryOperation(BinaryOperation expr) {
+        List<BinaryOperation> spine = new ArrayList<BinaryOperation>();
+        Expression current = expr;
+        while (current instanceof BinaryOperation) {
+            spine.add((BinaryOperation) current);
+            current = ((BinaryOperation) current).getLeft();
+        }
+        Expression result = internNode(current);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            BinaryOperation op = spine.get(i);
+            Expression left = result;
+            Expression right = internNode(op.getRight());
+            BinaryOperation candidate = op;
+            if (left != op.getLeft() || right != op.getRight()) {
+                candidate = new BinaryOperation(op.getOp(), left, right);
+                if (op.isSealed()) {
+                    candidate.seal();
+                }
+            }
+            result = lookup(candidate);
+        }
+        return result;
+    }
+
+    private Expression internFunctionCall(FunctionCall call) {
+        List<Expression> parameters = call.getParameters();
+        Expression[] interned = new Expression[parameters.size()];
+        boolean changed = false;
+        for (int i = 0; i < interned.length; i++) {
+            interned[i] = internNode(parameters.get(i));
+            changed |= interned[i] != parameters.get(i);
+        }
+        if (!changed) {
+            return lookup(call);
+        }
+        FunctionCall candidate = new FunctionCall();
+        candidate.setFunction(call.getFunction());
+        for (Expression parameter : interned) {
+            candidate.addParameter(parameter);
+        }
+        return lookup(candidate);
+    }
+
+    private Expression internSum(Sum sum) {
+        List<Expression> terms = sum.getTerms();
+        Expression[] interned = new Expression[terms.size()];
+        boolean changed = false;
+        for (int i = 0; i < interned.length; i++) {
+            interned[i] = internNode(terms.get(i));
+            changed |= interned[i] != terms.get(i);
+        }
+        if (!changed) {
+            return lookup(sum);
+        }
+        Sum candidate = new Sum();
+        candidate.addTerm(new Constant(sum.getConstant()), false);
+        for (int i = 0; i < interned.length; i++) {
+            candidate.addTerm(interned[i], sum.isSubtracted(i));
+        }
+        return lookup(candidate);
+    }
+
+    private Expression internProduct(Product product) {
+        List<Expression> factors = product.getFactors();
+        Expression[] interned = new Expression[factors.size()];
+        boolean changed = false;
+        for (int i = 0; i < interned.length; i++) {
+            interned[i] = internNode(factors.get(i));
+            changed |= interned[i] != factors.get(i);
+        }
+        if (!changed) {
+            return lookup(product);
+        }
+        Product candidate = new Product();
+        candidate.addFactor(new Constant(product.getConstant()));
+        for (Expression factor : interned) {
+            candidate.addFactor(factor);
+        }
+        return lookup(candidate);
+    }
+
+    /*
+     * Returns the canonical instance which is equal to the given node. If there is none yet, the given node becomes
+     * the canonical instance. As its children are already canonical, comparing them is a matter of references.
+     */
+    private Expression lookup(Expression candidate) {
+        WeakReference<Expression> reference = nodes.get(candidate);
+        Expression result = reference == null ? null : reference.get();
+        if (result != null) {
+            hits++;
+            return result;
+        }
+        misses++;
+        nodes.put(candidate, new WeakReference<Expression>(candidate));
+        return candidate;
+    }
+
+    /**
+     * Returns the number of canonical nodes known to this interner.
+     *
+     * @return the number of nodes which are shared, including those which have been collected recently
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Returns the number of nodes which have been replaced by an existing canonical instance.
+     *
+     * @return the number of nodes which were already known
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of nodes which became canonical instances.
+     *
+     * @return the number of nodes which weren't known yet
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExpressionInterner: %d nodes, %d hits, %d misses", size(), getHits(), getMisses());
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Maintains a set of named formulas which depend on each other, like the cells of a spreadsheet.
+ * <p>
+ * Each formula is parsed using the scope of the graph and stores its result in the variable of the same name. Other
+ * formulas can therefore refer to it like to any other variable:
+ * <code>
+ * graph.define("revenue", "price * qty");
+ * graph.define("margin", "revenue - cost");
+ * scope.getVariable("price").setValue(10);
+ * graph.recompute();
+ * </code>
+ * </p>
+ * <p>
+ * The graph observes all variables read by its formulas (see {@link VariableListener}). Changing one of them marks
+ * the formulas reading it as dirty. Calling {@link #recompute()} then evaluates the dirty formulas in topological
+ * order. A formula whose result changed in turn marks the formulas reading its variable as dirty, all others are left
+ * alone. Formulas of the same topological level don't depend on each other and are therefore evaluated in parallel
+ * once there are enough of them.
+ * </p>
+ * <p>
+ * The variables of the formulas are owned by the graph and must not be changed from outside, as this isn't tracked.
+ * Definitions which would lead to a cycle are rejected.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class FormulaGraph implements VariableListener {
+
+    /**
+     * Contains the minimal number of formulas per task if a level is evaluated in parallel
+     */
+    public static final int MIN_FORMULAS_PER_TASK = 256;
+
+    private final Scope scope;
+    private final FunctionRegistry functions;
+    private final ExecutorService executor;
+    private final Map<String, Formula> formulas = new LinkedHashMap<String, Formula>();
+
+    /*
+     * Read without locking in valueChanged, as results are stored by worker threads while the graph is locked
+     */
+    private final Map<Variable, Formula> formulasByVariable = new ConcurrentHashMap<Variable, Formula>();
+
+    /*
+     * Contains the formulas which read a variable, including variables which aren't defined by a formula
+     */
+    private final Map<Variable, List<Formula>> readers = new IdentityHashMap<Variable, List<Formula>>();
+    private final Set<Formula> dirty = new LinkedHashSet<Formula>();
+
+    /*
+     * Determines if the levels have to be computed before the next recompute, as formulas have been (re-)defined.
+     * Levels are computed once for all definitions, as a single definition can shift the levels of all formulas
+     * reading it.
+     */
+    private boolean levelsOutdated;
+    private long evaluations;
+
+    /*
+     * A named formula along with its position in the graph. The level is 0 for formulas which only read plain
+     * variables, otherwise one more than the highest level of the formulas it reads.
+     */
+    private static class Formula {
+        private final String name;
+        private final Variable variable;
+        private Expression expression;
+        private Set<Variable> dependencies = Collections.emptySet();
+        private int level;
+
+        private Formula(String name, Variable variable) {
+            this.name = name;
+            this.variable = variable;
+        }
+
+        @Override
+        public String toString() {
+            return name + " = " + expression;
+        }
+    }
+
+    /**
+     * Creates a new graph which defines its formulas in the given scope.
+     * <p>
+     * Functions are resolved using the {@link FunctionRegistry#getDefault() default registry} and levels are
+     * evaluated in parallel using the {@link Batch#getDefaultExecutor() default executor}.
+     * </p>
+     *
+     * @param scope the scope used to parse the formulas and to store their results
+     */
+    public FormulaGraph(Scope scope) {
+        this(scope, FunctionRegistry.getDefault(), Batch.getDefaultExecutor());
+    }
+
+    /**
+     * Creates a new graph which defines its formulas in the given scope.
+     *
+     * @param scope     the scope used to parse the formulas and to store their results
+     * @param functions the registry used to resolve functions when parsing a formula
+     * @param executor  the executor used to evaluate large levels in parallel. If <tt>null</tt> is given, all
+     *                  formulas are evaluated by the calling thread.
+     */
+    public FormulaGraph(Scope scope, FunctionRegistry functions, ExecutorService executor) {
+        if (scope == null) {
+            throw new IllegalArgumentException("scope must not be null");
+        }
+        if (functions == null) {
+            throw new IllegalArgumentException("functions must not be null");
+        }
+        this.scope = scope;
+        this.functions = functions;
+        this.executor = executor;
+    }
+
+    /**
+     * Defines (or replaces) the formula with the given name.
+     * <p>
+     * The formula is evaluated by the next call of {@link #recompute()}.
+     * </p>
+     *
+     * @param name    the name of the formula, which is also the name of the variable receiving its result
+     * @param formula the formula to parse
+     * @return the variable which receives the result of the formula
+     * @throws ParseException           if the formula contains one or more errors
+     * @throws IllegalArgumentException if the formula (indirectly) reads its own result
+     */
+    public synchronized Variable define(String name, String formula) throws ParseException {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        if (formula == null) {
+            throw new IllegalArgumentException("formula must not be null");
+        }
+        Expression expression = Parser.parse(formula, scope, functions);
+        Set<Variable> dependencies = new LinkedHashSet<Variable>();
+        collectVariables(expression, dependencies);
+
+        Variable variable = scope.getVariable(name);
+        checkCycle(name, variable, dependencies);
+        Formula result = formulas.get(name);
+        if (result == null) {
+            result = new Formula(name, variable);
+            formulas.put(name, result);
+            formulasByVariable.put(variable, result);
+        }
+        for (Variable dependency : result.dependencies) {
+            readers.get(dependency).remove(result);
+        }
+        for (Variable dependency : dependencies) {
+            List<Formula> list = readers.get(dependency);
+            if (list == null) {
+                list = new ArrayList<Formula>();
+                readers.put(dependency, list);
+                dependency.addListener(this);
+            }
+            list.add(result);
+        }
+        result.expression = expression;
+        result.dependencies = dependencies;
+        levelsOutdated = true;
+        dirty.add(result);
+        return variable;
+    }
+
+    /*
+     * Collects all variables read by the given expression
+     */
+    private void collectVariables(Expression expr, Set<Variable> variables) {
+        if (expr instanceof VariableReference) {
+            variables.add(((VariableReference) expr).getVariable());
+        } else if (expr instanceof BinaryOperation) {
+            // Walk the left spine in a loop, as chains of operations can be very deep
+            Expression current = expr;
+            while (current instanceof BinaryOperation) {
+                collectVariables(((BinaryOperation) current).getRight(), variables);
+                current = ((BinaryOperation) current).getLeft();
+            }
+            collectVariables(current, variables);
+        } else if (expr instanceof FunctionCall) {
+            for (Expression parameter : ((FunctionCall) expr).getParameters()) {
+                collectVariables(parameter, variables);
+            }
+        } else if (expr instanceof Sum) {
+            for (Expression term : ((Sum) expr).getTerms()) {
+                collectVariables(term, variables);
+            }
+        } else if (expr instanceof Product) {
+            for (Expression factor : ((Product) expr).getFactors()) {
+                collectVariables(factor, variables);
+            }
+        } else if (!(expr instanceof Constant)) {
+            throw new IllegalArgumentException(String.format("Cannot determine the variables of: %s", expr));
+        }
+    }
+
+    /*
+     * Ensures that none of the given dependencies is the given variable or a formula reading it
+     */
+    private void checkCycle(String name, Variable variable, Set<Variable> dependencies) {
+        if (!dependencies.contains(variable) && !isRead(variable)) {
+            // Nothing reads the result of the formula, therefore it cannot be part of a cycle
+            return;
+        }
+        Set<Variable> visited = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+        List<Variable> stack = new ArrayList<Variable>(dependencies);
+        while (!stack.isEmpty()) {
+            Variable current = stack.remove(stack.size() - 1);
+            if (current == variable) {
+                throw new IllegalArgumentException(String.format("The formula for '%s' depends on itself", name));
+            }
+            Formula formula = formulasByVariable.get(current);
+            if (formula != null && visited.add(current)) {
+                stack.addAll(formula.dependencies);
+            }
+        }
+    }
+
+    /*
+     * Determines the levels of all formulas in topological order (Kahn's algorithm): A formula is processed once all
+     * formulas it reads have been processed. As chains of formulas can be arbitrarily long, this uses a queue rather
+     * than recursion and visits each formula and dependency only once.
+     */
+    private void computeLevels() {
+        Map<Formula, Integer> pending = new IdentityHashMap<Formula, Integer>();
+        Deque<Formula> queue = new ArrayDeque<Formula>();
+        for (Formula formula : formulas.values()) {
+            int sources = 0;
+            for (Variable dependency : formula.dependencies) {
+                if (formulasByVariable.containsKey(dependency)) {
+                    sources++;
+                }
+            }
+            formula.level = 0;
+            if (sources == 0) {
+                queue.add(formula);
+            } else {
+                pending.put(formula, sources);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Formula current = queue.poll();
+            List<Formula> list = readers.get(current.variable);
+            if (list != null) {
+                for (Formula reader : list) {
+                    reader.level = Math.max(reader.level, current.level + 1);
+                    int sources = pending.get(reader) - 1;
+                    if (sources == 0) {
+                        pending.remove(reader);
+                        queue.add(reader);
+                    } else {
+                        pending.put(reader, sources);
+                    }
+                }
+            }
+        }
+        levelsOutdated = false;
+    }
+
+    private boolean isRead(Variable variable) {
+        List<Formula> list = readers.get(variable);
+        return list != null && !list.isEmpty();
+    }
+
+    @Override
+    public void valueChanged(Variable variable) {
+        // Results of formulas are stored while recomputing, the formulas reading them are marked by recompute itself
+        if (formulasByVariable.containsKey(variable)) {
+            return;
+        }
+        synchronized (this) {
+            markReaders(variable, dirty);
+        }
+    }
+
+    private void markReaders(Variable variable, Set<Formula> target) {
+        List<Formula> list = readers.get(variable);
+        if (list != null) {
+            target.addAll(list);
+        }
+    }
+
+    /**
+     * Evaluates all formulas which are affected by changed variables or which have been (re-)defined.
+     * <p>
+     * If the evaluation of a formula fails, the formulas which haven't been evaluated remain dirty.
+     * </p>
+     *
+     * @return the number of formulas which have been evaluated
+     */
+    public synchronized int recompute() {
+        if (levelsOutdated) {
+            computeLevels();
+        }
+        TreeMap<Integer, Set<Formula>> levels = new TreeMap<Integer, Set<Formula>>();
+        for (Formula formula : dirty) {
+            add(levels, formula);
+        }
+        dirty.clear();
+
+        int result = 0;
+        try {
+            while (!levels.isEmpty()) {
+                List<Formula> level = new ArrayList<Formula>(levels.firstEntry().getValue());
+                double[] previousValues = new double[level.size()];
+                for (int i = 0; i < previousValues.length; i++) {
+                    previousValues[i] = level.get(i).variable.getValue();
+                }
+                evaluateLevel(level);
+                levels.pollFirstEntry();
+                result += level.size();
+                Set<Formula> affected = new LinkedHashSet<Formula>();
+                for (int i = 0; i < previousValues.length; i++) {
+                    Variable variable = level.get(i).variable;
+                    if (Double.doubleToLongBits(previousValues[i]) != Double.doubleToLongBits(variable.getValue())) {
+                        markReaders(variable, affected);
+                    }
+                }
+                for (Formula formula : affected) {
+                    add(levels, formula);
+                }
+            }
+        } finally {
+            for (Set<Formula> level : levels.values()) {
+                dirty.addAll(level);
+            }
+            evaluations += result;
+        }
+        return result;
+    }
+
+    private void add(TreeMap<Integer, Set<Formula>> levels, Formula formula) {
+        Set<Formula> level = levels.get(formula.level);
+        if (level == null) {
+            level = new LinkedHashSet<Formula>();
+            levels.put(formula.level, level);
+        }
+        level.add(formula);
+    }
+
+    /*
+     * Evaluates the given formulas, which don't depend on each other. Large levels are split into tasks which are
+     * evaluated by the executor.
+     */
+    private void evaluateLevel(final List<Formula> level) {
+        int tasks = executor == null ? 1 : Math.min(Runtime.getRuntime().availableProcessors(),
+                                                    level.size() / MIN_FORMULAS_PER_TASK);
+        if (tasks <= 1) {
+            evaluate(level, 0, level.size());
+            return;
+        }
+
+        List<Callable<Void>> callables = new ArrayList<Callable<Void>>();
+        int taskSize = (level.size() + tasks - 1) / tasks;
+        for (int start = 0; start < level.size(); start += taskSize) {
+            final int from = start;
+            final int to = Math.min(level.size(), start + taskSize);
+            callables.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    evaluate(level, from, to);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(callables)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a parallel evaluation", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void evaluate(List<Formula> level, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Formula formula = level.get(i);
+            formula.variable.setValue(formula.expression.evaluate());
+        }
+    }
+
+    /**
+     * Returns the expression of the formula with the given name.
+     *
+     * @param name the name of the formula
+     * @return the parsed formula or <tt>null</tt> if no formula with the given name is defined
+     */
+    public synchronized Expression getExpression(String name) {
+        Formula formula = formulas.get(name);
+        return formula == null ? null : formula.expression;
+    }
+
+    /**
+     * Returns the names of all formulas in the order of their definition.
+     *
+     * @return the names of all defined formulas
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<String>(formulas.keySet());
+    }
+
+    /**
+     * Returns the names of the formulas which need to be evaluated by the next call of {@link #recompute()}.
+     * <p>
+     * This only contains the formulas which directly read a changed variable. Formulas depending on those are only
+     * evaluated if the result of a dirty formula actually changes.
+     * </p>
+     *
+     * @return the names of all dirty formulas
+     */
+    public synchronized Set<String> getDirtyNames() {
+        Set<String> result = new LinkedHashSet<String>();
+        for (Formula formula : dirty) {
+            result.add(formula.name);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total number of formula evaluations performed by {@link #recompute()}.
+     *
+     * @return the number of formulas evaluated so far
+     */
+    public synchronized long getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * Returns the scope used to parse the formulas and to store their results.
+     *
+     * @return the scope of this graph
+     */
+    public Scope getScope() {
+        return scope;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Formula formula : formulas.values()) {
+            sb.append(formula).append("\n");
+        }
+        return sb.toString();
+    }
+}
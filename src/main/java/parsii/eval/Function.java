@@ -12,6 +12,12 @@ import java.util.List;
 
 /**
  * Defines a function which can be referenced and evaluated from within expressions.
+ * <p>
+ * Calling {@link #eval(java.util.List)} requires to wrap all arguments into a list. Functions which are invoked very
+ * often should therefore also implement one of the specialized interfaces {@link UnaryDoubleFunction},
+ * {@link BinaryDoubleFunction}, {@link NaryDoubleFunction} or {@link LazyFunction} (or extend {@link UnaryFunction}
+ * or {@link BinaryFunction}), which are invoked directly by {@link FunctionCall}.
+ * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
@@ -8,22 +8,343 @@
 
 package parsii.eval;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Represents the invocation of a function.
+ * <p>
+ * The kind of the function is determined once it is set, so that functions implementing one of the specialized
+ * interfaces (like {@link UnaryDoubleFunction}) are invoked directly with primitive values. Subclasses of
+ * {@link UnaryFunction} and {@link BinaryFunction} which override <tt>eval(List)</tt> are always invoked via this
+ * method, as they might not pass their parameters on to the primitive variant.
+ * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
  */
 public class FunctionCall extends Expression {
-    private List<Expression> parameters = new ArrayList<Expression>();
+
+    /*
+     * Determines how the function is invoked
+     */
+    private static final int GENERIC = 0;
+    private static final int UNARY = 1;
+    private static final int BINARY = 2;
+    private static final int UNARY_DOUBLE = 3;
+    private static final int BINARY_DOUBLE = 4;
+    private static final int NARY_DOUBLE = 5;
+    private static final int LAZY = 6;
+
+    private Expression[] parameters = new Expression[0];
+    private final List<Expression> parameterList = new ParameterList();
     private Function function;
+    private int kind;
+    private BatchFunction batchFunction;
+
+    /*
+     * Keeps the state of the last invocation of a n-ary or lazy function, so that it can be reused by the next one.
+     * An invocation takes the spare state and puts it back once it is finished. Therefore concurrent or nested
+     * invocations of this call never share their state - they simply create a new one.
+     */
+    private volatile Invocation spare;
+    private static final AtomicReferenceFieldUpdater<FunctionCall, Invocation> SPARE =
+            AtomicReferenceFieldUpdater.newUpdater(FunctionCall.class, Invocation.class, "spare");
+
+    /*
+     * Remembers for each class of unary or binary functions, whether it overrides eval(List)
+     */
+    private static final Map<Class<?>, Boolean> listEvalOverrides =
+            new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /*
+     * Caches the structural hash code, 0 means that it hasn't been computed yet
+     */
+    private int hash;
 
     @Override
     public double evaluate() {
-        return function.eval(parameters);
+        return invoke(parameters, null);
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        return invoke(parameters, frame);
+    }
+
+    /*
+     * Evaluates the given parameter either using the given frame or, if the frame is null, the variables
+     */
+    private static double evaluate(Expression parameter, double[] frame) {
+        return frame == null ? parameter.evaluate() : parameter.evaluate(frame);
+    }
+
+    /*
+     * Invokes the function for the given parameters, which are either the parameters of this call or pre-computed
+     * values when evaluating a batch
+     */
+    private double invoke(Expression[] params, double[] frame) {
+        switch (kind) {
+            case UNARY: {
+                double a = evaluate(params[0], frame);
+                return Double.isNaN(a) ? a : ((UnaryFunction) function).eval(a);
+            }
+            case BINARY: {
+                double a = evaluate(params[0], frame);
+                if (Double.isNaN(a)) {
+                    return a;
+                }
+                double b = evaluate(params[1], frame);
+                return Double.isNaN(b) ? b : ((BinaryFunction) function).eval(a, b);
+            }
+            case UNARY_DOUBLE: {
+                double a = evaluate(params[0], frame);
+                return Double.isNaN(a) ? a : ((UnaryDoubleFunction) function).eval(a);
+            }
+            case BINARY_DOUBLE: {
+                double a = evaluate(params[0], frame);
+                if (Double.isNaN(a)) {
+                    return a;
+                }
+                double b = evaluate(params[1], frame);
+                return Double.isNaN(b) ? b : ((BinaryDoubleFunction) function).eval(a, b);
+            }
+            case NARY_DOUBLE: {
+                Invocation invocation = acquireInvocation();
+                try {
+                    double[] values = invocation.getValues(params.length);
+                    for (int i = 0; i < params.length; i++) {
+                        values[i] = evaluate(params[i], frame);
+                        if (Double.isNaN(values[i])) {
+                            return values[i];
+                        }
+                    }
+                    return ((NaryDoubleFunction) function).eval(values, params.length);
+                } finally {
+                    releaseInvocation(invocation);
+                }
+            }
+            case LAZY: {
+                Invocation invocation = acquireInvocation();
+                try {
+                    invocation.parameters = params;
+                    invocation.frame = frame;
+                    return ((LazyFunction) function).eval(invocation);
+                } finally {
+                    releaseInvocation(invocation);
+                }
+            }
+            default:
+                return function.eval(toList(params, frame));
+        }
+    }
+
+    /*
+     * Creates the list of arguments passed to a generic function
+     */
+    private List<Expression> toList(Expression[] params, double[] frame) {
+        if (frame == null) {
+            return params == parameters ? parameterList : Arrays.asList(params);
+        }
+        Expression[] arguments = new Expression[params.length];
+        for (int i = 0; i < params.length; i++) {
+            arguments[i] = new FrameBoundExpression(params[i], frame);
+        }
+        return Arrays.asList(arguments);
+    }
+
+    /**
+     * Invokes a unary function for an already evaluated argument.
+     * <p>
+     * Must only be called if {@link #isUnary()} is <tt>true</tt>. The argument must not be NaN.
+     * </p>
+     *
+     * @param a the argument of the function
+     * @return the result of the function
+     */
+    double apply(double a) {
+        if (kind == UNARY) {
+            return ((UnaryFunction) function).eval(a);
+        }
+        return ((UnaryDoubleFunction) function).eval(a);
+    }
+
+    /**
+     * Invokes a binary function for already evaluated arguments.
+     * <p>
+     * Must only be called if {@link #isBinary()} is <tt>true</tt>. Neither argument must be NaN.
+     * </p>
+     *
+     * @param a the first argument of the function
+     * @param b the second argument of the function
+     * @return the result of the function
+     */
+    double apply(double a, double b) {
+        if (kind == BINARY) {
+            return ((BinaryFunction) function).eval(a, b);
+        }
+        return ((BinaryDoubleFunction) function).eval(a, b);
+    }
+
+    /**
+     * Determines if the function takes exactly one argument, which is evaluated before the function is invoked.
+     *
+     * @return <tt>true</tt> if the function can be invoked using {@link #apply(double)}
+     */
+    boolean isUnary() {
+        return (kind == UNARY || kind == UNARY_DOUBLE) && parameters.length == 1;
+    }
+
+    /**
+     * Determines if the function takes exactly two arguments, which are evaluated before the function is invoked.
+     *
+     * @return <tt>true</tt> if the function can be invoked using {@link #apply(double, double)}
+     */
+    boolean isBinary() {
+        return (kind == BINARY || kind == BINARY_DOUBLE) && parameters.length == 2;
+    }
+
+    /*
+     * Takes the spare invocation state or creates a new one if it is currently in use
+     */
+    private Invocation acquireInvocation() {
+        Invocation invocation = SPARE.getAndSet(this, null);
+        return invocation == null ? new Invocation() : invocation;
+    }
+
+    /*
+     * Returns the invocation state so that it can be reused by the next invocation
+     */
+    private void releaseInvocation(Invocation invocation) {
+        invocation.parameters = null;
+        invocation.frame = null;
+        spare = invocation;
+    }
+
+    /*
+     * Contains the state of an invocation: The computed values of a n-ary function or the parameters provided to a
+     * lazy function
+     */
+    private static class Invocation implements LazyFunction.Arguments {
+        private double[] values;
+        private Expression[] parameters;
+        private double[] frame;
+
+        private double[] getValues(int size) {
+            if (values == null || values.length != size) {
+                values = new double[size];
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return parameters.length;
+        }
+
+        @Override
+        public double evaluate(int index) {
+            return FunctionCall.evaluate(parameters[index], frame);
+        }
+    }
+
+    /*
+     * Passes a parameter to a function so that it is evaluated using the given frame, even if the function
+     * invokes evaluate() without a frame
+     */
+    private static class FrameBoundExpression extends Expression {
+        private final Expression expression;
+        private final double[] frame;
+
+        private FrameBoundExpression(Expression expression, double[] frame) {
+            this.expression = expression;
+            this.frame = frame;
+        }
+
+        @Override
+        public double evaluate() {
+            return expression.evaluate(frame);
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return expression.evaluate(frame);
+        }
+
+        @Override
+        public boolean isConstant() {
+            return expression.isConstant();
+        }
+
+        @Override
+        public String toString() {
+            return expression.toString();
+        }
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        if (function instanceof BatchFunction) {
+            evaluateColumns(batch, result);
+        } else if (kind == UNARY) {
+            parameters[0].evaluate(batch, result);
+            ((UnaryFunction) function).eval(result, batch.getLength());
+        } else if (kind == BINARY) {
+            parameters[0].evaluate(batch, result);
+            double[] b = batch.acquireBuffer();
+            parameters[1].evaluate(batch, b);
+            ((BinaryFunction) function).eval(result, b, batch.getLength());
+            batch.releaseBuffer(b);
+        } else if (function == Functions.IF
+                   && LogicalChain.isPure(parameters[1])
+                   && LogicalChain.isPure(parameters[2])) {
+            evaluateIf(batch, result);
+        } else if (kind == LAZY) {
+            // Only the function knows which parameters need to be computed. This also applies to IF if one of its
+            // branches has side effects, as only the branch selected per row must be evaluated.
+            batch.evaluateRowByRow(this, result);
+        } else {
+            evaluateColumns(batch, result);
+        }
+    }
+
+    /*
+     * Both branches are computed for the whole block and the result is selected per row. This is only done if both
+     * branches are free of side effects, so that computing the branch which isn't selected doesn't change anything.
+     */
+    private void evaluateIf(Batch batch, double[] result) {
+        parameters[0].evaluate(batch, result);
+        double[] whenTrue = batch.acquireBuffer();
+        parameters[1].evaluate(batch, whenTrue);
+        double[] whenFalse = batch.acquireBuffer();
+        parameters[2].evaluate(batch, whenFalse);
+        for (int i = 0; i < batch.getLength(); i++) {
+            double check = result[i];
+            if (!Double.isNaN(check)) {
+                result[i] = check == 1d ? whenTrue[i] : whenFalse[i];
+            }
+        }
+        batch.releaseBuffer(whenTrue);
+        batch.releaseBuffer(whenFalse);
+    }
+
+    /*
+     * Computes all parameters for the whole block and then invokes the batch function once.
+     */
+    private void evaluateColumns(Batch batch, double[] result) {
+        double[][] columns = new double[parameters.length][];
+        for (int i = 0; i < parameters.length; i++) {
+            columns[i] = batch.acquireBuffer();
+            parameters[i].evaluate(batch, columns[i]);
+        }
+        batchFunction.eval(columns, result, batch.getLength());
+        for (double[] column : columns) {
+            batch.releaseBuffer(column);
+        }
     }
 
     @Override
@@ -46,6 +367,58 @@ public class FunctionCall extends Expression {
      */
     public void setFunction(Function function) {
         this.function = function;
+        this.hash = 0;
+        if (function instanceof UnaryFunction && !overridesListEval(function, UnaryFunction.class)) {
+            kind = UNARY;
+        } else if (function instanceof BinaryFunction && !overridesListEval(function, BinaryFunction.class)) {
+            kind = BINARY;
+        } else if (function instanceof UnaryDoubleFunction) {
+            kind = UNARY_DOUBLE;
+        } else if (function instanceof BinaryDoubleFunction) {
+            kind = BINARY_DOUBLE;
+        } else if (function instanceof NaryDoubleFunction) {
+            kind = NARY_DOUBLE;
+        } else if (function instanceof LazyFunction) {
+            kind = LAZY;
+        } else {
+            kind = GENERIC;
+        }
+        if (function instanceof BatchFunction) {
+            batchFunction = (BatchFunction) function;
+        } else if (function != null) {
+            // The adapter invokes the scalar function per row, using pre-computed parameters
+            batchFunction = new BatchFunctionAdapter(function);
+        }
+    }
+
+    /*
+     * Determines if the class of the given function overrides eval(List) below the given base class
+     */
+    private static boolean overridesListEval(Function function, Class<?> base) {
+        Boolean result = listEvalOverrides.get(function.getClass());
+        if (result == null) {
+            result = Boolean.FALSE;
+            for (Class<?> type = function.getClass(); type != base; type = type.getSuperclass()) {
+                try {
+                    type.getDeclaredMethod("eval", List.class);
+                    result = Boolean.TRUE;
+                    break;
+                } catch (NoSuchMethodException e) {
+                    // Check the superclass...
+                }
+            }
+            listEvalOverrides.put(function.getClass(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the function which is evaluated.
+     *
+     * @return the function to evaluate
+     */
+    public Function getFunction() {
+        return function;
     }
 
     /**
@@ -54,16 +427,108 @@ public class FunctionCall extends Expression {
      * @param expression the parameter to add
      */
     public void addParameter(Expression expression) {
-        parameters.add(expression);
+        parameterList.add(expression);
     }
 
     /**
      * Returns all parameters added so far.
+     * <p>
+     * The list is backed by this call: Changes to the list are reflected in the parameters used to evaluate the call.
+     * </p>
      *
-     * @return a list of parameters added to this call
+     * @return the list of parameters added to this call
      */
     public List<Expression> getParameters() {
-        return parameters;
+        return parameterList;
     }
 
+    /*
+     * Provides the parameters as list, while the array is used to evaluate the call
+     */
+    private class ParameterList extends AbstractList<Expression> {
+
+        @Override
+        public Expression get(int index) {
+            return parameters[index];
+        }
+
+        @Override
+        public int size() {
+            return parameters.length;
+        }
+
+        @Override
+        public Expression set(int index, Expression element) {
+            Expression previous = parameters[index];
+            Expression[] copy = parameters.clone();
+            copy[index] = element;
+            update(copy);
+            return previous;
+        }
+
+        @Override
+        public void add(int index, Expression element) {
+            if (index < 0 || index > parameters.length) {
+                throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, parameters.length));
+            }
+            Expression[] copy = new Expression[parameters.length + 1];
+            System.arraycopy(parameters, 0, copy, 0, index);
+            copy[index] = element;
+            System.arraycopy(parameters, index, copy, index + 1, parameters.length - index);
+            update(copy);
+        }
+
+        @Override
+        public Expression remove(int index) {
+            Expression previous = parameters[index];
+            Expression[] copy = new Expression[parameters.length - 1];
+            System.arraycopy(parameters, 0, copy, 0, index);
+            System.arraycopy(parameters, index + 1, copy, index, copy.length - index);
+            update(copy);
+            return previous;
+        }
+
+        /*
+         * Replaces the parameters by a new array, so that evaluations in progress keep using the previous one
+         */
+        private void update(Expression[] newParameters) {
+            parameters = newParameters;
+            hash = 0;
+            modCount++;
+        }
+    }
+
+    /**
+     * Determines if the given object is an equal function call.
+     * <p>
+     * Two calls are equal if they invoke the same function using equal parameters. Note that this also holds for
+     * functions which aren't natural (see {@link Function#isNaturalFunction()}), even if the calls might yield
+     * different results.
+     * </p>
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is structurally equal to this call, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof FunctionCall)) {
+            return false;
+        }
+        FunctionCall other = (FunctionCall) obj;
+        return function == other.function
+               && hashCode() == other.hashCode()
+               && Arrays.equals(parameters, other.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        if (hash == 0) {
+            int result = 31 * System.identityHashCode(function) + Arrays.hashCode(parameters);
+            hash = result == 0 ? 1 : result;
+        }
+        return hash;
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Contains the functions which can be referenced by name from within an expression.
+ * <p>
+ * Each {@link Parser} uses a registry to resolve function names. By default, this is the registry returned by
+ * {@link #getDefault()}, which contains all functions defined in {@link Functions}. Different sets of functions
+ * (e.g. per tenant) can be provided by creating separate registries and passing them to the parser.
+ * </p>
+ * <p>
+ * A registry can be safely used by many threads. The functions are kept in a hash map which is never modified but
+ * replaced by a modified copy when a function is registered. Therefore lookups don't need any locking, while changes
+ * are synchronized per registry.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class FunctionRegistry {
+
+    /*
+     * Contains the current functions. This map is never modified after it was published.
+     */
+    private volatile Map<String, Function> functions = Collections.emptyMap();
+
+    private static final FunctionRegistry DEFAULT = new FunctionRegistry();
+
+    /*
+     * Setup well known functions
+     */
+    static {
+        DEFAULT.register("sin", Functions.SIN);
+        DEFAULT.register("cos", Functions.COS);
+        DEFAULT.register("tan", Functions.TAN);
+        DEFAULT.register("sinh", Functions.SINH);
+        DEFAULT.register("cosh", Functions.COSH);
+        DEFAULT.register("tanh", Functions.TANH);
+        DEFAULT.register("asin", Functions.ASIN);
+        DEFAULT.register("acos", Functions.ACOS);
+        DEFAULT.register("atan", Functions.ATAN);
+        DEFAULT.register("atan2", Functions.ATAN2);
+        DEFAULT.register("deg", Functions.DEG);
+        DEFAULT.register("rad", Functions.RAD);
+        DEFAULT.register("abs", Functions.ABS);
+        DEFAULT.register("round", Functions.ROUND);
+        DEFAULT.register("ceil", Functions.CEIL);
+        DEFAULT.register("floor", Functions.FLOOR);
+        DEFAULT.register("exp", Functions.EXP);
+        DEFAULT.register("ln", Functions.LN);
+        DEFAULT.register("log", Functions.LOG);
+        DEFAULT.register("sqrt", Functions.SQRT);
+        DEFAULT.register("min", Functions.MIN);
+        DEFAULT.register("max", Functions.MAX);
+        DEFAULT.register("rnd", Functions.RND);
+        DEFAULT.register("sign", Functions.SIGN);
+        DEFAULT.register("if", Functions.IF);
+    }
+
+    /**
+     * Creates a new and empty registry.
+     */
+    public FunctionRegistry() {
+    }
+
+    /**
+     * Creates a new registry which initially contains all functions of the given registry.
+     * <p>
+     * Later changes of either registry are not visible in the other one.
+     * </p>
+     *
+     * @param source the registry to copy the functions from
+     */
+    public FunctionRegistry(FunctionRegistry source) {
+        this.functions = source.functions;
+    }
+
+    /**
+     * Returns the registry used by parsers which are not supplied with a registry.
+     *
+     * @return the default registry containing all functions of {@link Functions}
+     */
+    public static FunctionRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Registers a new function.
+     * <p>
+     * A function must be registered before an expression is parsed in order to be visible.
+     * </p>
+     *
+     * @param name     the name of the function. If a function with the same name is already available, it will be
+     *                 overridden
+     * @param function the function which is invoked as an expression is evaluated
+     */
+    public synchronized void register(String name, Function function) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        if (function == null) {
+            throw new IllegalArgumentException("function must not be null");
+        }
+        Map<String, Function> copy = new HashMap<String, Function>(functions);
+        copy.put(name, function);
+        functions = copy;
+    }
+
+    /**
+     * Removes the function with the given name.
+     *
+     * @param name the name of the function to remove
+     */
+    public synchronized void unregister(String name) {
+        if (functions.containsKey(name)) {
+            Map<String, Function> copy = new HashMap<String, Function>(functions);
+            copy.remove(name);
+            functions = copy;
+        }
+    }
+
+    /**
+     * Returns the function with the given name.
+     *
+     * @param name the name of the function
+     * @return the function registered for the given name or <tt>null</tt> if no such function exists
+     */
+    public Function getFunction(String name) {
+        return functions.get(name);
+    }
+
+    /**
+     * Returns the names of all registered functions.
+     *
+     * @return the names of all functions known at the time of the call
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(functions.keySet());
+    }
+}
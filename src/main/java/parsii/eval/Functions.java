@@ -89,6 +89,13 @@ public class Functions {
         protected double eval(double a) {
             return Math.abs(a);
         }
+
+        @Override
+        protected void eval(double[] a, int length) {
+            for (int i = 0; i < length; i++) {
+                a[i] = Math.abs(a[i]);
+            }
+        }
     };
 
     /**
@@ -150,6 +157,13 @@ public class Functions {
         protected double eval(double a) {
             return Math.floor(a);
         }
+
+        @Override
+        protected void eval(double[] a, int length) {
+            for (int i = 0; i < length; i++) {
+                a[i] = Math.floor(a[i]);
+            }
+        }
     };
 
     /**
@@ -160,6 +174,13 @@ public class Functions {
         protected double eval(double a) {
             return Math.ceil(a);
         }
+
+        @Override
+        protected void eval(double[] a, int length) {
+            for (int i = 0; i < length; i++) {
+                a[i] = Math.ceil(a[i]);
+            }
+        }
     };
 
     /**
@@ -170,6 +191,13 @@ public class Functions {
         protected double eval(double a) {
             return Math.sqrt(a);
         }
+
+        @Override
+        protected void eval(double[] a, int length) {
+            for (int i = 0; i < length; i++) {
+                a[i] = Math.sqrt(a[i]);
+            }
+        }
     };
 
     /**
@@ -204,22 +232,44 @@ public class Functions {
 
     /**
      * Provides access to {@link Math#min(double, double)}
+     * <p>
+     * Single values and batches yield the same results: NaN is returned if either argument is NaN and <tt>-0.0</tt>
+     * is considered smaller than <tt>0.0</tt>.
+     * </p>
      */
     public static final Function MIN = new BinaryFunction() {
         @Override
         protected double eval(double a, double b) {
             return Math.min(a, b);
         }
+
+        @Override
+        protected void eval(double[] a, double[] b, int length) {
+            for (int i = 0; i < length; i++) {
+                a[i] = Math.min(a[i], b[i]);
+            }
+        }
     };
 
     /**
      * Provides access to {@link Math#max(double, double)}
+     * <p>
+     * Single values and batches yield the same results: NaN is returned if either argument is NaN and <tt>-0.0</tt>
+     * is considered greater than <tt>0.0</tt>.
+     * </p>
      */
     public static final Function MAX = new BinaryFunction() {
         @Override
         protected double eval(double a, double b) {
             return Math.max(a, b);
         }
+
+        @Override
+        protected void eval(double[] a, double[] b, int length) {
+            for (int i = 0; i < length; i++) {
+                a[i] = Math.max(a[i], b[i]);
+            }
+        }
     };
 
     /**
@@ -230,6 +280,11 @@ public class Functions {
         protected double eval(double a) {
             return Math.random() * a;
         }
+
+        @Override
+        public boolean isNaturalFunction() {
+            return false;
+        }
     };
 
     /**
@@ -269,12 +324,25 @@ public class Functions {
      * expression which is being evaluated if the condition is not 1.
      * </p>
      */
-    public static final Function IF = new Function() {
+    public static final Function IF = new LazyFunction() {
         @Override
         public int getNumberOfArguments() {
             return 3;
         }
 
+        @Override
+        public double eval(Arguments args) {
+            double check = args.evaluate(0);
+            if (Double.isNaN(check)) {
+                return check;
+            }
+            if (check == 1d) {
+                return args.evaluate(1);
+            } else {
+                return args.evaluate(2);
+            }
+        }
+
         @Override
         public double eval(List<Expression> args) {
             double check = args.get(0).evaluate();
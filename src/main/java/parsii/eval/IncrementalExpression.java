@@ -0,0 +1,326 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps an expression so that evaluating it only recomputes the parts which depend on changed variables.
+ * <p>
+ * Each node of the expression caches its last value. All variables used by the expression are observed (see
+ * {@link VariableListener}): Changing a variable marks each node which depends on it as dirty, all other nodes keep
+ * their cached value. Evaluating the expression then only recomputes the dirty nodes. This is useful for large
+ * expressions of which only a few variables change between two evaluations:
+ * <code>
+ * IncrementalExpression expr = IncrementalExpression.create(Parser.parse(formula, scope));
+ * </code>
+ * </p>
+ * <p>
+ * Nodes which might yield a different value for the same inputs (calls of functions which are not natural, see
+ * {@link Function#isNaturalFunction()}) as well as all nodes containing them, are recomputed on each evaluation.
+ * The same holds for unknown kinds of expressions, therefore the expression should be created from a parsed (and
+ * probably optimized) expression rather than from a compiled one.
+ * </p>
+ * <p>
+ * Chains of <tt>&amp;&amp;</tt> or <tt>||</tt> are kept in a single node, which evaluates its operands one after
+ * another (see {@link LogicalChain}, although the operands are never reordered). Therefore even chains of thousands
+ * of operands neither create deeply nested nodes nor a deep call stack when being evaluated.
+ * </p>
+ * <p>
+ * Only {@link #evaluate()} is performed incrementally. Evaluating with a frame or a batch is delegated to the
+ * original expression. Like {@link Expression#evaluate()}, an incremental expression must only be used by one thread
+ * at a time and the variables should be changed by the same thread.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class IncrementalExpression extends Expression {
+
+    private final Expression source;
+    private final Expression root;
+    private final Map<Variable, Node> variables = new IdentityHashMap<Variable, Node>();
+    private final Map<Expression, Expression> nodes = new IdentityHashMap<Expression, Expression>();
+    private long recomputations;
+
+    /*
+     * Caches the value of a node of the expression. The wrapped expression is a copy of the original node, whose
+     * children are nodes themselves.
+     */
+    private class Node extends Expression implements VariableListener {
+        private final Expression expression;
+        private final boolean volatileValue;
+        private final List<Node> parents = new ArrayList<Node>(1);
+        private boolean dirty = true;
+        private double value;
+
+        private Node(Expression expression, boolean volatileValue) {
+            this.expression = expression;
+            this.volatileValue = volatileValue;
+        }
+
+        @Override
+        public double evaluate() {
+            if (dirty || volatileValue) {
+                value = expression.evaluate();
+                dirty = false;
+                recomputations++;
+            }
+            return value;
+        }
+
+        @Override
+        public double evaluate(double[] frame) {
+            return expression.evaluate(frame);
+        }
+
+        /*
+         * Marks this node and all nodes depending on it as dirty. If a node is already dirty, its parents are either
+         * dirty as well or have been computed without reading the node (e.g. the branch of an if which wasn't taken),
+         * therefore the propagation can stop there.
+         */
+        private void invalidate() {
+            if (dirty) {
+                return;
+            }
+            dirty = true;
+            // The nodes are marked using a work list, as the chain of parents can be very long
+            List<Node> pending = new ArrayList<Node>(parents);
+            while (!pending.isEmpty()) {
+                Node node = pending.remove(pending.size() - 1);
+                if (!node.dirty) {
+                    node.dirty = true;
+                    pending.addAll(node.parents);
+                }
+            }
+        }
+
+        @Override
+        public void valueChanged(Variable variable) {
+            invalidate();
+        }
+
+        @Override
+        public String toString() {
+            return expression.toString();
+        }
+    }
+
+    /**
+     * Creates an incremental expression for the given expression.
+     *
+     * @param expression the expression to evaluate incrementally. The expression itself remains unchanged
+     * @return an expression computing the same value as the given one, which caches the values of all nodes
+     */
+    public static IncrementalExpression create(Expression expression) {
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        return new IncrementalExpression(expression);
+    }
+
+    /*
+     * Use the static create method
+     */
+    private IncrementalExpression(Expression source) {
+        this.source = source;
+        this.root = wrap(source);
+    }
+
+    /*
+     * Creates the node for the given expression. Constants are kept as they are, as they never change. Subtrees which
+     * occur several times in the given expression, are also shared by the resulting nodes.
+     */
+    private Expression wrap(Expression expr) {
+        if (expr.isConstant()) {
+            return expr;
+        }
+        if (expr instanceof VariableReference) {
+            return observe(((VariableReference) expr).getVariable());
+        }
+        Expression result = nodes.get(expr);
+        if (result != null) {
+            return result;
+        }
+        List<Expression> children = new ArrayList<Expression>();
+        Node node = createNode(expr, children);
+        for (Expression child : children) {
+            if (child instanceof Node) {
+                ((Node) child).parents.add(node);
+            }
+        }
+        nodes.put(expr, node);
+        return node;
+    }
+
+    /*
+     * Returns the node for the given variable, which is shared by all references to the variable
+     */
+    private Node observe(Variable variable) {
+        Node node = variables.get(variable);
+        if (node == null) {
+            node = new Node(new VariableReference(variable), false);
+            variable.addListener(node);
+            variables.put(variable, node);
+        }
+        return node;
+    }
+
+    /*
+     * Creates a node containing a copy of the given expression, whose children are wrapped. All wrapped children
+     * are collected in the given list.
+     */
+    private Node createNode(Expression expr, List<Expression> children) {
+        if (expr instanceof BinaryOperation
+            && (((BinaryOperation) expr).getOp() == BinaryOperation.Op.AND
+                || ((BinaryOperation) expr).getOp() == BinaryOperation.Op.OR)) {
+            return createChainNode((BinaryOperation) expr, children);
+        }
+        if (expr instanceof BinaryOperation) {
+            BinaryOperation op = (BinaryOperation) expr;
+            Expression left = add(children, op.getLeft());
+            Expression right = add(children, op.getRight());
+            return new Node(new BinaryOperation(op.getOp(), left, right), isVolatile(children));
+        }
+        if (expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            FunctionCall copy = new FunctionCall();
+            copy.setFunction(call.getFunction());
+            for (Expression parameter : call.getParameters()) {
+                copy.addParameter(add(children, parameter));
+            }
+            // IF isn't natural, as it is lazy, but it yields the same value for the same inputs
+            boolean natural = call.getFunction().isNaturalFunction() || call.getFunction() == Functions.IF;
+            return new Node(copy, !natural || isVolatile(children));
+        }
+        if (expr instanceof Sum) {
+            Sum sum = (Sum) expr;
+            Sum copy = new Sum();
+            copy.addTerm(new Constant(sum.getConstant()), false);
+            List<Expression> terms = sum.getTerms();
+            for (int i = 0; i < terms.size(); i++) {
+                copy.addTerm(add(children, terms.get(i)), sum.isSubtracted(i));
+            }
+            return new Node(copy, isVolatile(children));
+        }
+        if (expr instanceof Product) {
+            Product product = (Product) expr;
+            Product copy = new Product();
+            copy.addFactor(new Constant(product.getConstant()));
+            for (Expression factor : product.getFactors()) {
+                copy.addFactor(add(children, factor));
+            }
+            return new Node(copy, isVolatile(children));
+        }
+        if (expr instanceof LogicalChain) {
+            LogicalChain chain = (LogicalChain) expr;
+            List<Expression> operands = new ArrayList<Expression>();
+            for (Expression operand : chain.getOperands()) {
+                operands.add(add(children, operand));
+            }
+            return new Node(new LogicalChain(chain.getOp(), operands, chain.getInterval()), isVolatile(children));
+        }
+        if (expr instanceof LetExpression) {
+            // The assigned variables are observed like all others, therefore a changed definition invalidates all
+            // nodes reading the variable once the let is re-evaluated.
+            LetExpression let = (LetExpression) expr;
+            LetExpression copy = new LetExpression();
+            for (int i = 0; i < let.getVariables().size(); i++) {
+                copy.addAssignment(let.getVariables().get(i), add(children, let.getDefinitions().get(i)));
+            }
+            copy.setResult(add(children, let.getResult()));
+            return new Node(copy, isVolatile(children));
+        }
+        return new Node(expr, true);
+    }
+
+    /*
+     * Creates a single node for a chain of logical operations. Parsed chains are left handed trees, which can be very
+     * deep, therefore the left spine is collected in a loop. As the operands are nodes, which aren't known to be free
+     * of side effects, the chain never reorders them.
+     */
+    private Node createChainNode(BinaryOperation op, List<Expression> children) {
+        List<BinaryOperation> spine = new ArrayList<BinaryOperation>();
+        Expression current = op;
+        while (current instanceof BinaryOperation && ((BinaryOperation) current).getOp() == op.getOp()) {
+            spine.add((BinaryOperation) current);
+            current = ((BinaryOperation) current).getLeft();
+        }
+        List<Expression> operands = new ArrayList<Expression>();
+        operands.add(add(children, current));
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            operands.add(add(children, spine.get(i).getRight()));
+        }
+        return new Node(new LogicalChain(op.getOp(), operands, Integer.MAX_VALUE), isVolatile(children));
+    }
+
+    private Expression add(List<Expression> children, Expression child) {
+        Expression result = wrap(child);
+        children.add(result);
+        return result;
+    }
+
+    private boolean isVolatile(List<Expression> children) {
+        for (Expression child : children) {
+            if (child instanceof Node && ((Node) child).volatileValue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public double evaluate() {
+        return root.evaluate();
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        return source.evaluate(frame);
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        source.evaluate(batch, result);
+    }
+
+    /**
+     * Returns the number of node computations performed so far.
+     * <p>
+     * This can be used to check how much work is saved by evaluating incrementally.
+     * </p>
+     *
+     * @return the number of times a node was (re-)computed
+     */
+    public long getRecomputations() {
+        return recomputations;
+    }
+
+    /**
+     * Returns the expression which is evaluated incrementally.
+     *
+     * @return the original expression
+     */
+    public Expression getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean isConstant() {
+        return source.isConstant();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+}
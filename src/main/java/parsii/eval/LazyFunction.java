@@ -0,0 +1,62 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a function which decides itself which of its arguments are evaluated.
+ * <p>
+ * Instead of values, the function receives its arguments as {@link Arguments} and evaluates each argument if and when
+ * it is needed. {@link Functions#IF} is an example of such a function: Only one of the two branches is evaluated.
+ * </p>
+ * <p>
+ * Lazy functions are invoked with arguments which are bound to the evaluation in progress. Therefore the same
+ * function works for {@link Expression#evaluate()} as well as for {@link Expression#evaluate(double[])}.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public interface LazyFunction extends Function {
+
+    /**
+     * Provides access to the arguments of a lazy function.
+     */
+    interface Arguments {
+
+        /**
+         * Returns the number of arguments.
+         *
+         * @return the number of arguments passed to the function
+         */
+        int size();
+
+        /**
+         * Evaluates the argument with the given index.
+         * <p>
+         * Each call evaluates the argument again, therefore the result should be kept if it is used several times.
+         * </p>
+         *
+         * @param index the index of the argument, starting at 0
+         * @return the value of the argument
+         */
+        double evaluate(int index);
+    }
+
+    /**
+     * Executes the function with the given arguments.
+     * <p>
+     * The arguments must not be kept after the function returned.
+     * </p>
+     *
+     * @param args the arguments of the function. The number of arguments will exactly match
+     *             <tt>getNumberOfArguments</tt> (unless it is negative)
+     * @return the result of the function evaluated with the given arguments
+     */
+    double eval(Arguments args);
+}
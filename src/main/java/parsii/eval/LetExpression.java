@@ -0,0 +1,137 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assigns the values of some expressions to variables before evaluating a result expression.
+ * <p>
+ * The assignments are performed in the order in which they were added, therefore an assignment may use the variables
+ * assigned before. The result expression can use all assigned variables. This is used to compute intermediate results
+ * only once, even if they are used several times (see {@link SubexpressionEliminator}).
+ * </p>
+ * <p>
+ * Just like {@link Variable#setValue(double)}, evaluating via {@link #evaluate()} modifies the assigned variables.
+ * When evaluating via {@link #evaluate(double[])} the values are only stored in the given frame.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class LetExpression extends Expression {
+    private List<Variable> variables = new ArrayList<Variable>();
+    private List<Expression> definitions = new ArrayList<Expression>();
+    private Expression result;
+
+    @Override
+    public double evaluate() {
+        for (int i = 0; i < variables.size(); i++) {
+            variables.get(i).setValue(definitions.get(i).evaluate());
+        }
+        return result.evaluate();
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        for (int i = 0; i < variables.size(); i++) {
+            variables.get(i).setValue(frame, definitions.get(i).evaluate(frame));
+        }
+        return result.evaluate(frame);
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        double[][] values = new double[variables.size()][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = batch.acquireBuffer();
+            definitions.get(i).evaluate(batch, values[i]);
+            batch.setTemporary(variables.get(i), values[i]);
+        }
+        this.result.evaluate(batch, result);
+        for (int i = 0; i < values.length; i++) {
+            batch.setTemporary(variables.get(i), null);
+            batch.releaseBuffer(values[i]);
+        }
+    }
+
+    @Override
+    public Expression simplify() {
+        for (int i = 0; i < definitions.size(); i++) {
+            definitions.set(i, definitions.get(i).simplify());
+        }
+        result = result.simplify();
+        return this;
+    }
+
+    /**
+     * Adds an assignment which is performed before the result is evaluated.
+     *
+     * @param variable   the variable to assign
+     * @param definition the expression which computes the value of the variable
+     * @throws IllegalArgumentException if the variable is constant
+     */
+    public void addAssignment(Variable variable, Expression definition) {
+        if (variable.isConstant()) {
+            throw new IllegalArgumentException(String.format("%s is constant!", variable.getName()));
+        }
+        variables.add(variable);
+        definitions.add(definition);
+    }
+
+    /**
+     * Returns all assigned variables.
+     *
+     * @return the variables in the order in which they are assigned
+     */
+    public List<Variable> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Returns the expressions which compute the values of the assigned variables.
+     *
+     * @return the definitions in the same order as {@link #getVariables()}
+     */
+    public List<Expression> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * Sets the expression which is evaluated once all assignments have been performed.
+     *
+     * @param result the expression which computes the result
+     */
+    public void setResult(Expression result) {
+        this.result = result;
+    }
+
+    /**
+     * Returns the expression which computes the result.
+     *
+     * @return the result expression
+     */
+    public Expression getResult() {
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < variables.size(); i++) {
+            sb.append(variables.get(i).getName());
+            sb.append(" := ");
+            sb.append(definitions.get(i));
+            sb.append("; ");
+        }
+        sb.append(result);
+        return sb.toString();
+    }
+}
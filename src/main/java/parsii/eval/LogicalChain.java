@@ -0,0 +1,427 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Represents a chain of logical operations with the same operator like <tt>a &amp;&amp; b &amp;&amp; c</tt>, which
+ * reorders its operands based on how often each of them determines the result.
+ * <p>
+ * Just like a {@link BinaryOperation}, the operands are evaluated one after another until one determines the result
+ * (an operand which isn't 1 for <tt>&amp;&amp;</tt> or an operand which is 1 for <tt>||</tt>). For each operand the
+ * chain counts how often it was evaluated and how often it determined the result. Every <tt>interval</tt>
+ * evaluations, the operands are sorted so that the one deciding most often is evaluated first. As the counters are
+ * halved at each reordering, the chain adapts to changing inputs.
+ * </p>
+ * <p>
+ * Only operands without side effects (those built out of constants, variables, operations and calls of natural
+ * functions) are reordered. Any other operand stays in place and operands are never moved across it. Note that the
+ * cost of an operand is not taken into account, only how selective it is.
+ * </p>
+ * <p>
+ * Chains are created by {@link #adaptive(Expression)}, which replaces all chains of <tt>&amp;&amp;</tt> or
+ * <tt>||</tt> within an expression:
+ * <code>
+ * Expression expr = LogicalChain.adaptive(Parser.parse("a &gt; 3 &amp;&amp; check(b) &amp;&amp; c = 1", scope));
+ * </code>
+ * </p>
+ * <p>
+ * A chain can be evaluated by several threads using {@link #evaluate(double[])}. The counters are not synchronized,
+ * therefore some counts might get lost, which only affects the accuracy of the statistics. The order of the
+ * operands is replaced atomically.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class LogicalChain extends Expression {
+
+    /**
+     * Contains the default number of evaluations after which the operands are reordered
+     */
+    public static final int DEFAULT_INTERVAL = 1024;
+
+    private final BinaryOperation.Op op;
+    private final int interval;
+    private volatile Operand[] operands;
+    private int evaluations;
+
+    /*
+     * Contains an operand along with its statistics
+     */
+    private static class Operand {
+        private final Expression expression;
+        private final boolean pure;
+        private int evaluations;
+        private int decisions;
+
+        private Operand(Expression expression) {
+            this.expression = expression;
+            this.pure = isPure(expression);
+        }
+
+        /*
+         * Returns the fraction of evaluations in which the operand determined the result. Operands which were never
+         * evaluated are treated as never deciding.
+         */
+        private double getSelectivity() {
+            return evaluations == 0 ? 0d : (double) decisions / evaluations;
+        }
+    }
+
+    private static final Comparator<Operand> MOST_SELECTIVE_FIRST = new Comparator<Operand>() {
+        @Override
+        public int compare(Operand a, Operand b) {
+            return Double.compare(b.getSelectivity(), a.getSelectivity());
+        }
+    };
+
+    /**
+     * Creates a new chain for the given operands.
+     *
+     * @param op       the operation to perform, which must be either {@link BinaryOperation.Op#AND} or
+     *                 {@link BinaryOperation.Op#OR}
+     * @param operands the operands in their initial order
+     * @param interval the number of evaluations after which the operands are reordered
+     */
+    public LogicalChain(BinaryOperation.Op op, List<Expression> operands, int interval) {
+        if (op != BinaryOperation.Op.AND && op != BinaryOperation.Op.OR) {
+            throw new IllegalArgumentException(String.format("Not a logical operation: %s", op));
+        }
+        if (operands.isEmpty()) {
+            throw new IllegalArgumentException("operands must not be empty");
+        }
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval < 1");
+        }
+        this.op = op;
+        this.interval = interval;
+        Operand[] initialOperands = new Operand[operands.size()];
+        for (int i = 0; i < initialOperands.length; i++) {
+            initialOperands[i] = new Operand(operands.get(i));
+        }
+        this.operands = initialOperands;
+    }
+
+    /**
+     * Replaces all chains of logical operations within the given expression by adaptive chains.
+     *
+     * @param expression the expression to optimize. The expression itself remains unchanged
+     * @return an expression which computes the same value as the given one but reorders the operands of
+     *         logical operations. If the expression contains no logical operations, it is returned as it is
+     */
+    public static Expression adaptive(Expression expression) {
+        return adaptive(expression, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Replaces all chains of logical operations within the given expression by adaptive chains.
+     *
+     * @param expression the expression to optimize. The expression itself remains unchanged
+     * @param interval   the number of evaluations of a chain after which its operands are reordered
+     * @return an expression which computes the same value as the given one but reorders the operands of
+     *         logical operations
+     */
+    public static Expression adaptive(Expression expression, int interval) {
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval < 1");
+        }
+        return rewrite(expression, interval);
+    }
+
+    /*
+     * Creates a copy of the given node with rewritten children. If no child was changed, the node itself is returned.
+     */
+    private static Expression rewrite(Expression expr, int interval) {
+        if (expr instanceof BinaryOperation) {
+            BinaryOperation op = (BinaryOperation) expr;
+            if (op.getOp() == BinaryOperation.Op.AND || op.getOp() == BinaryOperation.Op.OR) {
+                List<Expression> operands = new ArrayList<Expression>();
+                collect(op, op.getOp(), operands, interval);
+                return new LogicalChain(op.getOp(), operands, interval);
+            }
+            Expression left = rewrite(op.getLeft(), interval);
+            Expression right = rewrite(op.getRight(), interval);
+            if (left == op.getLeft() && right == op.getRight()) {
+                return op;
+            }
+            BinaryOperation result = new BinaryOperation(op.getOp(), left, right);
+            if (op.isSealed()) {
+                result.seal();
+            }
+            return result;
+        }
+        if (expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            FunctionCall result = new FunctionCall();
+            result.setFunction(call.getFunction());
+            boolean changed = false;
+            for (Expression parameter : call.getParameters()) {
+                Expression rewritten = rewrite(parameter, interval);
+                changed |= rewritten != parameter;
+                result.addParameter(rewritten);
+            }
+            return changed ? result : call;
+        }
+        if (expr instanceof Sum) {
+            Sum sum = (Sum) expr;
+            Sum result = new Sum();
+            result.addTerm(new Constant(sum.getConstant()), false);
+            boolean changed = false;
+            List<Expression> terms = sum.getTerms();
+            for (int i = 0; i < terms.size(); i++) {
+                Expression rewritten = rewrite(terms.get(i), interval);
+                changed |= rewritten != terms.get(i);
+                result.addTerm(rewritten, sum.isSubtracted(i));
+            }
+            return changed ? result : sum;
+        }
+        if (expr instanceof Product) {
+            Product product = (Product) expr;
+            Product result = new Product();
+            result.addFactor(new Constant(product.getConstant()));
+            boolean changed = false;
+            for (Expression factor : product.getFactors()) {
+                Expression rewritten = rewrite(factor, interval);
+                changed |= rewritten != factor;
+                result.addFactor(rewritten);
+            }
+            return changed ? result : product;
+        }
+        if (expr instanceof LetExpression) {
+            LetExpression let = (LetExpression) expr;
+            LetExpression result = new LetExpression();
+            boolean changed = false;
+            for (int i = 0; i < let.getVariables().size(); i++) {
+                Expression definition = let.getDefinitions().get(i);
+                Expression rewritten = rewrite(definition, interval);
+                changed |= rewritten != definition;
+                result.addAssignment(let.getVariables().get(i), rewritten);
+            }
+            Expression rewritten = rewrite(let.getResult(), interval);
+            changed |= rewritten != let.getResult();
+            result.setResult(rewritten);
+            return changed ? result : let;
+        }
+        return expr;
+    }
+
+    /*
+     * Flattens nested operations with the same operator into a list of operands. Parsed chains are left handed trees,
+     * which can be very deep, therefore the left spine is walked in a loop instead of using recursion.
+     */
+    private static void collect(Expression expr, BinaryOperation.Op op, List<Expression> operands, int interval) {
+        List<BinaryOperation> spine = new ArrayList<BinaryOperation>();
+        Expression current = expr;
+        while (current instanceof BinaryOperation && ((BinaryOperation) current).getOp() == op) {
+            spine.add((BinaryOperation) current);
+            current = ((BinaryOperation) current).getLeft();
+        }
+        operands.add(rewrite(current, interval));
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            collect(spine.get(i).getRight(), op, operands, interval);
+        }
+    }
+
+    /*
+     * Determines if the expression has no side effects, so that it can be evaluated in any order or not at all
+     */
+    static boolean isPure(Expression expr) {
+        if (expr instanceof Constant || expr instanceof VariableReference) {
+            return true;
+        }
+        if (expr instanceof BinaryOperation) {
+            // Walk the left spine in a loop, as chains of operations can be very deep
+            Expression current = expr;
+            while (current instanceof BinaryOperation) {
+                if (!isPure(((BinaryOperation) current).getRight())) {
+                    return false;
+                }
+                current = ((BinaryOperation) current).getLeft();
+            }
+            return isPure(current);
+        }
+        if (expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            return call.getFunction().isNaturalFunction() && isPure(call.getParameters());
+        }
+        if (expr instanceof Sum) {
+            return isPure(((Sum) expr).getTerms());
+        }
+        if (expr instanceof Product) {
+            return isPure(((Product) expr).getFactors());
+        }
+        if (expr instanceof LogicalChain) {
+            for (Operand operand : ((LogicalChain) expr).operands) {
+                if (!operand.pure) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isPure(List<Expression> expressions) {
+        for (Expression expr : expressions) {
+            if (!isPure(expr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public double evaluate() {
+        Operand[] current = operands;
+        boolean decidingValue = op == BinaryOperation.Op.OR;
+        for (Operand operand : current) {
+            operand.evaluations++;
+            if ((operand.expression.evaluate() == 1) == decidingValue) {
+                operand.decisions++;
+                return completed(decidingValue);
+            }
+        }
+        return completed(!decidingValue);
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        Operand[] current = operands;
+        boolean decidingValue = op == BinaryOperation.Op.OR;
+        for (Operand operand : current) {
+            operand.evaluations++;
+            if ((operand.expression.evaluate(frame) == 1) == decidingValue) {
+                operand.decisions++;
+                return completed(decidingValue);
+            }
+        }
+        return completed(!decidingValue);
+    }
+
+    /*
+     * Counts the evaluation and returns the given result
+     */
+    private double completed(boolean result) {
+        if (++evaluations >= interval) {
+            reorder();
+        }
+        return result ? 1 : 0;
+    }
+
+    /*
+     * Sorts each run of pure operands so that the most selective operand comes first
+     */
+    private synchronized void reorder() {
+        if (evaluations < interval) {
+            return;
+        }
+        evaluations = 0;
+        Operand[] next = operands.clone();
+        int start = 0;
+        for (int i = 0; i <= next.length; i++) {
+            if (i == next.length || !next[i].pure) {
+                // The sort is stable, therefore operands which are equally selective keep their order
+                Arrays.sort(next, start, i, MOST_SELECTIVE_FIRST);
+                start = i + 1;
+            }
+        }
+        for (Operand operand : next) {
+            operand.evaluations /= 2;
+            operand.decisions /= 2;
+        }
+        operands = next;
+    }
+
+    /**
+     * Evaluates all operands for the whole block.
+     * <p>
+     * Just like for {@link BinaryOperation}, all operands are computed for all rows of the block. Therefore no
+     * statistics are recorded.
+     * </p>
+     *
+     * @param batch  provides the input values of the current block
+     * @param result the buffer to store the results in
+     */
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        Operand[] current = operands;
+        int length = batch.getLength();
+        current[0].expression.evaluate(batch, result);
+        for (int row = 0; row < length; row++) {
+            result[row] = result[row] == 1 ? 1 : 0;
+        }
+        double[] values = batch.acquireBuffer();
+        for (int i = 1; i < current.length; i++) {
+            current[i].expression.evaluate(batch, values);
+            if (op == BinaryOperation.Op.AND) {
+                for (int row = 0; row < length; row++) {
+                    result[row] = result[row] == 1 & values[row] == 1 ? 1 : 0;
+                }
+            } else {
+                for (int row = 0; row < length; row++) {
+                    result[row] = result[row] == 1 | values[row] == 1 ? 1 : 0;
+                }
+            }
+        }
+        batch.releaseBuffer(values);
+    }
+
+    /**
+     * Returns the operation performed by this chain.
+     *
+     * @return either {@link BinaryOperation.Op#AND} or {@link BinaryOperation.Op#OR}
+     */
+    public BinaryOperation.Op getOp() {
+        return op;
+    }
+
+    /**
+     * Returns the number of evaluations after which the operands are reordered.
+     *
+     * @return the interval used to reorder the operands
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the operands in the order in which they are currently evaluated.
+     *
+     * @return the operands of the chain
+     */
+    public List<Expression> getOperands() {
+        Operand[] current = operands;
+        List<Expression> result = new ArrayList<Expression>(current.length);
+        for (Operand operand : current) {
+            result.add(operand.expression);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (Operand operand : operands) {
+            if (sb.length() > 1) {
+                sb.append(" ").append(op).append(" ");
+            }
+            sb.append(operand.expression);
+        }
+        return sb.append(")").toString();
+    }
+}
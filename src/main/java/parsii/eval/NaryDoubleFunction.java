@@ -0,0 +1,35 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a function with any number of arguments, which are passed as array of primitive values.
+ * <p>
+ * A {@link FunctionCall} evaluates all arguments into an array and invokes {@link #eval(double[], int)}. If one of
+ * the arguments is NaN, the remaining arguments are not evaluated and NaN is directly returned. Functions accepting a
+ * variable number of arguments return a negative number in {@link #getNumberOfArguments()}.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public interface NaryDoubleFunction extends Function {
+
+    /**
+     * Performs the computation of the function.
+     * <p>
+     * The array might be reused by the caller and must therefore not be kept or modified by the function.
+     * </p>
+     *
+     * @param args the arguments of the function. Only the first <tt>n</tt> elements are valid
+     * @param n    the number of arguments
+     * @return the result of calling the function with the given arguments
+     */
+    double eval(double[] args, int n);
+}
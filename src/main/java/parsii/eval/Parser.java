@@ -10,15 +10,15 @@ package parsii.eval;
 
 import parsii.tokenizer.ParseError;
 import parsii.tokenizer.ParseException;
+import parsii.tokenizer.SymbolTable;
 import parsii.tokenizer.Token;
 import parsii.tokenizer.Tokenizer;
 
 import java.io.Reader;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * Parses a given mathematical expression into an abstract syntax tree which can be evaluated.
@@ -28,7 +28,8 @@ import java.util.TreeMap;
  * insight into the errors within the expression.
  * </p>
  * <p>
- * This is a recursive descending parser which has a method per non-terminal.
+ * This is a recursive descending parser which has a method per non-terminal. Operands of binary operators on the
+ * same level are parsed in a loop, so that only nested brackets and function calls lead to recursion.
  * </p>
  * <p>
  * Using this parser is as easy as:
@@ -42,6 +43,10 @@ import java.util.TreeMap;
  * System.out.println(expr.evaluate());
  * </code>
  * </p>
+ * <p>
+ * Next to single expressions, the parser also supports a statement mode (see {@link #parseStatements(String, Scope)})
+ * in which intermediate results can be assigned to local variables: <tt>t := x*x + y*y; r := sqrt(t); r * cos(phi)</tt>
+ * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
@@ -50,12 +55,59 @@ public class Parser {
     private final Scope scope;
     private List<ParseError> errors = new ArrayList<ParseError>();
     private Tokenizer tokenizer;
-    private static Map<String, Function> functionTable;
+    private final FunctionRegistry functions;
+    private ExpressionInterner interner;
+
+    /*
+     * Contains the local variables assigned in statement mode, which take precedence over the variables of the scope
+     */
+    private Map<String, Variable> locals = new HashMap<String, Variable>();
+
+    /*
+     * Identifies the temporary variable of a local, so that all statements assigning a local of the same name share
+     * one temporary (see Scope.getTemporary) instead of growing the scope each time a statement is parsed
+     */
+    private static class LocalKey {
+        private final String name;
+
+        private LocalKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LocalKey && name.equals(((LocalKey) obj).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    /*
+     * Contains the factors of all known quantifiers. Negative values are used as divisors, as for example 1e-9 cannot
+     * be exactly represented as double, therefore "n" is handled as division by 1e9. This table is filled once and
+     * then only read, therefore it can be shared by all parsers.
+     */
+    private static final SymbolTable<Double> QUANTIFIERS = new SymbolTable<Double>();
+
+    static {
+        QUANTIFIERS.put("n", -1000000000d);
+        QUANTIFIERS.put("u", -1000000d);
+        QUANTIFIERS.put("m", -1000d);
+        QUANTIFIERS.put("K", 1000d);
+        QUANTIFIERS.put("k", 1000d);
+        QUANTIFIERS.put("M", 1000000d);
+        QUANTIFIERS.put("G", 1000000000d);
+    }
 
     /**
      * Registers a new function which can be referenced from within an expression.
      * <p>
-     * A function must be registered before an expression is parsed in order to be visible.
+     * A function must be registered before an expression is parsed in order to be visible. The function is added to
+     * the {@link FunctionRegistry#getDefault() default registry}, which is used by all parsers that aren't supplied
+     * with their own registry.
      * </p>
      *
      * @param name     the name of the function. If a function with the same name is already available, it will be
@@ -63,40 +115,7 @@ public class Parser {
      * @param function the function which is invoked as an expression is evaluated
      */
     public static void registerFunction(String name, Function function) {
-        functionTable.put(name, function);
-    }
-
-    /*
-     * Setup well known functions
-     */
-    static {
-        functionTable = new TreeMap<String, Function>();
-
-        registerFunction("sin", Functions.SIN);
-        registerFunction("cos", Functions.COS);
-        registerFunction("tan", Functions.TAN);
-        registerFunction("sinh", Functions.SINH);
-        registerFunction("cosh", Functions.COSH);
-        registerFunction("tanh", Functions.TANH);
-        registerFunction("asin", Functions.ASIN);
-        registerFunction("acos", Functions.ACOS);
-        registerFunction("atan", Functions.ATAN);
-        registerFunction("atan2", Functions.ATAN2);
-        registerFunction("deg", Functions.DEG);
-        registerFunction("rad", Functions.RAD);
-        registerFunction("abs", Functions.ABS);
-        registerFunction("round", Functions.ROUND);
-        registerFunction("ceil", Functions.CEIL);
-        registerFunction("floor", Functions.FLOOR);
-        registerFunction("exp", Functions.EXP);
-        registerFunction("ln", Functions.LN);
-        registerFunction("log", Functions.LOG);
-        registerFunction("sqrt", Functions.SQRT);
-        registerFunction("min", Functions.MIN);
-        registerFunction("max", Functions.MAX);
-        registerFunction("rnd", Functions.RND);
-        registerFunction("sign", Functions.SIGN);
-        registerFunction("if", Functions.IF);
+        FunctionRegistry.getDefault().register(name, function);
     }
 
     /**
@@ -106,7 +125,7 @@ public class Parser {
      * @throws ParseException if the expression contains one or more errors
      */
     public static Expression parse(String input) throws ParseException {
-        return new Parser(new StringReader(input), Scope.create()).parse();
+        return new Parser(new Tokenizer(input), Scope.create()).parse();
     }
 
     /**
@@ -128,7 +147,7 @@ public class Parser {
      * @throws ParseException if the expression contains one or more errors
      */
     public static Expression parse(String input, Scope scope) throws ParseException {
-        return new Parser(new StringReader(input), scope).parse();
+        return new Parser(new Tokenizer(input), scope).parse();
     }
 
     /**
@@ -143,16 +162,239 @@ public class Parser {
         return new Parser(input, scope).parse();
     }
 
+    /**
+     * Parses the given input into an expression.
+     * <p>Referenced variables will be resolved using the given Scope, functions using the given registry</p>
+     *
+     * @param input     the expression to be parsed
+     * @param scope     the scope used to resolve variables
+     * @param functions the registry used to resolve functions
+     * @return the parsed expression
+     * @throws ParseException if the expression contains one or more errors
+     */
+    public static Expression parse(String input, Scope scope, FunctionRegistry functions) throws ParseException {
+        return new Parser(new Tokenizer(input), scope, functions).parse();
+    }
+
+    /**
+     * Parses the given input into an expression whose nodes are shared with other expressions.
+     * <p>
+     * Once the expression has been parsed and simplified, its nodes are replaced by the canonical instances of the
+     * given interner (see {@link ExpressionInterner}). The resulting expression must therefore not be modified.
+     * </p>
+     *
+     * @param input     the expression to be parsed
+     * @param scope     the scope used to resolve variables
+     * @param functions the registry used to resolve functions
+     * @param interner  the interner used to share identical nodes
+     * @return the parsed expression
+     * @throws ParseException if the expression contains one or more errors
+     */
+    public static Expression parse(String input, Scope scope, FunctionRegistry functions, ExpressionInterner interner)
+            throws ParseException {
+        Parser parser = new Parser(new Tokenizer(input), scope, functions);
+        parser.setInterner(interner);
+        return parser.parse();
+    }
+
+    /**
+     * Parses the given input as a list of statements.
+     * <p>
+     * The input consists of any number of assignments (<tt>name := expression;</tt>) followed by the expression which
+     * computes the result, e.g. <tt>t := x*x + y*y; r := sqrt(t); r * cos(phi)</tt>. Each assigned name is a local
+     * variable which is only visible within the input (after its assignment) and hides a variable of the same name in
+     * the given scope. Locals are assigned a temporary slot of the scope (see {@link Scope#createTemporary()}) and are
+     * computed once per evaluation by a {@link LetExpression}. Therefore frames used to evaluate the result have to be
+     * created after parsing.
+     * </p>
+     *
+     * @param input the statements to be parsed
+     * @param scope the scope used to resolve variables and to create the locals
+     * @return the parsed expression. If locals are assigned, this is a {@link LetExpression}
+     * @throws ParseException if the input contains one or more errors
+     */
+    public static Expression parseStatements(String input, Scope scope) throws ParseException {
+        return parseStatements(input, scope, FunctionRegistry.getDefault());
+    }
+
+    /**
+     * Parses the given input as a list of statements.
+     * <p>Functions will be resolved using the given registry, see {@link #parseStatements(String, Scope)}</p>
+     *
+     * @param input     the statements to be parsed
+     * @param scope     the scope used to resolve variables and to create the locals
+     * @param functions the registry used to resolve functions
+     * @return the parsed expression. If locals are assigned, this is a {@link LetExpression}
+     * @throws ParseException if the input contains one or more errors
+     */
+    public static Expression parseStatements(String input, Scope scope, FunctionRegistry functions)
+            throws ParseException {
+        Parser parser = new Parser(new Tokenizer(input), scope, functions);
+        LetExpression let = new LetExpression();
+        List<Expression> results = new ArrayList<Expression>();
+        parser.statements(let, results, false);
+        parser.checkErrors();
+        if (let.getVariables().isEmpty()) {
+            return results.get(0).simplify();
+        }
+        let.setResult(results.get(0));
+        return let.simplify();
+    }
+
+    /**
+     * Parses the given input as a list of statements computing several results.
+     * <p>
+     * The input consists of assignments of local variables, just like for {@link #parseStatements(String, Scope)},
+     * followed by a comma separated list of results, e.g. <tt>r := sqrt(x*x + y*y); r * cos(phi), r * sin(phi)</tt>.
+     * All results are computed by a single {@link Program}, which computes the locals and all shared subexpressions
+     * only once.
+     * </p>
+     *
+     * @param input the statements to be parsed
+     * @param scope the scope used to resolve variables and to create the locals
+     * @return a program computing all results in the order given in the input
+     * @throws ParseException if the input contains one or more errors
+     */
+    public static Program parseProgram(String input, Scope scope) throws ParseException {
+        return parseProgram(input, scope, FunctionRegistry.getDefault());
+    }
+
+    /**
+     * Parses the given input as a list of statements computing several results.
+     * <p>Functions will be resolved using the given registry, see {@link #parseProgram(String, Scope)}</p>
+     *
+     * @param input     the statements to be parsed
+     * @param scope     the scope used to resolve variables and to create the locals
+     * @param functions the registry used to resolve functions
+     * @return a program computing all results in the order given in the input
+     * @throws ParseException if the input contains one or more errors
+     */
+    public static Program parseProgram(String input, Scope scope, FunctionRegistry functions)
+            throws ParseException {
+        Parser parser = new Parser(new Tokenizer(input), scope, functions);
+        LetExpression let = new LetExpression();
+        List<Expression> results = new ArrayList<Expression>();
+        parser.statements(let, results, true);
+        parser.checkErrors();
+        // Only the assignments are used by the program, the result merely permits to simplify the let expression
+        let.setResult(Constant.EMPTY);
+        let.simplify();
+        for (int i = 0; i < results.size(); i++) {
+            results.set(i, results.get(i).simplify());
+        }
+        return Program.create(let, results, scope);
+    }
+
 
     /*
      * Use one of the static methods to parse an expression
      */
     protected Parser(Reader input, Scope scope) {
+        this(new Tokenizer(input), scope);
+    }
+
+    private Parser(Tokenizer tokenizer, Scope scope) {
+        this(tokenizer, scope, FunctionRegistry.getDefault());
+    }
+
+    private Parser(Tokenizer tokenizer, Scope scope, FunctionRegistry functions) {
+        if (functions == null) {
+            throw new IllegalArgumentException("functions must not be null");
+        }
         this.scope = scope;
-        tokenizer = new Tokenizer(input);
+        this.functions = functions;
+        this.tokenizer = tokenizer;
         tokenizer.setProblemCollector(errors);
     }
 
+    /**
+     * Creates a parser which can be used to parse many expressions one after another.
+     * <p>
+     * Reusing a parser avoids to setup a new parser and tokenizer per expression. A parser must not be used by
+     * several threads at the same time.
+     * </p>
+     *
+     * @param scope the scope used to resolve variables
+     * @return a new parser which can be supplied with input using one of the <tt>parseExpression</tt> methods
+     */
+    public static Parser create(Scope scope) {
+        return new Parser(new Tokenizer(""), scope);
+    }
+
+    /**
+     * Creates a parser which can be used to parse many expressions one after another.
+     *
+     * @param scope     the scope used to resolve variables
+     * @param functions the registry used to resolve functions
+     * @return a new parser which can be supplied with input using one of the <tt>parseExpression</tt> methods
+     * @see #create(Scope)
+     */
+    public static Parser create(Scope scope, FunctionRegistry functions) {
+        return new Parser(new Tokenizer(""), scope, functions);
+    }
+
+    /**
+     * Specifies the interner used to share the nodes of all expressions parsed by this parser.
+     *
+     * @param interner the interner used to share identical nodes or <tt>null</tt> to create independent expressions
+     * @see #parse(String, Scope, FunctionRegistry, ExpressionInterner)
+     */
+    public void setInterner(ExpressionInterner interner) {
+        this.interner = interner;
+    }
+
+    /**
+     * Parses the given input into an expression, reusing this parser.
+     * <p>Referenced variables will be resolved using the scope of this parser</p>
+     *
+     * @param input the expression to be parsed
+     * @return the parsed expression
+     * @throws ParseException if the expression contains one or more errors
+     */
+    public Expression parseExpression(CharSequence input) throws ParseException {
+        tokenizer.reset(input);
+        return reparse();
+    }
+
+    /**
+     * Parses the given range of the given array into an expression, reusing this parser.
+     * <p>
+     * The array is not copied and must therefore not be modified while the expression is parsed.
+     * </p>
+     *
+     * @param input  the array containing the expression to be parsed
+     * @param offset the index of the first character of the expression
+     * @param length the number of characters of the expression
+     * @return the parsed expression
+     * @throws ParseException if the expression contains one or more errors
+     */
+    public Expression parseExpression(char[] input, int offset, int length) throws ParseException {
+        tokenizer.reset(input, offset, length);
+        return reparse();
+    }
+
+    /**
+     * Parses the given input into an expression, reusing this parser.
+     *
+     * @param input the expression to be parsed
+     * @return the parsed expression
+     * @throws ParseException if the expression contains one or more errors
+     */
+    public Expression parseExpression(Reader input) throws ParseException {
+        tokenizer.reset(input);
+        return reparse();
+    }
+
+    /*
+     * Parses the input the tokenizer was reset to. A new list of errors is used, as the previous one might be
+     * referenced by a ParseException
+     */
+    private Expression reparse() throws ParseException {
+        errors = new ArrayList<ParseError>();
+        tokenizer.setProblemCollector(errors);
+        return parse();
+    }
+
     /**
      * Parses the expression in <tt>input</tt>
      *
@@ -161,6 +403,14 @@ public class Parser {
      */
     protected Expression parse() throws ParseException {
         Expression result = expression().simplify();
+        checkErrors();
+        return interner == null ? result : interner.intern(result);
+    }
+
+    /*
+     * Reports unexpected input after the parsed expression and throws a ParseException if any error occurred
+     */
+    private void checkErrors() throws ParseException {
         if (tokenizer.current().isNotEnd()) {
             Token token = tokenizer.consume();
             errors.add(ParseError.error(token,
@@ -170,138 +420,191 @@ public class Parser {
         if (errors.size() > 0) {
             throw ParseException.create(errors);
         }
-        return result;
+    }
+
+    /**
+     * Parser rule for parsing statements.
+     * <p>
+     * Statements are any number of assignments (an identifier followed by := and an <tt>expression</tt>), each
+     * terminated by a semicolon, followed by an <tt>expression</tt> which computes the result. If multiple results
+     * are permitted, further results can follow, separated by commas.
+     * </p>
+     *
+     * @param let             the expression to add the assignments of locals to
+     * @param results         the list to add the results to
+     * @param multipleResults determines if more than one result is permitted
+     */
+    protected void statements(LetExpression let, List<Expression> results, boolean multipleResults) {
+        while (tokenizer.current().isIdentifier() && tokenizer.next().isSymbol(":=")) {
+            String name = tokenizer.consume().getContents();
+            tokenizer.consume(); // :=
+            Expression definition = expression();
+            // The local is only visible after its definition, so that "x := x + 1" refers to the outer x
+            Variable local = scope.getTemporary(new LocalKey(name));
+            let.addAssignment(local, definition);
+            locals.put(name, local);
+            expect(Token.TokenType.SYMBOL, ";");
+        }
+        results.add(expression());
+        while (multipleResults && tokenizer.current().isSymbol(",")) {
+            tokenizer.consume();
+            results.add(expression());
+        }
     }
 
     /**
      * Parser rule for parsing an expression.
      * <p>
      * This is the root rule. An expression is a <tt>relationalExpression</tt> which might be followed by a logical
-     * operator (&& or ||) and another <tt>expression</tt>.
+     * operator (&& or ||) and another <tt>relationalExpression</tt> and so on.
+     * </p>
+     * <p>
+     * Just like all other rules for binary operators, operands on the same level are consumed in a loop instead of
+     * by recursion. Therefore parsing is done in linear time and long chains of operands (like sums of thousands of
+     * terms) do not grow the call stack. Each loop builds a "left handed" AST which performs evaluations in natural
+     * order (from left to right).
      * </p>
      *
      * @return an expression parsed from the given input
      */
     protected Expression expression() {
-        Expression left = relationalExpression();
-        if (tokenizer.current().isSymbol("&&")) {
-            tokenizer.consume();
-            Expression right = expression();
-            return reOrder(left, right, BinaryOperation.Op.AND);
-        } else if (tokenizer.current().isSymbol("||")) {
+        Expression result = relationalExpression();
+        while (true) {
+            BinaryOperation.Op op;
+            if (tokenizer.current().isSymbol("&&")) {
+                op = BinaryOperation.Op.AND;
+            } else if (tokenizer.current().isSymbol("||")) {
+                op = BinaryOperation.Op.OR;
+            } else {
+                return result;
+            }
             tokenizer.consume();
-            Expression right = expression();
-            return reOrder(left, right, BinaryOperation.Op.OR);
+            result = reOrder(result, relationalExpression(), op);
         }
-        return left;
     }
 
     /**
      * Parser rule for parsing a relational expression.
      * <p>
      * A relational expression is a <tt>term</tt> which might be followed by a relational operator
-     * (&lt;,&lt;=,...,&gt;) and another <tt>relationalExpression</tt>.
+     * (&lt;,&lt;=,...,&gt;) and another <tt>term</tt> and so on.
      * </p>
      *
      * @return a relational expression parsed from the given input
      */
     protected Expression relationalExpression() {
-        Expression left = term();
-        if (tokenizer.current().isSymbol("<")) {
-            tokenizer.consume();
-            Expression right = relationalExpression();
-            return reOrder(left, right, BinaryOperation.Op.LT);
-        }
-        if (tokenizer.current().isSymbol("<=")) {
-            tokenizer.consume();
-            Expression right = relationalExpression();
-            return reOrder(left, right, BinaryOperation.Op.LT_EQ);
-        }
-        if (tokenizer.current().isSymbol("=")) {
-            tokenizer.consume();
-            Expression right = relationalExpression();
-            return reOrder(left, right, BinaryOperation.Op.EQ);
-        }
-        if (tokenizer.current().isSymbol(">=")) {
-            tokenizer.consume();
-            Expression right = relationalExpression();
-            return reOrder(left, right, BinaryOperation.Op.GT_EQ);
-        }
-        if (tokenizer.current().isSymbol(">")) {
-            tokenizer.consume();
-            Expression right = relationalExpression();
-            return reOrder(left, right, BinaryOperation.Op.GT);
-        }
-        if (tokenizer.current().isSymbol("!=")) {
+        Expression result = term();
+        while (true) {
+            BinaryOperation.Op op;
+            if (tokenizer.current().isSymbol("<")) {
+                op = BinaryOperation.Op.LT;
+            } else if (tokenizer.current().isSymbol("<=")) {
+                op = BinaryOperation.Op.LT_EQ;
+            } else if (tokenizer.current().isSymbol("=")) {
+                op = BinaryOperation.Op.EQ;
+            } else if (tokenizer.current().isSymbol(">=")) {
+                op = BinaryOperation.Op.GT_EQ;
+            } else if (tokenizer.current().isSymbol(">")) {
+                op = BinaryOperation.Op.GT;
+            } else if (tokenizer.current().isSymbol("!=")) {
+                op = BinaryOperation.Op.NEQ;
+            } else {
+                return result;
+            }
             tokenizer.consume();
-            Expression right = relationalExpression();
-            return reOrder(left, right, BinaryOperation.Op.NEQ);
+            result = reOrder(result, term(), op);
         }
-        return left;
     }
 
     /**
      * Parser rule for parsing a term.
      * <p>
-     * A term is a <tt>product</tt> which might be followed by + or - as operator and another <tt>term</tt>.
+     * A term is a <tt>product</tt> which might be followed by + or - as operator and another <tt>product</tt> and so
+     * on.
      * </p>
      *
      * @return a term parsed from the given input
      */
     protected Expression term() {
-        Expression left = product();
-        if (tokenizer.current().isSymbol("+")) {
-            tokenizer.consume();
-            Expression right = term();
-            return reOrder(left, right, BinaryOperation.Op.ADD);
-        }
-        if (tokenizer.current().isSymbol("-")) {
-            tokenizer.consume();
-            Expression right = term();
-            return reOrder(left, right, BinaryOperation.Op.SUBTRACT);
-        }
-        if (tokenizer.current().isNumber()) {
-            if (tokenizer.current().getContents().startsWith("-")) {
-                Expression right = term();
-                return reOrder(left, right, BinaryOperation.Op.ADD);
+        Expression result = product();
+        while (true) {
+            if (tokenizer.current().isSymbol("+")) {
+                tokenizer.consume();
+                result = reOrder(result, product(), BinaryOperation.Op.ADD);
+            } else if (tokenizer.current().isSymbol("-")) {
+                tokenizer.consume();
+                result = reOrder(result, product(), BinaryOperation.Op.SUBTRACT);
+            } else if (tokenizer.current().isNumber() && tokenizer.current().getContents().startsWith("-")) {
+                // "a -1" is tokenized as "a" and "-1" and therefore treated as "a + -1"
+                result = reOrder(result, product(), BinaryOperation.Op.ADD);
+            } else {
+                return result;
             }
         }
-
-        return left;
     }
 
     /**
      * Parser rule for parsing a product.
      * <p>
-     * A product is a <tt>power</tt> which might be followed by *, / or % as operator and another <tt>product</tt>.
+     * A product is a <tt>power</tt> which might be followed by *, / or % as operator and another <tt>power</tt> and
+     * so on.
      * </p>
      *
      * @return a product parsed from the given input
      */
     protected Expression product() {
-        Expression left = power();
-        if (tokenizer.current().isSymbol("*")) {
-            tokenizer.consume();
-            Expression right = product();
-            return reOrder(left, right, BinaryOperation.Op.MULTIPLY);
-        }
-        if (tokenizer.current().isSymbol("/")) {
+        Expression result = power();
+        while (true) {
+            BinaryOperation.Op op;
+            if (tokenizer.current().isSymbol("*")) {
+                op = BinaryOperation.Op.MULTIPLY;
+            } else if (tokenizer.current().isSymbol("/")) {
+                op = BinaryOperation.Op.DIVIDE;
+            } else if (tokenizer.current().isSymbol("%")) {
+                op = BinaryOperation.Op.MODULO;
+            } else {
+                return result;
+            }
             tokenizer.consume();
-            Expression right = product();
-            return reOrder(left, right, BinaryOperation.Op.DIVIDE);
+            result = reOrder(result, power(), op);
         }
-        if (tokenizer.current().isSymbol("%")) {
+    }
+
+    /**
+     * Parser rule for parsing a power.
+     * <p>
+     * A power is an <tt>atom</tt> which might be followed by ^ or ** as operator and another <tt>atom</tt> and so on.
+     * </p>
+     *
+     * @return a power parsed from the given input
+     */
+    protected Expression power() {
+        Expression result = atom();
+        while (tokenizer.current().isSymbol("^") || tokenizer.current().isSymbol("**")) {
             tokenizer.consume();
-            Expression right = product();
-            return reOrder(left, right, BinaryOperation.Op.MODULO);
+            result = reOrder(result, atom(), BinaryOperation.Op.POWER);
         }
-        return left;
+        return result;
     }
 
     /**
-     * Reorders the operands of the given operation in order to generate a "left handed" AST which performs evaluations
-     * in natural order (from left to right).
+     * Combines the given operands using the given operation.
+     * <p>
+     * Each parser rule for binary operators calls this for every operator it reads, with <tt>left</tt> being the
+     * operation built so far and <tt>right</tt> being the operand which was just parsed. As the rules consume all
+     * operands of one level in a loop, <tt>right</tt> is never an unsealed operation of the same priority and the
+     * result is simply a new {@link BinaryOperation}. Otherwise the operation is pushed down into the left spine of
+     * <tt>right</tt> via {@link #replaceLeft(BinaryOperation, Expression, BinaryOperation.Op)} just like before.
+     * </p>
+     *
+     * @param left  the left operand
+     * @param right the right operand
+     * @param op    the operation to apply
+     * @return the combined expression
+     * @deprecated the parser rules build left handed trees by themselves, this is only kept for subclasses which
+     * override or call it
      */
+    @Deprecated
     protected Expression reOrder(Expression left, Expression right, BinaryOperation.Op op) {
         if (right instanceof BinaryOperation) {
             BinaryOperation rightOp = (BinaryOperation) right;
@@ -313,35 +616,28 @@ public class Parser {
         return new BinaryOperation(op, left, right);
     }
 
+    /**
+     * Replaces the left-most operand of the given operation (on the same priority) by applying the given operation
+     * to <tt>newLeft</tt> and this operand.
+     *
+     * @param target  the operation to rewrite
+     * @param newLeft the new left-most operand
+     * @param op      the operation to apply
+     * @deprecated the parser rules build left handed trees by themselves, this is only kept for subclasses which
+     * override or call it
+     */
+    @Deprecated
     protected void replaceLeft(BinaryOperation target, Expression newLeft, BinaryOperation.Op op) {
-        if (target.getLeft() instanceof BinaryOperation) {
+        while (target.getLeft() instanceof BinaryOperation) {
             BinaryOperation leftOp = (BinaryOperation) target.getLeft();
-            if (!leftOp.isSealed() && leftOp.getOp().getPriority() == op.getPriority()) {
-                replaceLeft(leftOp, newLeft, op);
-                return;
+            if (leftOp.isSealed() || leftOp.getOp().getPriority() != op.getPriority()) {
+                break;
             }
+            target = leftOp;
         }
         target.setLeft(new BinaryOperation(op, newLeft, target.getLeft()));
     }
 
-    /**
-     * Parser rule for parsing a power.
-     * <p>
-     * A power is an <tt>atom</tt> which might be followed by ^ or ** as operator and another <tt>power</tt>.
-     * </p>
-     *
-     * @return a power parsed from the given input
-     */
-    protected Expression power() {
-        Expression left = atom();
-        if (tokenizer.current().isSymbol("^") || tokenizer.current().isSymbol("**")) {
-            tokenizer.consume();
-            Expression right = power();
-            return reOrder(left, right, BinaryOperation.Op.POWER);
-        }
-        return left;
-    }
-
     /**
      * Parser rule for parsing an atom.
      * <p>
@@ -380,35 +676,23 @@ public class Parser {
             if (tokenizer.next().isSymbol("(")) {
                 return functionCall();
             }
-            return new VariableReference(scope.getVariable(tokenizer.consume().getContents()));
+            String name = tokenizer.consume().getContents();
+            Variable local = locals.get(name);
+            return new VariableReference(local != null ? local : scope.getVariable(name));
         }
         if (tokenizer.current().isNumber()) {
-            double value = Double.parseDouble(tokenizer.consume().getContents());
+            double value = tokenizer.consume().getNumericValue();
             if (tokenizer.current().is(Token.TokenType.ID)) {
-                String quantifier = tokenizer.current().getContents().intern();
-                if ("n" == quantifier) {
-                    value /= 1000000000d;
-                    tokenizer.consume();
-                } else if ("u" == quantifier) {
-                    value /= 1000000d;
-                    tokenizer.consume();
-                } else if ("m" == quantifier) {
-                    value /= 1000d;
-                    tokenizer.consume();
-                } else if ("K" == quantifier || "k" == quantifier) {
-                    value *= 1000d;
-                    tokenizer.consume();
-                } else if ("M" == quantifier) {
-                    value *= 1000000d;
-                    tokenizer.consume();
-                } else if ("G" == quantifier) {
-                    value *= 1000000000d;
-                    tokenizer.consume();
-                } else {
-                    Token token = tokenizer.consume();
+                Double quantifier = QUANTIFIERS.get(tokenizer.current().getContents());
+                Token token = tokenizer.consume();
+                if (quantifier == null) {
                     errors.add(ParseError.error(token,
                                                 String.format("Unexpected token: '%s'. Expected a valid quantifier.",
                                                               token.getSource())));
+                } else if (quantifier < 0) {
+                    value /= -quantifier;
+                } else {
+                    value *= quantifier;
                 }
             }
             return new Constant(value);
@@ -428,7 +712,7 @@ public class Parser {
     protected Expression functionCall() {
         FunctionCall call = new FunctionCall();
         Token funToken = tokenizer.consume();
-        Function fun = functionTable.get(funToken.getContents());
+        Function fun = functions.getFunction(funToken.getContents());
         if (fun == null) {
             errors.add(ParseError.error(funToken, String.format("Unknown function: '%s'", funToken.getContents())));
         }
@@ -0,0 +1,506 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates an expression by executing a flat postfix program on a stack machine.
+ * <p>
+ * The expression tree is linearized into an <tt>int[]</tt> of opcodes and operands along with a pool of constants,
+ * variables and functions. Evaluating runs a single loop over the opcodes using a <tt>double[]</tt> as operand
+ * stack. Therefore no virtual calls per node are necessary.
+ * </p>
+ * <p>
+ * {@link #evaluate()} and {@link #evaluate(double[])} use an operand stack which is allocated once per thread,
+ * therefore no memory is allocated per evaluation and a postfix expression can be evaluated by several threads at
+ * once (as long as the values of its variables aren't changed concurrently). Only if a function evaluates the same
+ * postfix expression again while it is being evaluated, a fresh stack is used for the nested evaluation.
+ * </p>
+ * <p>
+ * Using the stack machine is as easy as:
+ * <code>
+ * Expression expr = PostfixExpression.compile(Parser.parse("3 + a * 4", scope));
+ * </code>
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class PostfixExpression extends Expression {
+
+    /*
+     * Opcodes. Those followed by an operand are documented as OPCODE <operand>. The opcodes of binary operations
+     * follow the order of BinaryOperation.Op so that they can be computed as ADD + op.ordinal()
+     */
+    private static final int CONSTANT = 0; // CONSTANT <index into constants>
+    private static final int VARIABLE = 1; // VARIABLE <index into variables>
+    private static final int ADD = 2;
+    private static final int SUBTRACT = 3;
+    private static final int MULTIPLY = 4;
+    private static final int DIVIDE = 5;
+    private static final int MODULO = 6;
+    private static final int POWER = 7;
+    private static final int LT = 8;
+    private static final int LT_EQ = 9;
+    private static final int EQ = 10;
+    private static final int GT_EQ = 11;
+    private static final int GT = 12;
+    private static final int NEQ = 13;
+    private static final int AND = 14; // Not emitted, logical operations are translated into AND_THEN / OR_ELSE
+    private static final int OR = 15; // Not emitted, see above
+    private static final int UNARY_FUNCTION = 16; // UNARY_FUNCTION <index into calls>
+    private static final int BINARY_FUNCTION = 17; // BINARY_FUNCTION <index into calls>
+    private static final int IF = 18; // IF <address of false branch> <address of end>
+    private static final int JUMP = 19; // JUMP <address>
+    private static final int DELEGATE = 20; // DELEGATE <index into delegates>
+    private static final int STORE = 21; // STORE <index into variables>
+    private static final int AND_THEN = 22; // AND_THEN <address of end>
+    private static final int OR_ELSE = 23; // OR_ELSE <address of end>
+    private static final int TO_BOOLEAN = 24;
+
+    private final Expression source;
+    private final int[] code;
+    private final double[] constants;
+    private final Variable[] variables;
+    private final FunctionCall[] calls;
+    private final Expression[] delegates;
+    private final int maxStack;
+    private final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>() {
+        @Override
+        protected Stack initialValue() {
+            return new Stack(maxStack);
+        }
+    };
+
+    /*
+     * The operand stack of a thread, which is marked while an evaluation is in progress
+     */
+    private static class Stack {
+        private final double[] values;
+        private boolean inUse;
+
+        private Stack(int size) {
+            this.values = new double[size];
+        }
+    }
+
+    private PostfixExpression(Expression source, Assembler assembler) {
+        this.source = source;
+        this.code = assembler.getCode();
+        this.constants = assembler.getConstants();
+        this.variables = assembler.variables.toArray(new Variable[assembler.variables.size()]);
+        this.calls = assembler.calls.toArray(new FunctionCall[assembler.calls.size()]);
+        this.delegates = assembler.delegates.toArray(new Expression[assembler.delegates.size()]);
+        this.maxStack = assembler.maxStack;
+    }
+
+    /**
+     * Linearizes the given expression into a postfix program.
+     * <p>
+     * The expression should be simplified (as done by {@link Parser}) before being compiled. Nodes which cannot be
+     * linearized (e.g. calls to user defined functions) are kept and evaluated as they are.
+     * </p>
+     *
+     * @param expression the expression to compile
+     * @return a postfix expression which evaluates to the same values as the given expression
+     */
+    public static PostfixExpression compile(Expression expression) {
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        Assembler assembler = new Assembler();
+        assembler.emit(expression);
+        return new PostfixExpression(expression, assembler);
+    }
+
+    /**
+     * Linearizes the body of the given program.
+     *
+     * @param program the program to compile
+     * @return a program which computes the same results using a postfix expression
+     */
+    public static Program compile(Program program) {
+        if (program == null) {
+            throw new IllegalArgumentException("program must not be null");
+        }
+        return program.withBody(compile(program.getBody()));
+    }
+
+    @Override
+    public double evaluate() {
+        return evaluateOnStack(null);
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        return evaluateOnStack(frame);
+    }
+
+    /*
+     * Runs the program using the stack of the current thread, unless it is already used by an outer evaluation
+     */
+    private double evaluateOnStack(double[] frame) {
+        Stack stack = stacks.get();
+        if (stack.inUse) {
+            return run(new double[maxStack], frame);
+        }
+        stack.inUse = true;
+        try {
+            return run(stack.values, frame);
+        } finally {
+            stack.inUse = false;
+        }
+    }
+
+    /*
+     * Executes the program using the given operand stack. If a frame is given, variables are read from it, otherwise
+     * their current value is used.
+     */
+    private double run(double[] stack, double[] frame) {
+        final int[] code = this.code;
+        int sp = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONSTANT:
+                    stack[++sp] = constants[code[pc++]];
+                    break;
+                case VARIABLE: {
+                    Variable variable = variables[code[pc++]];
+                    stack[++sp] = frame == null ? variable.getValue() : variable.getValue(frame);
+                    break;
+                }
+                case ADD:
+                    sp--;
+                    stack[sp] = stack[sp] + stack[sp + 1];
+                    break;
+                case SUBTRACT:
+                    sp--;
+                    stack[sp] = stack[sp] - stack[sp + 1];
+                    break;
+                case MULTIPLY:
+                    sp--;
+                    stack[sp] = stack[sp] * stack[sp + 1];
+                    break;
+                case DIVIDE:
+                    sp--;
+                    stack[sp] = stack[sp] / stack[sp + 1];
+                    break;
+                case MODULO:
+                    sp--;
+                    stack[sp] = stack[sp] % stack[sp + 1];
+                    break;
+                case POWER:
+                    sp--;
+                    stack[sp] = Math.pow(stack[sp], stack[sp + 1]);
+                    break;
+                case LT:
+                    sp--;
+                    stack[sp] = stack[sp] < stack[sp + 1] ? 1 : 0;
+                    break;
+                case LT_EQ:
+                    sp--;
+                    stack[sp] = stack[sp] < stack[sp + 1]
+                                || Math.abs(stack[sp] - stack[sp + 1]) < BinaryOperation.EPSILON ? 1 : 0;
+                    break;
+                case EQ:
+                    sp--;
+                    stack[sp] = Math.abs(stack[sp] - stack[sp + 1]) < BinaryOperation.EPSILON ? 1 : 0;
+                    break;
+                case GT_EQ:
+                    sp--;
+                    stack[sp] = stack[sp] > stack[sp + 1]
+                                || Math.abs(stack[sp] - stack[sp + 1]) < BinaryOperation.EPSILON ? 1 : 0;
+                    break;
+                case GT:
+                    sp--;
+                    stack[sp] = stack[sp] > stack[sp + 1] ? 1 : 0;
+                    break;
+                case NEQ:
+                    sp--;
+                    stack[sp] = Math.abs(stack[sp] - stack[sp + 1]) > BinaryOperation.EPSILON ? 1 : 0;
+                    break;
+                case AND_THEN:
+                    // The right operand is skipped unless the left one is true
+                    if (stack[sp] == 1) {
+                        sp--;
+                        pc++;
+                    } else {
+                        stack[sp] = 0;
+                        pc = code[pc];
+                    }
+                    break;
+                case OR_ELSE:
+                    // The right operand is skipped if the left one is true
+                    if (stack[sp] == 1) {
+                        pc = code[pc];
+                    } else {
+                        sp--;
+                        pc++;
+                    }
+                    break;
+                case TO_BOOLEAN:
+                    stack[sp] = stack[sp] == 1 ? 1 : 0;
+                    break;
+                case UNARY_FUNCTION: {
+                    FunctionCall call = calls[code[pc++]];
+                    if (!Double.isNaN(stack[sp])) {
+                        stack[sp] = call.apply(stack[sp]);
+                    }
+                    break;
+                }
+                case BINARY_FUNCTION: {
+                    FunctionCall call = calls[code[pc++]];
+                    sp--;
+                    if (Double.isNaN(stack[sp])) {
+                        break;
+                    }
+                    stack[sp] = Double.isNaN(stack[sp + 1]) ? stack[sp + 1] : call.apply(stack[sp], stack[sp + 1]);
+                    break;
+                }
+                case IF: {
+                    double check = stack[sp];
+                    if (Double.isNaN(check)) {
+                        pc = code[pc + 1];
+                    } else {
+                        sp--;
+                        pc = check == 1d ? pc + 2 : code[pc];
+                    }
+                    break;
+                }
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                case DELEGATE: {
+                    Expression delegate = delegates[code[pc++]];
+                    stack[++sp] = frame == null ? delegate.evaluate() : delegate.evaluate(frame);
+                    break;
+                }
+                case STORE: {
+                    Variable variable = variables[code[pc++]];
+                    if (frame == null) {
+                        variable.setValue(stack[sp--]);
+                    } else {
+                        variable.setValue(frame, stack[sp--]);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Invalid opcode at: " + (pc - 1));
+            }
+        }
+        return stack[0];
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        // A whole block is best computed by the tree itself, as each node processes all rows at once
+        source.evaluate(batch, result);
+    }
+
+    /**
+     * Returns the expression which was linearized.
+     *
+     * @return the original expression
+     */
+    public Expression getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean isConstant() {
+        return source.isConstant();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+    /*
+     * Translates an expression tree into a postfix program
+     */
+    private static class Assembler {
+        private int[] code = new int[64];
+        private int length = 0;
+        private List<Double> constants = new ArrayList<Double>();
+        private List<Variable> variables = new ArrayList<Variable>();
+        private Map<Variable, Integer> variableIndex = new IdentityHashMap<Variable, Integer>();
+        private List<FunctionCall> calls = new ArrayList<FunctionCall>();
+        private List<Expression> delegates = new ArrayList<Expression>();
+        private int sp = 0;
+        private int maxStack = 1;
+
+        private void put(int value) {
+            if (length == code.length) {
+                int[] newCode = new int[code.length * 2];
+                System.arraycopy(code, 0, newCode, 0, length);
+                code = newCode;
+            }
+            code[length++] = value;
+        }
+
+        private void push() {
+            sp++;
+            if (sp > maxStack) {
+                maxStack = sp;
+            }
+        }
+
+        private void emit(Expression expr) {
+            if (expr.isConstant()) {
+                emitConstant(expr.evaluate());
+            } else if (expr instanceof VariableReference) {
+                put(VARIABLE);
+                put(indexOf(((VariableReference) expr).getVariable()));
+                push();
+            } else if (expr instanceof BinaryOperation) {
+                BinaryOperation op = (BinaryOperation) expr;
+                if (op.getOp() == BinaryOperation.Op.AND || op.getOp() == BinaryOperation.Op.OR) {
+                    emitLogicalOperation(op);
+                    return;
+                }
+                emit(op.getLeft());
+                emit(op.getRight());
+                put(ADD + op.getOp().ordinal());
+                sp--;
+            } else if (expr instanceof FunctionCall) {
+                emitFunctionCall((FunctionCall) expr);
+            } else if (expr instanceof Sum) {
+                emitSum((Sum) expr);
+            } else if (expr instanceof Product) {
+                emitProduct((Product) expr);
+            } else if (expr instanceof LetExpression) {
+                emitLet((LetExpression) expr);
+            } else {
+                emitDelegate(expr);
+            }
+        }
+
+        private void emitConstant(double value) {
+            put(CONSTANT);
+            put(constants.size());
+            constants.add(value);
+            push();
+        }
+
+        private void emitLogicalOperation(BinaryOperation op) {
+            emit(op.getLeft());
+            put(op.getOp() == BinaryOperation.Op.AND ? AND_THEN : OR_ELSE);
+            int endOperand = length;
+            put(0);
+            // The left operand is popped unless it determines the result
+            sp--;
+            emit(op.getRight());
+            put(TO_BOOLEAN);
+            code[endOperand] = length;
+        }
+
+        private void emitSum(Sum sum) {
+            emitConstant(sum.getConstant());
+            List<Expression> terms = sum.getTerms();
+            for (int i = 0; i < terms.size(); i++) {
+                emit(terms.get(i));
+                put(sum.isSubtracted(i) ? SUBTRACT : ADD);
+                sp--;
+            }
+        }
+
+        private void emitProduct(Product product) {
+            emitConstant(product.getConstant());
+            for (Expression factor : product.getFactors()) {
+                emit(factor);
+                put(MULTIPLY);
+                sp--;
+            }
+        }
+
+        private int indexOf(Variable variable) {
+            Integer index = variableIndex.get(variable);
+            if (index == null) {
+                index = variables.size();
+                variables.add(variable);
+                variableIndex.put(variable, index);
+            }
+            return index;
+        }
+
+        private void emitLet(LetExpression let) {
+            for (int i = 0; i < let.getVariables().size(); i++) {
+                emit(let.getDefinitions().get(i));
+                put(STORE);
+                put(indexOf(let.getVariables().get(i)));
+                sp--;
+            }
+            emit(let.getResult());
+        }
+
+        private void emitFunctionCall(FunctionCall call) {
+            Function function = call.getFunction();
+            List<Expression> parameters = call.getParameters();
+            if (call.isUnary()) {
+                emit(parameters.get(0));
+                put(UNARY_FUNCTION);
+                put(calls.size());
+                calls.add(call);
+            } else if (call.isBinary()) {
+                emit(parameters.get(0));
+                emit(parameters.get(1));
+                put(BINARY_FUNCTION);
+                put(calls.size());
+                calls.add(call);
+                sp--;
+            } else if (function == Functions.IF) {
+                emit(parameters.get(0));
+                put(IF);
+                int ifOperands = length;
+                put(0);
+                put(0);
+                // The condition is popped unless it is NaN, in which case it is the result
+                sp--;
+                emit(parameters.get(1));
+                put(JUMP);
+                int jumpOperand = length;
+                put(0);
+                sp--;
+                code[ifOperands] = length;
+                emit(parameters.get(2));
+                code[ifOperands + 1] = length;
+                code[jumpOperand] = length;
+            } else {
+                emitDelegate(call);
+            }
+        }
+
+        private void emitDelegate(Expression expr) {
+            put(DELEGATE);
+            put(delegates.size());
+            delegates.add(expr);
+            push();
+        }
+
+        private int[] getCode() {
+            int[] result = new int[length];
+            System.arraycopy(code, 0, result, 0, length);
+            return result;
+        }
+
+        private double[] getConstants() {
+            double[] result = new double[constants.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = constants.get(i);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the product of a constant and any number of factors.
+ * <p>
+ * Products are created by {@link BinaryOperation#simplify()} for chains of multiplications like <tt>2 * a * b * c</tt>.
+ * Just like a {@link Sum}, the factors are kept in a flat array and evaluated in a single loop. All constant factors
+ * are combined into one constant.
+ * </p>
+ * <p>
+ * The constant is multiplied first, followed by the factors from left to right.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class Product extends Expression {
+    private double constant = 1d;
+    private Expression[] factors = new Expression[4];
+    private int size;
+
+    /*
+     * Caches the structural hash code, 0 means that it hasn't been computed yet
+     */
+    private int hash;
+
+    @Override
+    public double evaluate() {
+        double result = constant;
+        for (int i = 0; i < size; i++) {
+            result *= factors[i].evaluate();
+        }
+        return result;
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        double result = constant;
+        for (int i = 0; i < size; i++) {
+            result *= factors[i].evaluate(frame);
+        }
+        return result;
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        int length = batch.getLength();
+        Arrays.fill(result, 0, length, constant);
+        double[] values = batch.acquireBuffer();
+        for (int i = 0; i < size; i++) {
+            factors[i].evaluate(batch, values);
+            for (int row = 0; row < length; row++) {
+                result[row] *= values[row];
+            }
+        }
+        batch.releaseBuffer(values);
+    }
+
+    /**
+     * Multiplies the product with the given factor.
+     * <p>
+     * Constant factors are directly combined with the constant of the product.
+     * </p>
+     *
+     * @param factor the factor to add
+     */
+    public void addFactor(Expression factor) {
+        hash = 0;
+        if (factor.isConstant()) {
+            constant *= factor.evaluate();
+            return;
+        }
+        if (size == factors.length) {
+            factors = Arrays.copyOf(factors, size * 2);
+        }
+        factors[size++] = factor;
+    }
+
+    /**
+     * Returns the constant part of the product.
+     *
+     * @return the product of all constant factors
+     */
+    public double getConstant() {
+        return constant;
+    }
+
+    /**
+     * Returns all non-constant factors.
+     *
+     * @return the factors in the order in which they are multiplied
+     */
+    public List<Expression> getFactors() {
+        return Collections.unmodifiableList(Arrays.asList(factors).subList(0, size));
+    }
+
+    /*
+     * Replaces a product of less than two factors by a simpler expression
+     */
+    Expression reduce() {
+        if (size == 0) {
+            return new Constant(constant);
+        }
+        if (size == 1) {
+            return new BinaryOperation(BinaryOperation.Op.MULTIPLY, new Constant(constant), factors[0]);
+        }
+        return this;
+    }
+
+    @Override
+    public Expression simplify() {
+        Product result = new Product();
+        result.constant = constant;
+        for (int i = 0; i < size; i++) {
+            result.addFactor(factors[i].simplify());
+        }
+        return result.reduce();
+    }
+
+    @Override
+    public boolean isConstant() {
+        return size == 0;
+    }
+
+    /**
+     * Determines if the given object is an equal product.
+     * <p>
+     * Two products are equal if they have the same constant and equal factors in the same order.
+     * </p>
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is structurally equal to this product, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof Product)) {
+            return false;
+        }
+        Product other = (Product) obj;
+        if (Double.doubleToLongBits(constant) != Double.doubleToLongBits(other.constant)
+            || size != other.size
+            || hashCode() != other.hashCode()) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!factors[i].equals(other.factors[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        if (hash == 0) {
+            long bits = Double.doubleToLongBits(constant);
+            int result = 17 * (int) (bits ^ (bits >>> 32));
+            for (int i = 0; i < size; i++) {
+                result = 31 * result + factors[i].hashCode();
+            }
+            hash = result == 0 ? 1 : result;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        if (constant != 1 || size == 0) {
+            sb.append(constant);
+        }
+        for (int i = 0; i < size; i++) {
+            if (sb.length() > 1) {
+                sb.append(" MULTIPLY ");
+            }
+            sb.append(factors[i]);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evaluates several expressions at once, computing the subexpressions they share only once.
+ * <p>
+ * The expressions are combined into a single {@link LetExpression} (the body), which first computes all shared
+ * subexpressions (see {@link SubexpressionEliminator}) and assigns the value of each expression to an output
+ * variable. A single call then computes all results:
+ * <code>
+ * Program program = Program.create(Arrays.asList(Parser.parse("a * b + 1", scope), Parser.parse("a * b - 1", scope)),
+ * scope);
+ * double[] results = new double[program.size()];
+ * program.evaluate(results);
+ * </code>
+ * </p>
+ * <p>
+ * As the body is a plain expression, it can be handed to any backend: {@link PostfixExpression#compile(Program)}
+ * and <tt>ExpressionCompiler.compile(Program)</tt> return a program evaluating a compiled body.
+ * </p>
+ * <p>
+ * Just like the {@link SubexpressionEliminator}, a program uses temporary variables of the given scope. The n-th
+ * output of all programs uses the same temporary (see {@link Scope#getTemporary(Object)}), so that creating programs
+ * over and over again doesn't consume additional slots. Frames used to evaluate a program have to be created after
+ * the program has been created.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class Program {
+
+    private final Expression body;
+    private final Variable[] outputs;
+
+    /*
+     * Identifies the temporary of the n-th output (see Scope.getTemporary)
+     */
+    private static class OutputKey {
+        private final int index;
+
+        private OutputKey(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof OutputKey && index == ((OutputKey) obj).index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+    }
+
+    /**
+     * Creates a program which computes the values of all given expressions.
+     *
+     * @param expressions the expressions to compute. The expressions themselves remain unchanged
+     * @param scope       the scope used to create the temporary variables. This should be the scope used to parse
+     *                    the expressions.
+     * @return a program which computes the values of the given expressions in the given order
+     */
+    public static Program create(List<Expression> expressions, Scope scope) {
+        if (expressions == null) {
+            throw new IllegalArgumentException("expressions must not be null");
+        }
+        if (scope == null) {
+            throw new IllegalArgumentException("scope must not be null");
+        }
+        return create(new LetExpression(), expressions, scope);
+    }
+
+    /*
+     * Creates a program which performs the assignments of the given let expression (its result is ignored) before
+     * computing the given expressions, which may read the assigned variables
+     */
+    static Program create(LetExpression locals, List<Expression> expressions, Scope scope) {
+        // Outputs already used by the expressions (e.g. the body of another program) are skipped
+        Set<Variable> reserved = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+        Batch.collectVariables(locals, reserved);
+        Batch.collectVariables(expressions, reserved);
+        List<Variable> outputs = new ArrayList<Variable>();
+        int index = 0;
+        while (outputs.size() < expressions.size()) {
+            Variable output = scope.getTemporary(new OutputKey(index++));
+            if (!reserved.contains(output)) {
+                outputs.add(output);
+            }
+        }
+        LetExpression body = SubexpressionEliminator.eliminate(expressions, outputs, scope);
+        if (!locals.getVariables().isEmpty()) {
+            LetExpression combined = new LetExpression();
+            addAssignments(combined, locals);
+            addAssignments(combined, body);
+            combined.setResult(body.getResult());
+            body = combined;
+        }
+        return new Program(body, outputs.toArray(new Variable[outputs.size()]));
+    }
+
+    private static void addAssignments(LetExpression target, LetExpression source) {
+        for (int i = 0; i < source.getVariables().size(); i++) {
+            target.addAssignment(source.getVariables().get(i), source.getDefinitions().get(i));
+        }
+    }
+
+    /*
+     * Use the static create method or withBody
+     */
+    private Program(Expression body, Variable[] outputs) {
+        this.body = body;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Computes all results using the current values of the variables.
+     * <p>
+     * Like {@link LetExpression#evaluate()}, this modifies the temporary variables of the program, therefore a
+     * program must only be evaluated by one thread at a time using this method.
+     * </p>
+     *
+     * @param results the array to store the results in, in the order of the expressions given when creating the
+     *                program
+     */
+    public void evaluate(double[] results) {
+        checkResults(results);
+        body.evaluate();
+        for (int i = 0; i < outputs.length; i++) {
+            results[i] = outputs[i].getValue();
+        }
+    }
+
+    /**
+     * Computes all results using the values of the given frame.
+     * <p>
+     * Intermediate results are only stored in the frame, therefore several threads can evaluate the same program
+     * concurrently, as long as each uses its own frame.
+     * </p>
+     *
+     * @param frame   the values of the variables (see {@link Scope#createFrame()})
+     * @param results the array to store the results in, in the order of the expressions given when creating the
+     *                program
+     */
+    public void evaluate(double[] frame, double[] results) {
+        checkResults(results);
+        body.evaluate(frame);
+        for (int i = 0; i < outputs.length; i++) {
+            results[i] = outputs[i].getValue(frame);
+        }
+    }
+
+    private void checkResults(double[] results) {
+        if (results == null || results.length < outputs.length) {
+            throw new IllegalArgumentException(String.format("results must provide space for %d values",
+                                                             outputs.length));
+        }
+    }
+
+    /**
+     * Returns the number of results computed by this program.
+     *
+     * @return the number of expressions combined in this program
+     */
+    public int size() {
+        return outputs.length;
+    }
+
+    /**
+     * Returns the expression which computes all results.
+     *
+     * @return an expression which assigns the results to the output variables
+     */
+    public Expression getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the variables which receive the results.
+     *
+     * @return the output variables in the order of the expressions given when creating the program
+     */
+    public List<Variable> getOutputs() {
+        return Collections.unmodifiableList(Arrays.asList(outputs));
+    }
+
+    /**
+     * Creates a program which uses the given body but the same output variables.
+     * <p>
+     * This is used by backends to replace the body by an equivalent one, e.g. by a compiled version of it.
+     * </p>
+     *
+     * @param body the expression to use as body. This has to assign the same output variables as the current body
+     * @return a new program evaluating the given body
+     */
+    public Program withBody(Expression body) {
+        if (body == null) {
+            throw new IllegalArgumentException("body must not be null");
+        }
+        return new Program(body, outputs);
+    }
+
+    @Override
+    public String toString() {
+        return body.toString();
+    }
+}
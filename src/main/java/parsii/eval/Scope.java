@@ -10,6 +10,7 @@ package parsii.eval;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Contains a mapping of names to variables.
@@ -20,6 +21,21 @@ import java.util.concurrent.ConcurrentHashMap;
  * cheap as a simple field access. The second advantage is that scopes can be chained. So variables can be either
  * shared by two expression or kept separate, if required.
  * </p>
+ * <p>
+ * Each variable is also assigned a dense index (its <tt>slot</tt>) when it is created. Scopes which share a common
+ * parent (except for the internal root scope) also share the numbering of their slots. This permits to evaluate
+ * an expression using a frame of values (a <tt>double[]</tt> indexed by slots) instead of reading the values
+ * stored in the variables. As each caller can provide its own frame, a single parsed expression can be evaluated
+ * by many threads at once:
+ * <code>
+ * Scope scope = Scope.create();
+ * Variable a = scope.getVariable("a");
+ * Expression expr = Parser.parse("3 + a * 4", scope);
+ * double[] frame = scope.createFrame();
+ * a.setValue(frame, 4);
+ * System.out.println(expr.evaluate(frame));
+ * </code>
+ * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
@@ -27,6 +43,15 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Scope {
     private Scope parent;
     private Map<String, Variable> context = new ConcurrentHashMap<String, Variable>();
+    /*
+     * Provides the slots for new variables. This is shared with all child scopes and null for the root scope,
+     * as its variables are constant and therefore need no slot
+     */
+    private AtomicInteger slots;
+    /*
+     * Contains the temporary variables which are shared by key (see getTemporary)
+     */
+    private final Map<Object, Variable> sharedTemporaries = new HashMap<Object, Variable>();
 
     private static Scope root;
 
@@ -49,6 +74,7 @@ public class Scope {
     public static Scope create() {
         Scope result = new Scope();
         result.parent = getRootScope();
+        result.slots = new AtomicInteger();
 
         return result;
     }
@@ -57,11 +83,12 @@ public class Scope {
      * Creates the internal root scope which contains eternal constants ;-)
      */
     private static Scope getRootScope() {
-        if (root == null) {
-            synchronized (Scope.class) {
-                root = new Scope();
-                root.getVariable("pi").makeConstant(Math.PI);
-                root.getVariable("euler").makeConstant(Math.E);
+        synchronized (Scope.class) {
+            if (root == null) {
+                Scope result = new Scope();
+                result.getVariable("pi").makeConstant(Math.PI);
+                result.getVariable("euler").makeConstant(Math.E);
+                root = result;
             }
         }
 
@@ -82,6 +109,7 @@ public class Scope {
     public static Scope createWithParent(Scope parent) {
         Scope result = create();
         result.parent = parent;
+        result.slots = parent.slots;
 
         return result;
     }
@@ -130,16 +158,82 @@ public class Scope {
      * @param name the variable to search or create
      * @return a variable with the given name from the local scope
      */
-    public Variable create(String name) {
+    public synchronized Variable create(String name) {
         if (context.containsKey(name)) {
             return context.get(name);
         }
-        Variable result = new Variable(name);
+        Variable result = new Variable(name, slots == null ? -1 : slots.getAndIncrement());
         context.put(name, result);
 
         return result;
     }
 
+    /**
+     * Creates a new variable which is used to store intermediate results.
+     * <p>
+     * In contrast to {@link #create(String)} the variable is not registered by name and will therefore neither be
+     * found by {@link #find(String)} nor be returned by {@link #getVariables()}. It is however assigned a slot so that
+     * it can be used when evaluating an expression using a frame.
+     * </p>
+     *
+     * @return a new variable which is only known to the caller
+     */
+    public Variable createTemporary() {
+        int slot = slots == null ? -1 : slots.getAndIncrement();
+        return new Variable("$" + (slot < 0 ? "" : String.valueOf(slot)), slot);
+    }
+
+    /**
+     * Returns the temporary variable which is shared by all users of the given key.
+     * <p>
+     * In contrast to {@link #createTemporary()}, which assigns a new slot for each call, this permits optimizations
+     * which are performed over and over again (like eliminating common subexpressions of formulas which are parsed
+     * repeatedly) to reuse their temporary variables instead of growing the scope with each run. As the variable is
+     * shared, a user has to store a value in it before reading it during an evaluation and must not expect the value
+     * to be kept once other expressions using the same key have been evaluated.
+     * </p>
+     *
+     * @param key the key which identifies the variable. This must implement <tt>equals</tt> and <tt>hashCode</tt>
+     *            and must not be modified afterwards.
+     * @return the temporary variable for the given key
+     */
+    public synchronized Variable getTemporary(Object key) {
+        Variable result = sharedTemporaries.get(key);
+        if (result == null) {
+            result = createTemporary();
+            sharedTemporaries.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of slots assigned to variables of this scope, its parents and all scopes sharing a parent.
+     *
+     * @return the number of values required in a frame used to evaluate expressions parsed using this scope
+     */
+    public int getNumberOfSlots() {
+        return slots == null ? 0 : slots.get();
+    }
+
+    /**
+     * Creates a new frame which can be passed to {@link Expression#evaluate(double[])}.
+     * <p>
+     * The frame is initialized with the current values of all variables known to this scope. Note that the frame
+     * cannot be used for variables created after the frame was created.
+     * </p>
+     *
+     * @return a new frame containing the values of all variables known to this scope
+     */
+    public double[] createFrame() {
+        double[] frame = new double[getNumberOfSlots()];
+        for (Variable variable : getVariables()) {
+            if (variable.getSlot() >= 0 && variable.getSlot() < frame.length) {
+                frame[variable.getSlot()] = variable.getValue();
+            }
+        }
+        return frame;
+    }
+
     /**
      * Returns all names of variables known to this scope (ignoring those of the parent scope).
      *
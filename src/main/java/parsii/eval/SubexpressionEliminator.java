@@ -0,0 +1,370 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes subexpressions which occur several times in an expression only once.
+ * <p>
+ * The expression is searched for structurally equal subtrees (e.g. <tt>sqrt(x*x + y*y)</tt> in
+ * <tt>x / sqrt(x*x + y*y) + y / sqrt(x*x + y*y)</tt>). Each of those is computed once, stored in a temporary variable
+ * of the given scope and then read wherever the subtree occurred. The result is a {@link LetExpression} which performs
+ * the assignments and then evaluates the rewritten expression.
+ * </p>
+ * <p>
+ * Only subtrees without side effects are shared, which are those built out of constants, variables, operations and
+ * calls of natural functions (see {@link Function#isNaturalFunction()}). Therefore e.g. two calls of <tt>rnd</tt>
+ * still yield two random numbers. Also, only subtrees which are evaluated in any case are computed in advance. Those
+ * within the branches of <tt>if</tt>, the right operand of <tt>&amp;&amp;</tt> and <tt>||</tt> or the parameters of
+ * other functions which evaluate their arguments on demand are not counted. They can however read the value of a
+ * subtree which has been computed in advance anyway.
+ * </p>
+ * <p>
+ * The temporary variables are provided by the given scope and are numbered per optimization (see
+ * {@link Scope#getTemporary(Object)}): The first repeated subtree is stored in the first temporary and so on, so that
+ * optimizing formulas over and over again doesn't consume additional slots. Temporaries which are already used by the
+ * given expressions (e.g. if an optimized expression is optimized again) are skipped. As the temporary variables are
+ * assigned a slot of the given scope, frames used to evaluate the
+ * optimized expression (see {@link Expression#evaluate(double[])}) have to be created after the optimization took
+ * place:
+ * <code>
+ * Expression expr = SubexpressionEliminator.eliminate(Parser.parse("a / sqrt(a*a + b*b)", scope), scope);
+ * double[] frame = scope.createFrame();
+ * </code>
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class SubexpressionEliminator {
+
+    private final Scope scope;
+    private final Map<Expression, Boolean> pure = new IdentityHashMap<Expression, Boolean>();
+
+    /*
+     * Structurally equal subtrees are recognized by using them as keys (see Expression#equals)
+     */
+    private final Map<Expression, Integer> occurrences = new HashMap<Expression, Integer>();
+    private final Map<Expression, Variable> temporaries = new HashMap<Expression, Variable>();
+    private final LetExpression let = new LetExpression();
+
+    /*
+     * Contains the variables used by the given expressions, which must not be used as temporaries
+     */
+    private final Set<Variable> reserved = Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+
+    /*
+     * Contains the number of the next temporary to use
+     */
+    private int nextTemporary;
+
+    /*
+     * Identifies the n-th temporary of an optimization (see Scope.getTemporary). Keys only consist of a number, so
+     * that the scope doesn't keep optimized expressions alive and the slots are reused by all optimizations.
+     */
+    private static class TemporaryKey {
+        private final int index;
+
+        private TemporaryKey(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TemporaryKey && index == ((TemporaryKey) obj).index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+    }
+
+    /**
+     * Computes each repeated subexpression of the given expression only once.
+     *
+     * @param expression the expression to optimize. The expression itself remains unchanged
+     * @param scope      the scope used to create the temporary variables. This should be the scope used to parse
+     *                   the expression.
+     * @return an expression which computes the same value as the given one, but evaluates each repeated subexpression
+     *         only once. If no subexpression occurs twice, the given expression is returned.
+     */
+    public static Expression eliminate(Expression expression, Scope scope) {
+        if (expression == null) {
+            throw new IllegalArgumentException("expression must not be null");
+        }
+        if (scope == null) {
+            throw new IllegalArgumentException("scope must not be null");
+        }
+        return new SubexpressionEliminator(scope).optimize(expression);
+    }
+
+    /**
+     * Computes each subexpression which occurs several times within the given expressions only once.
+     * <p>
+     * This works like {@link #eliminate(Expression, Scope)} but also shares subexpressions among all given
+     * expressions. The value of each expression is assigned to the corresponding output variable, once all shared
+     * subexpressions it uses have been assigned.
+     * </p>
+     *
+     * @param expressions the expressions to optimize. The expressions themselves remain unchanged
+     * @param outputs     the variables to assign the values of the expressions to
+     * @param scope       the scope used to create the temporary variables. This should be the scope used to parse
+     *                    the expressions.
+     * @return an expression which assigns the values of all given expressions to the output variables and evaluates
+     *         to the value of the last expression (or 0 if no expression is given)
+     */
+    public static LetExpression eliminate(List<Expression> expressions, List<Variable> outputs, Scope scope) {
+        if (expressions == null) {
+            throw new IllegalArgumentException("expressions must not be null");
+        }
+        if (outputs == null || outputs.size() != expressions.size()) {
+            throw new IllegalArgumentException("outputs must contain one variable per expression");
+        }
+        if (scope == null) {
+            throw new IllegalArgumentException("scope must not be null");
+        }
+        return new SubexpressionEliminator(scope).optimize(expressions, outputs);
+    }
+
+    /*
+     * Use the static eliminate methods
+     */
+    private SubexpressionEliminator(Scope scope) {
+        this.scope = scope;
+    }
+
+    private Expression optimize(Expression expression) {
+        Batch.collectVariables(expression, reserved);
+        count(expression);
+        Expression result = rewrite(expression);
+        if (let.getVariables().isEmpty()) {
+            return expression;
+        }
+        let.setResult(result);
+        return let;
+    }
+
+    private LetExpression optimize(List<Expression> expressions, List<Variable> outputs) {
+        Batch.collectVariables(expressions, reserved);
+        reserved.addAll(outputs);
+        for (Expression expression : expressions) {
+            count(expression);
+        }
+        for (int i = 0; i < expressions.size(); i++) {
+            let.addAssignment(outputs.get(i), rewrite(expressions.get(i)));
+        }
+        if (outputs.isEmpty()) {
+            let.setResult(new Constant(0));
+        } else {
+            let.setResult(new VariableReference(outputs.get(outputs.size() - 1)));
+        }
+        return let;
+    }
+
+    /*
+     * Counts how often each subtree occurs. Once a subtree was seen, its children are not visited again, as they will
+     * be computed along with the shared subtree. Subtrees which are only evaluated under certain conditions are
+     * skipped, as computing them in advance might perform work which would otherwise be skipped.
+     */
+    private void count(Expression expr) {
+        if (isShareable(expr)) {
+            Integer count = occurrences.get(expr);
+            occurrences.put(expr, count == null ? 1 : count + 1);
+            if (count != null) {
+                return;
+            }
+        }
+        if (expr instanceof BinaryOperation) {
+            BinaryOperation op = (BinaryOperation) expr;
+            count(op.getLeft());
+            if (op.getOp() != BinaryOperation.Op.AND && op.getOp() != BinaryOperation.Op.OR) {
+                count(op.getRight());
+            }
+        } else if (expr instanceof FunctionCall) {
+            List<Expression> parameters = ((FunctionCall) expr).getParameters();
+            int unconditional = getNumberOfUnconditionalParameters(((FunctionCall) expr).getFunction(), parameters);
+            for (int i = 0; i < unconditional; i++) {
+                count(parameters.get(i));
+            }
+        } else if (expr instanceof Sum) {
+            for (Expression term : ((Sum) expr).getTerms()) {
+                count(term);
+            }
+        } else if (expr instanceof Product) {
+            for (Expression factor : ((Product) expr).getFactors()) {
+                count(factor);
+            }
+        }
+    }
+
+    /*
+     * Determines how many of the leading parameters are always evaluated when the function is invoked. Only the
+     * specialized functions are known to evaluate all of their parameters, the condition of IF is evaluated in any
+     * case. Other functions (like IF itself) might skip some of their parameters.
+     */
+    private int getNumberOfUnconditionalParameters(Function function, List<Expression> parameters) {
+        if (function instanceof UnaryFunction
+            || function instanceof BinaryFunction
+            || function instanceof UnaryDoubleFunction
+            || function instanceof BinaryDoubleFunction
+            || function instanceof NaryDoubleFunction) {
+            return parameters.size();
+        }
+        if (function == Functions.IF) {
+            return Math.min(1, parameters.size());
+        }
+        return 0;
+    }
+
+    /*
+     * Replaces each repeated subtree by a reference to its temporary variable. As the children of a shared subtree
+     * are rewritten (and thus assigned) before the subtree itself, the assignments are in a valid order. Subtrees
+     * which haven't been counted (as they are evaluated conditionally) are only rewritten to read the temporaries of
+     * subtrees which are computed anyway.
+     */
+    private Expression rewrite(Expression expr) {
+        if (!isShareable(expr)) {
+            return rebuild(expr);
+        }
+        Integer count = occurrences.get(expr);
+        if (count == null || count < 2) {
+            return rebuild(expr);
+        }
+        Variable temporary = temporaries.get(expr);
+        if (temporary == null) {
+            Expression definition = rebuild(expr);
+            temporary = nextTemporary();
+            let.addAssignment(temporary, definition);
+            temporaries.put(expr, temporary);
+        }
+        return new VariableReference(temporary);
+    }
+
+    /*
+     * Provides the next temporary of this optimization, which isn't used by the given expressions
+     */
+    private Variable nextTemporary() {
+        while (true) {
+            Variable result = scope.getTemporary(new TemporaryKey(nextTemporary++));
+            if (!reserved.contains(result)) {
+                return result;
+            }
+        }
+    }
+
+    /*
+     * Creates a copy of the given node with rewritten children. If no child was changed, the node itself is returned.
+     */
+    private Expression rebuild(Expression expr) {
+        if (expr instanceof BinaryOperation) {
+            BinaryOperation op = (BinaryOperation) expr;
+            Expression left = rewrite(op.getLeft());
+            Expression right = rewrite(op.getRight());
+            if (left == op.getLeft() && right == op.getRight()) {
+                return op;
+            }
+            BinaryOperation result = new BinaryOperation(op.getOp(), left, right);
+            if (op.isSealed()) {
+                result.seal();
+            }
+            return result;
+        }
+        if (expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            FunctionCall result = new FunctionCall();
+            result.setFunction(call.getFunction());
+            boolean changed = false;
+            for (Expression parameter : call.getParameters()) {
+                Expression rewritten = rewrite(parameter);
+                changed |= rewritten != parameter;
+                result.addParameter(rewritten);
+            }
+            return changed ? result : call;
+        }
+        if (expr instanceof Sum) {
+            Sum sum = (Sum) expr;
+            Sum result = new Sum();
+            result.addTerm(new Constant(sum.getConstant()), false);
+            boolean changed = false;
+            List<Expression> terms = sum.getTerms();
+            for (int i = 0; i < terms.size(); i++) {
+                Expression rewritten = rewrite(terms.get(i));
+                changed |= rewritten != terms.get(i);
+                result.addTerm(rewritten, sum.isSubtracted(i));
+            }
+            return changed ? result : sum;
+        }
+        if (expr instanceof Product) {
+            Product product = (Product) expr;
+            Product result = new Product();
+            result.addFactor(new Constant(product.getConstant()));
+            boolean changed = false;
+            for (Expression factor : product.getFactors()) {
+                Expression rewritten = rewrite(factor);
+                changed |= rewritten != factor;
+                result.addFactor(rewritten);
+            }
+            return changed ? result : product;
+        }
+        return expr;
+    }
+
+    /*
+     * Only operations and function calls are worth being shared, as constants and variables are as cheap to read as
+     * a temporary variable
+     */
+    private boolean isShareable(Expression expr) {
+        return (expr instanceof BinaryOperation
+                || expr instanceof FunctionCall
+                || expr instanceof Sum
+                || expr instanceof Product) && isPure(expr);
+    }
+
+    /*
+     * Determines if the expression always yields the same value for the same variable values
+     */
+    private boolean isPure(Expression expr) {
+        Boolean result = pure.get(expr);
+        if (result != null) {
+            return result;
+        }
+        if (expr instanceof Constant || expr instanceof VariableReference) {
+            result = true;
+        } else if (expr instanceof BinaryOperation) {
+            result = isPure(((BinaryOperation) expr).getLeft()) && isPure(((BinaryOperation) expr).getRight());
+        } else if (expr instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expr;
+            result = call.getFunction().isNaturalFunction();
+            for (Expression parameter : call.getParameters()) {
+                result = result && isPure(parameter);
+            }
+        } else if (expr instanceof Sum) {
+            result = true;
+            for (Expression term : ((Sum) expr).getTerms()) {
+                result = result && isPure(term);
+            }
+        } else if (expr instanceof Product) {
+            result = true;
+            for (Expression factor : ((Product) expr).getFactors()) {
+                result = result && isPure(factor);
+            }
+        } else {
+            result = false;
+        }
+        pure.put(expr, result);
+        return result;
+    }
+}
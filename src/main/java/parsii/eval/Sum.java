@@ -0,0 +1,230 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the sum of a constant and any number of terms which are either added or subtracted.
+ * <p>
+ * Sums are created by {@link BinaryOperation#simplify()} for chains of additions and subtractions like
+ * <tt>a + b - c + 3</tt>. Instead of a deep tree of binary operations, which needs a nested call per operand, the
+ * terms are kept in a flat array and evaluated in a single loop. All constant terms are combined into one constant.
+ * </p>
+ * <p>
+ * The constant is added first, followed by the terms from left to right.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class Sum extends Expression {
+    private double constant;
+    private Expression[] terms = new Expression[4];
+    private boolean[] subtracted = new boolean[4];
+    private int size;
+
+    /*
+     * Caches the structural hash code, 0 means that it hasn't been computed yet
+     */
+    private int hash;
+
+    @Override
+    public double evaluate() {
+        double result = constant;
+        for (int i = 0; i < size; i++) {
+            if (subtracted[i]) {
+                result -= terms[i].evaluate();
+            } else {
+                result += terms[i].evaluate();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public double evaluate(double[] frame) {
+        double result = constant;
+        for (int i = 0; i < size; i++) {
+            if (subtracted[i]) {
+                result -= terms[i].evaluate(frame);
+            } else {
+                result += terms[i].evaluate(frame);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        int length = batch.getLength();
+        Arrays.fill(result, 0, length, constant);
+        double[] values = batch.acquireBuffer();
+        for (int i = 0; i < size; i++) {
+            terms[i].evaluate(batch, values);
+            if (subtracted[i]) {
+                for (int row = 0; row < length; row++) {
+                    result[row] -= values[row];
+                }
+            } else {
+                for (int row = 0; row < length; row++) {
+                    result[row] += values[row];
+                }
+            }
+        }
+        batch.releaseBuffer(values);
+    }
+
+    /**
+     * Adds the given term to the sum.
+     * <p>
+     * Constant terms are directly combined with the constant of the sum.
+     * </p>
+     *
+     * @param term       the term to add
+     * @param subtracted <tt>true</tt> if the term is subtracted, <tt>false</tt> if it is added
+     */
+    public void addTerm(Expression term, boolean subtracted) {
+        hash = 0;
+        if (term.isConstant()) {
+            constant = subtracted ? constant - term.evaluate() : constant + term.evaluate();
+            return;
+        }
+        if (size == terms.length) {
+            terms = Arrays.copyOf(terms, size * 2);
+            this.subtracted = Arrays.copyOf(this.subtracted, size * 2);
+        }
+        terms[size] = term;
+        this.subtracted[size] = subtracted;
+        size++;
+    }
+
+    /**
+     * Returns the constant part of the sum.
+     *
+     * @return the sum of all constant terms
+     */
+    public double getConstant() {
+        return constant;
+    }
+
+    /**
+     * Returns all non-constant terms.
+     *
+     * @return the terms in the order in which they are added
+     */
+    public List<Expression> getTerms() {
+        return Collections.unmodifiableList(Arrays.asList(terms).subList(0, size));
+    }
+
+    /**
+     * Determines if the term at the given index is subtracted.
+     *
+     * @param index the index of the term as given by {@link #getTerms()}
+     * @return <tt>true</tt> if the term is subtracted, <tt>false</tt> if it is added
+     */
+    public boolean isSubtracted(int index) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException(String.format("Invalid index: %d", index));
+        }
+        return subtracted[index];
+    }
+
+    /*
+     * Replaces a sum of less than two terms by a simpler expression
+     */
+    Expression reduce() {
+        if (size == 0) {
+            return new Constant(constant);
+        }
+        if (size == 1) {
+            return new BinaryOperation(subtracted[0] ? BinaryOperation.Op.SUBTRACT : BinaryOperation.Op.ADD,
+                                       new Constant(constant),
+                                       terms[0]);
+        }
+        return this;
+    }
+
+    @Override
+    public Expression simplify() {
+        Sum result = new Sum();
+        result.constant = constant;
+        for (int i = 0; i < size; i++) {
+            result.addTerm(terms[i].simplify(), subtracted[i]);
+        }
+        return result.reduce();
+    }
+
+    @Override
+    public boolean isConstant() {
+        return size == 0;
+    }
+
+    /**
+     * Determines if the given object is an equal sum.
+     * <p>
+     * Two sums are equal if they have the same constant and equal terms with equal signs in the same order.
+     * </p>
+     *
+     * @param obj the object to compare to
+     * @return <tt>true</tt> if the given object is structurally equal to this sum, <tt>false</tt> otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof Sum)) {
+            return false;
+        }
+        Sum other = (Sum) obj;
+        if (Double.doubleToLongBits(constant) != Double.doubleToLongBits(other.constant)
+            || size != other.size
+            || hashCode() != other.hashCode()) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (subtracted[i] != other.subtracted[i] || !terms[i].equals(other.terms[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        if (hash == 0) {
+            long bits = Double.doubleToLongBits(constant);
+            int result = (int) (bits ^ (bits >>> 32));
+            for (int i = 0; i < size; i++) {
+                result = 31 * result + (subtracted[i] ? -terms[i].hashCode() : terms[i].hashCode());
+            }
+            hash = result == 0 ? 1 : result;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        if (constant != 0 || size == 0 || subtracted[0]) {
+            sb.append(constant);
+        }
+        for (int i = 0; i < size; i++) {
+            if (sb.length() > 1 || subtracted[i]) {
+                sb.append(subtracted[i] ? " SUBTRACT " : " ADD ");
+            }
+            sb.append(terms[i]);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
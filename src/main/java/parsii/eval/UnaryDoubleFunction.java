@@ -0,0 +1,35 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Represents a function with one argument, which is passed as primitive value.
+ * <p>
+ * A {@link FunctionCall} evaluates the argument and invokes {@link #eval(double)} directly, without creating any
+ * intermediate objects. Just like for {@link UnaryFunction}, NaN is not passed to the function but directly returned.
+ * </p>
+ * <p>
+ * In contrast to {@link UnaryFunction}, this is an interface and can therefore also be implemented by classes which
+ * already extend another class. {@link #eval(java.util.List)} is only used by callers which invoke the function
+ * themselves.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public interface UnaryDoubleFunction extends Function {
+
+    /**
+     * Performs the computation of the function.
+     *
+     * @param a the argument of the function
+     * @return the result of calling the function with a as argument
+     */
+    double eval(double a);
+}
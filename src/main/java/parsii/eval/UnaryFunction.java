@@ -41,6 +41,24 @@ public abstract class UnaryFunction implements Function {
      */
     protected abstract double eval(double a);
 
+    /**
+     * Performs the computation of the unary function for a whole block of values.
+     * <p>
+     * This is used when evaluating a {@link Batch}. By default {@link #eval(double)} is invoked per value. Just like
+     * when evaluating a single value, NaN is not passed to the function but directly returned.
+     * </p>
+     *
+     * @param a      the arguments of the function, which are replaced by the results
+     * @param length the number of values to compute
+     */
+    protected void eval(double[] a, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!Double.isNaN(a[i])) {
+                a[i] = eval(a[i]);
+            }
+        }
+    }
+
     @Override
     public boolean isNaturalFunction() {
         return true;
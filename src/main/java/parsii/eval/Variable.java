@@ -8,6 +8,11 @@
 
 package parsii.eval;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Represents a variable which binds a value to a name.
  * <p>
@@ -18,6 +23,9 @@ package parsii.eval;
  * <p>
  * A variable can be made constant, which will fail all further attempts to change it.
  * </p>
+ * <p>
+ * Listeners can be registered to be notified once the value of a variable changes (see {@link VariableListener}).
+ * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
@@ -26,6 +34,14 @@ public class Variable {
     private double value = 0d;
     private String name;
     private boolean constant = false;
+    private final int slot;
+
+    /*
+     * Listeners are kept as weak references, so that e.g. an incremental expression which is no longer used isn't
+     * kept alive by the variables it observes. The list is never modified but replaced and is empty for most
+     * variables, so that setValue only needs to check its size.
+     */
+    private volatile List<WeakReference<VariableListener>> listeners = Collections.emptyList();
 
     /**
      * Creates a new variable.
@@ -37,7 +53,19 @@ public class Variable {
      * @param name the name of the variable
      */
     protected Variable(String name) {
+        this(name, -1);
+    }
+
+    /**
+     * Creates a new variable which is stored at the given index of a frame.
+     *
+     * @param name the name of the variable
+     * @param slot the index of the value of this variable in a frame or -1 if the variable is not part of a frame
+     * @see Expression#evaluate(double[])
+     */
+    protected Variable(String name, int slot) {
         this.name = name;
+        this.slot = slot;
     }
 
     /**
@@ -50,7 +78,60 @@ public class Variable {
         if (constant) {
             throw new IllegalStateException(String.format("%s is constant!", name));
         }
+        double previousValue = this.value;
         this.value = value;
+        if (!listeners.isEmpty() && Double.doubleToLongBits(previousValue) != Double.doubleToLongBits(value)) {
+            notifyListeners();
+        }
+    }
+
+    private void notifyListeners() {
+        boolean collected = false;
+        for (WeakReference<VariableListener> reference : listeners) {
+            VariableListener listener = reference.get();
+            if (listener == null) {
+                collected = true;
+            } else {
+                listener.valueChanged(this);
+            }
+        }
+        if (collected) {
+            removeListener(null);
+        }
+    }
+
+    /**
+     * Registers a listener which is notified once the value of this variable changes.
+     * <p>
+     * Listeners are only notified if the new value differs from the previous one. The variable only keeps a weak
+     * reference to the listener, therefore the caller has to keep a reference as long as the listener is needed.
+     * </p>
+     *
+     * @param listener the listener to notify
+     */
+    public synchronized void addListener(VariableListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        List<WeakReference<VariableListener>> copy = new ArrayList<WeakReference<VariableListener>>(listeners);
+        copy.add(new WeakReference<VariableListener>(listener));
+        listeners = copy;
+    }
+
+    /**
+     * Removes the given listener.
+     *
+     * @param listener the listener to remove. Listeners which have been garbage collected are removed in any case
+     */
+    public synchronized void removeListener(VariableListener listener) {
+        List<WeakReference<VariableListener>> copy = new ArrayList<WeakReference<VariableListener>>();
+        for (WeakReference<VariableListener> reference : listeners) {
+            VariableListener existing = reference.get();
+            if (existing != null && existing != listener) {
+                copy.add(reference);
+            }
+        }
+        listeners = copy.isEmpty() ? Collections.<WeakReference<VariableListener>>emptyList() : copy;
     }
 
     /**
@@ -72,6 +153,44 @@ public class Variable {
         return value;
     }
 
+    /**
+     * Returns the index of the value of this variable in a frame.
+     *
+     * @return the slot assigned by the {@link Scope} or -1 if this variable is not part of a frame (which is the case
+     *         for the built-in constants like <tt>pi</tt>)
+     * @see Scope#createFrame()
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Reads the value of this variable from the given frame.
+     *
+     * @param frame the frame to read from
+     * @return the value stored in the slot of this variable or the value of the variable itself, if it has no slot
+     */
+    public double getValue(double[] frame) {
+        return slot < 0 ? value : frame[slot];
+    }
+
+    /**
+     * Stores the given value for this variable in the given frame.
+     * <p>
+     * In contrast to {@link #setValue(double)} the variable itself remains unchanged.
+     * </p>
+     *
+     * @param frame the frame to write to
+     * @param value the value to store
+     * @throws IllegalStateException if the variable is constant or has no slot
+     */
+    public void setValue(double[] frame, double value) {
+        if (constant || slot < 0) {
+            throw new IllegalStateException(String.format("%s is constant!", name));
+        }
+        frame[slot] = value;
+    }
+
     @Override
     public String toString() {
         return name + ": " + String.valueOf(value);
@@ -0,0 +1,30 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.eval;
+
+/**
+ * Is notified once the value of a {@link Variable} changed.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @see Variable#addListener(VariableListener)
+ * @since 2014/03
+ */
+public interface VariableListener {
+
+    /**
+     * Invoked after the value of the given variable was changed using {@link Variable#setValue(double)}.
+     * <p>
+     * The listener is invoked by the thread which changed the variable. Changing the value of a frame (see
+     * {@link Variable#setValue(double[], double)}) doesn't notify any listener.
+     * </p>
+     *
+     * @param variable the variable which changed
+     */
+    void valueChanged(Variable variable);
+}
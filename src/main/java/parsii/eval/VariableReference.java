@@ -8,6 +8,8 @@
 
 package parsii.eval;
 
+import java.util.Arrays;
+
 /**
  * Represents a reference to a variable.
  *
@@ -27,11 +29,50 @@ public class VariableReference extends Expression {
         this.var = var;
     }
 
+    /**
+     * Returns the variable which is accessed by this reference.
+     *
+     * @return the referenced variable
+     */
+    public Variable getVariable() {
+        return var;
+    }
+
     @Override
     public double evaluate() {
         return var.getValue();
     }
 
+    @Override
+    public double evaluate(double[] frame) {
+        return var.getValue(frame);
+    }
+
+    @Override
+    public void evaluate(Batch batch, double[] result) {
+        double[] temporary = batch.getTemporary(var);
+        if (temporary != null) {
+            System.arraycopy(temporary, 0, result, 0, batch.getLength());
+            return;
+        }
+        double[] column = batch.getColumn(var);
+        if (column != null) {
+            System.arraycopy(column, batch.getOffset(), result, 0, batch.getLength());
+        } else {
+            Arrays.fill(result, 0, batch.getLength(), var.getValue());
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof VariableReference && var == ((VariableReference) obj).var;
+    }
+
+    @Override
+    public int hashCode() {
+        return var.hashCode();
+    }
+
     @Override
     public String toString() {
         return var.getName();
@@ -24,8 +24,17 @@ import java.util.List;
 public abstract class Lookahead<T> {
     /**
      * Internal buffer containing items which where already created due to lookaheads.
+     * <p>
+     * This is a circular buffer, so that removing the current item and accessing any buffered item is done in
+     * constant time.
+     * </p>
+     */
+    protected List<T> itemBuffer = new RingBuffer<T>();
+
+    /**
+     * Contains the maximal number of items which can be inspected using {@link #next(int)}.
      */
-    protected List<T> itemBuffer = new ArrayList<T>();
+    protected int maximumLookahead = Integer.MAX_VALUE;
 
     /**
      * Determines if the end of the underlying data source has been reached.
@@ -85,9 +94,7 @@ public abstract class Lookahead<T> {
      * @return the n-th item in the stream
      */
     public T next(int offset) {
-        if (offset < 0) {
-            throw new IllegalArgumentException("offset < 0");
-        }
+        checkLookahead(offset);
         while (itemBuffer.size() <= offset && !endReached) {
             T item = fetch();
             if (item != null) {
@@ -106,6 +113,22 @@ public abstract class Lookahead<T> {
         }
     }
 
+    /**
+     * Ensures that the given offset is neither negative nor beyond the maximal lookahead.
+     *
+     * @param offset the offset to check
+     */
+    protected void checkLookahead(int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset < 0");
+        }
+        if (offset >= maximumLookahead) {
+            throw new IllegalArgumentException(String.format("Cannot look %d items ahead. The maximal lookahead is %d",
+                                                             offset,
+                                                             maximumLookahead));
+        }
+    }
+
     /**
      * Creates the end of input indicator item.
      * <p>
@@ -164,6 +187,32 @@ public abstract class Lookahead<T> {
         }
     }
 
+    /**
+     * Returns the maximal number of items which can be inspected at once.
+     *
+     * @return the maximal number of buffered items. {@link #next(int)} accepts offsets from 0 to this value - 1
+     */
+    public int getMaximumLookahead() {
+        return maximumLookahead;
+    }
+
+    /**
+     * Limits the number of items which can be inspected at once.
+     * <p>
+     * As only items within the lookahead are buffered, this bounds the memory used when processing large streams.
+     * By default, the lookahead is unlimited.
+     * </p>
+     *
+     * @param maximumLookahead the maximal number of buffered items. Must be at least 1, so that the current item is
+     *                         accessible
+     */
+    public void setMaximumLookahead(int maximumLookahead) {
+        if (maximumLookahead < 1) {
+            throw new IllegalArgumentException("maximumLookahead < 1");
+        }
+        this.maximumLookahead = maximumLookahead;
+    }
+
     /**
      * Provides access to the problem collector used by this instance.
      *
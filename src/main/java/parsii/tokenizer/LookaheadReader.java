@@ -8,72 +8,359 @@
 
 package parsii.tokenizer;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Arrays;
 
 /**
  * An efficient reader of character streams, reading character by character and supporting lookaheads.
  * <p>
- * Helps to read characters from a {@link Reader} one after another. Using <tt>next</tt>, upcoming characters can
- * be inspected without consuming (removing) the current one.
+ * Helps to read characters from a {@link Reader}, a {@link CharSequence} or a <tt>char[]</tt> one after another.
+ * Using <tt>next</tt>, upcoming characters can be inspected without consuming (removing) the current one.
+ * </p>
+ * <p>
+ * All characters are kept in a plain <tt>char[]</tt> buffer. Input given as <tt>char[]</tt> is used as is, a
+ * <tt>CharSequence</tt> is copied once and a <tt>Reader</tt> is read in blocks. The methods {@link #currentChar()},
+ * {@link #nextChar(int)} and {@link #consume(int)} directly work on this buffer without creating any objects. The
+ * methods inherited from {@link Lookahead} are still supported but create a {@link Char} per call.
+ * </p>
+ * <p>
+ * When reading from a <tt>Reader</tt>, only a window of characters starting at the current one is kept in memory.
+ * This window is only enlarged if a lookahead exceeds its size, which can be prevented using
+ * {@link #setMaximumLookahead(int)}.
+ * </p>
+ * <p>
+ * The reader itself can be used as {@link Position}, which always refers to the current character.
  * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
  */
-public class LookaheadReader extends Lookahead<Char> {
+public class LookaheadReader extends Lookahead<Char> implements Position {
+
+    private static final int BUFFER_SIZE = 1024;
 
+    /*
+     * Contains the reader to fill the buffer from or null if the whole input is in the buffer
+     */
     private Reader input;
+    private char[] buffer;
+    private boolean inMemory;
+    /*
+     * Index of the current character within the buffer
+     */
+    private int index;
+    /*
+     * Index after the last valid character in the buffer
+     */
+    private int limit;
+    /*
+     * Position of the last consumed character
+     */
     private int line = 1;
     private int pos = 0;
 
     /**
      * Creates a new LookaheadReader for the given Reader.
      * <p>
-     * Internally a {@link BufferedReader} is used to efficiently read single characters. The given reader will not
-     * be closed by this class.
+     * The reader is read in blocks into an internal buffer. The given reader will not be closed by this class.
      * </p>
      *
      * @param input the reader to draw the input from
      */
     public LookaheadReader(Reader input) {
+        reset(input);
+    }
+
+    /**
+     * Creates a new LookaheadReader for the given character sequence.
+     *
+     * @param input the characters to read
+     */
+    public LookaheadReader(CharSequence input) {
+        reset(input);
+    }
+
+    /**
+     * Creates a new LookaheadReader for the given range of the given array.
+     * <p>
+     * The array is not copied. Therefore it must not be modified while this reader or any token read from it is
+     * in use.
+     * </p>
+     *
+     * @param input  the array containing the characters to read
+     * @param offset the index of the first character to read
+     * @param length the number of characters to read
+     */
+    public LookaheadReader(char[] input, int offset, int length) {
+        reset(input, offset, length);
+    }
+
+    /**
+     * Resets this reader so that it reads from the given reader.
+     *
+     * @param input the reader to draw the input from
+     */
+    public void reset(Reader input) {
+        if (input == null) {
+            throw new IllegalArgumentException("input must not be null");
+        }
+        if (buffer == null || inMemory) {
+            buffer = new char[BUFFER_SIZE];
+        }
+        this.input = input;
+        this.inMemory = false;
+        reset(0, 0);
+    }
+
+    /**
+     * Resets this reader so that it reads the given character sequence.
+     *
+     * @param input the characters to read
+     */
+    public void reset(CharSequence input) {
         if (input == null) {
             throw new IllegalArgumentException("input must not be null");
         }
-        this.input = new BufferedReader(input);
+        char[] data = input.toString().toCharArray();
+        reset(data, 0, data.length);
+    }
+
+    /**
+     * Resets this reader so that it reads the given range of the given array.
+     * <p>
+     * The array is not copied. Therefore it must not be modified while this reader or any token read from it is
+     * in use.
+     * </p>
+     *
+     * @param input  the array containing the characters to read
+     * @param offset the index of the first character to read
+     * @param length the number of characters to read
+     */
+    public void reset(char[] input, int offset, int length) {
+        if (input == null) {
+            throw new IllegalArgumentException("input must not be null");
+        }
+        if (offset < 0 || length < 0 || offset + length > input.length) {
+            throw new IllegalArgumentException(String.format("Invalid range: %d, %d (length: %d)",
+                                                             offset,
+                                                             length,
+                                                             input.length));
+        }
+        this.input = null;
+        this.buffer = input;
+        this.inMemory = true;
+        reset(offset, offset + length);
+    }
+
+    private void reset(int start, int end) {
+        index = start;
+        limit = end;
+        line = 1;
+        pos = 0;
+        itemBuffer.clear();
+        endReached = false;
+        endOfInputIndicator = null;
+    }
+
+    /*
+     * Makes sure that the character at index + offset is available in the buffer. Returns false if the input
+     * ends before.
+     */
+    private boolean fill(int offset) {
+        if (index + offset < limit) {
+            return true;
+        }
+        if (input == null) {
+            return false;
+        }
+        if (index > 0) {
+            System.arraycopy(buffer, index, buffer, 0, limit - index);
+            limit -= index;
+            index = 0;
+        }
+        if (offset >= buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, offset + 1));
+        }
+        try {
+            while (limit <= offset) {
+                int read = input.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    input = null;
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        } catch (IOException e) {
+            problemCollector.add(ParseError.error(new Char('\0', line, pos), e.getMessage()));
+            input = null;
+            return false;
+        }
+    }
+
+    /**
+     * Returns the current character without creating a {@link Char}.
+     *
+     * @return the current character or <tt>\0</tt> if the end of input was reached
+     */
+    public char currentChar() {
+        if (index < limit || fill(0)) {
+            return buffer[index];
+        }
+        return '\0';
+    }
+
+    /**
+     * Returns the next n-th character without creating a {@link Char}.
+     *
+     * @param offset the number of characters to look ahead. 0 returns the current character.
+     * @return the n-th character after the current one or <tt>\0</tt> if the input ends before
+     */
+    public char nextChar(int offset) {
+        checkLookahead(offset);
+        if (fill(offset)) {
+            return buffer[index + offset];
+        }
+        return '\0';
+    }
+
+    /**
+     * Determines if the upcoming characters match the given string without consuming them.
+     *
+     * @param string the characters to check for
+     * @return <tt>true</tt> if the input continues with the given string, <tt>false</tt> otherwise
+     */
+    public boolean isAt(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            if (nextChar(i) != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of characters which can be kept in memory at once.
+     * <p>
+     * For input read from a <tt>Reader</tt>, this is the size of the window of characters. For in-memory input this
+     * is the length of the array containing it.
+     * </p>
+     *
+     * @return the size of the internal buffer
+     */
+    public int getBufferSize() {
+        return buffer.length;
+    }
+
+    /*
+     * Returns the array containing the input if it is kept completely in memory. Returns null if the input is read
+     * from a reader, as the buffer contents are moved around.
+     */
+    char[] getData() {
+        return inMemory ? buffer : null;
+    }
+
+    /*
+     * Returns the index of the current character within the array returned by getData()
+     */
+    int getIndex() {
+        return index;
     }
 
     @Override
-    protected Char endOfInput() {
-        return new Char('\0', line, pos);
+    public int getLine() {
+        if (fill(0) && buffer[index] == '\n') {
+            return line + 1;
+        }
+        return line;
     }
 
     @Override
-    protected Char fetch() {
-        try {
-            int character = input.read();
-            if (character == -1) {
-                return null;
+    public int getPos() {
+        if (!fill(0)) {
+            return pos;
+        }
+        if (buffer[index] == '\n') {
+            return 1;
+        }
+        return pos + 1;
+    }
+
+    @Override
+    public Char next(int offset) {
+        checkLookahead(offset);
+        int currentLine = line;
+        int currentPos = pos;
+        for (int i = 0; fill(i); i++) {
+            char ch = buffer[index + i];
+            if (ch == '\n') {
+                currentLine++;
+                currentPos = 1;
+            } else {
+                currentPos++;
             }
-            if (character == '\n') {
-                line++;
-                pos = 0;
+            if (i == offset) {
+                return new Char(ch, currentLine, currentPos);
             }
+        }
+        return new Char('\0', currentLine, currentPos);
+    }
+
+    @Override
+    public void consume(int numberOfItems) {
+        if (numberOfItems < 0) {
+            throw new IllegalArgumentException("numberOfItems < 0");
+        }
+        while (numberOfItems-- > 0 && fill(0)) {
+            advance();
+        }
+    }
+
+    /*
+     * Consumes the current character, which must be available in the buffer, and updates the position
+     */
+    private char advance() {
+        char ch = buffer[index++];
+        if (ch == '\n') {
+            line++;
+            pos = 1;
+        } else {
             pos++;
-            return new Char((char) character, line, pos);
-        } catch (IOException e) {
-            problemCollector.add(ParseError.error(new Char('\0', line, pos), e.getMessage()));
+        }
+        return ch;
+    }
+
+    @Override
+    protected Char endOfInput() {
+        return new Char('\0', line, pos);
+    }
+
+    /**
+     * Removes and returns the current character.
+     * <p>
+     * This reader doesn't use this method itself, as {@link #next(int)} and {@link #consume(int)} directly operate
+     * on the buffer. It is still provided (like any other <tt>Lookahead</tt>) for subclasses which read characters
+     * via <tt>fetch</tt>.
+     * </p>
+     *
+     * @return the current character or <tt>null</tt> if the end of input was reached
+     */
+    @Override
+    protected Char fetch() {
+        if (!fill(0)) {
             return null;
         }
+        char ch = advance();
+        return new Char(ch, line, pos);
     }
 
     @Override
     public String toString() {
-        if (itemBuffer.size() == 0) {
+        if (index >= limit) {
             return line + ":" + pos + ": Buffer empty";
         }
-        if (itemBuffer.size() < 2) {
+        if (index + 1 >= limit) {
             return line + ":" + pos + ": " + current();
         }
         return line + ":" + pos + ": " + current() + ", " + next();
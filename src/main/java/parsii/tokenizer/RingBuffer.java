@@ -0,0 +1,118 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.tokenizer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A list backed by a growable circular array.
+ * <p>
+ * Used as item buffer by {@link Lookahead}: appending items, accessing them by index and removing the first item
+ * are all done in constant time. Other insertions and removals shift the elements like an <tt>ArrayList</tt> would.
+ * </p>
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+class RingBuffer<T> extends AbstractList<T> implements RandomAccess {
+
+    /*
+     * The capacity is always a power of two, so that indices can be wrapped using a bit mask
+     */
+    private Object[] elements = new Object[16];
+    private int head;
+    private int size;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        checkIndex(index);
+        return (T) elements[(head + index) & (elements.length - 1)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T set(int index, T element) {
+        checkIndex(index);
+        int physicalIndex = (head + index) & (elements.length - 1);
+        T result = (T) elements[physicalIndex];
+        elements[physicalIndex] = element;
+        return result;
+    }
+
+    @Override
+    public void add(int index, T element) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size));
+        }
+        if (size == elements.length) {
+            grow();
+        }
+        int mask = elements.length - 1;
+        for (int i = size; i > index; i--) {
+            elements[(head + i) & mask] = elements[(head + i - 1) & mask];
+        }
+        elements[(head + index) & mask] = element;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T remove(int index) {
+        checkIndex(index);
+        int mask = elements.length - 1;
+        T result = (T) elements[(head + index) & mask];
+        if (index == 0) {
+            elements[head] = null;
+            head = (head + 1) & mask;
+        } else {
+            for (int i = index; i < size - 1; i++) {
+                elements[(head + i) & mask] = elements[(head + i + 1) & mask];
+            }
+            elements[(head + size - 1) & mask] = null;
+        }
+        size--;
+        modCount++;
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, null);
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Doubles the capacity and moves all elements to the start of the new array
+     */
+    private void grow() {
+        Object[] newElements = new Object[elements.length * 2];
+        int firstPart = Math.min(size, elements.length - head);
+        System.arraycopy(elements, head, newElements, 0, firstPart);
+        System.arraycopy(elements, 0, newElements, firstPart, size - firstPart);
+        elements = newElements;
+        head = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size));
+        }
+    }
+}
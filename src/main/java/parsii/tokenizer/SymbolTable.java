@@ -0,0 +1,300 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii.tokenizer;
+
+/**
+ * Maps symbols (names like identifiers, keywords or quantifiers) to canonical strings and optional values.
+ * <p>
+ * Symbols can be looked up either by a string or directly by a range of a <tt>char[]</tt>, so that no string has to
+ * be created to resolve a name read by the {@link Tokenizer}. Each symbol is stored once, so that all tokens for the
+ * same name share one string instance. This is used instead of {@link String#intern()}, which goes through a global
+ * table shared by all threads.
+ * </p>
+ * <p>
+ * The table uses open addressing with linear probing. It isn't synchronized, as each tokenizer (or parser) uses its
+ * own table. A table which is completely filled and then only read, can be safely shared by many threads.
+ * </p>
+ *
+ * @param <V> the type of values which can be associated with symbols
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class SymbolTable<V> {
+
+    private final boolean ignoreCase;
+    private final int maximumSize;
+    private String[] keys = new String[16];
+    private int[] hashes = new int[16];
+    private Object[] values = new Object[16];
+    private int size;
+
+    /**
+     * Creates a new symbol table which distinguishes between upper and lower case and has no size limit.
+     */
+    public SymbolTable() {
+        this(false, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new symbol table.
+     *
+     * @param ignoreCase  determines if symbols which only differ in case are treated as equal
+     * @param maximumSize the maximal number of symbols stored. Once this is reached, {@link #getSymbol(String)} and
+     *                    {@link #getSymbol(char[], int, int)} no longer add symbols, which bounds the memory used
+     *                    when processing many different names
+     */
+    public SymbolTable(boolean ignoreCase, int maximumSize) {
+        this.ignoreCase = ignoreCase;
+        this.maximumSize = maximumSize;
+    }
+
+    /*
+     * Computes the hash of the given characters. For case sensitive tables, this is the same hash as computed by
+     * String.hashCode(), so that the cached hash of strings can be used.
+     */
+    private int hash(char[] data, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + (ignoreCase ? Character.toLowerCase(data[i]) : data[i]);
+        }
+        return hash;
+    }
+
+    private int hash(CharSequence symbol) {
+        if (!ignoreCase && symbol instanceof String) {
+            return symbol.hashCode();
+        }
+        int hash = 0;
+        for (int i = 0; i < symbol.length(); i++) {
+            hash = 31 * hash + (ignoreCase ? Character.toLowerCase(symbol.charAt(i)) : symbol.charAt(i));
+        }
+        return hash;
+    }
+
+    private boolean isEqual(char a, char b) {
+        return a == b || (ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b));
+    }
+
+    /*
+     * Spreads the hash, as the table size is a power of two and the hash of short names is poorly distributed
+     */
+    private int indexOf(int hash) {
+        int h = hash ^ (hash >>> 16);
+        return h & (keys.length - 1);
+    }
+
+    /*
+     * Returns the slot containing the given symbol or the free slot where it would be inserted
+     */
+    private int find(char[] data, int offset, int length, int hash) {
+        int index = indexOf(hash);
+        while (keys[index] != null) {
+            if (hashes[index] == hash && matches(keys[index], data, offset, length)) {
+                return index;
+            }
+            index = (index + 1) & (keys.length - 1);
+        }
+        return index;
+    }
+
+    private boolean matches(String key, char[] data, int offset, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!isEqual(key.charAt(i), data[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(CharSequence symbol, int hash) {
+        int index = indexOf(hash);
+        while (keys[index] != null) {
+            if (hashes[index] == hash && matches(keys[index], symbol)) {
+                return index;
+            }
+            index = (index + 1) & (keys.length - 1);
+        }
+        return index;
+    }
+
+    private boolean matches(String key, CharSequence symbol) {
+        if (key == symbol) {
+            return true;
+        }
+        if (key.length() != symbol.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (!isEqual(key.charAt(i), symbol.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Stores the given symbol in the given (free) slot
+     */
+    private void insert(int index, int hash, String key, Object value) {
+        keys[index] = key;
+        hashes[index] = hash;
+        values[index] = value;
+        size++;
+        if (size * 4 >= keys.length * 3) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        Object[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = indexOf(oldHashes[i]);
+                while (keys[index] != null) {
+                    index = (index + 1) & (keys.length - 1);
+                }
+                keys[index] = oldKeys[i];
+                hashes[index] = oldHashes[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the canonical string for the given range of characters.
+     * <p>
+     * If the symbol isn't known yet, it is added (unless the maximum size is reached).
+     * </p>
+     *
+     * @param data   the array containing the symbol
+     * @param offset the index of the first character of the symbol
+     * @param length the number of characters of the symbol
+     * @return a string containing the given characters, which is the same instance for all calls with an equal symbol
+     * (as long as the table isn't full)
+     */
+    public String getSymbol(char[] data, int offset, int length) {
+        int hash = hash(data, offset, length);
+        int index = find(data, offset, length, hash);
+        if (keys[index] != null) {
+            return keys[index];
+        }
+        String result = new String(data, offset, length);
+        if (size < maximumSize) {
+            insert(index, hash, result, null);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the canonical string for the given symbol.
+     * <p>
+     * If the symbol isn't known yet, it is added (unless the maximum size is reached).
+     * </p>
+     *
+     * @param symbol the symbol to lookup
+     * @return a string equal to the given one, which is the same instance for all calls with an equal symbol
+     * (as long as the table isn't full)
+     */
+    public String getSymbol(String symbol) {
+        int hash = hash(symbol);
+        int index = find(symbol, hash);
+        if (keys[index] != null) {
+            return keys[index];
+        }
+        if (size < maximumSize) {
+            insert(index, hash, symbol, null);
+        }
+        return symbol;
+    }
+
+    /**
+     * Returns the value associated with the given range of characters.
+     *
+     * @param data   the array containing the symbol
+     * @param offset the index of the first character of the symbol
+     * @param length the number of characters of the symbol
+     * @return the value associated with the given symbol or <tt>null</tt> if no value is present
+     */
+    @SuppressWarnings("unchecked")
+    public V get(char[] data, int offset, int length) {
+        return (V) values[find(data, offset, length, hash(data, offset, length))];
+    }
+
+    /**
+     * Returns the value associated with the given symbol.
+     *
+     * @param symbol the symbol to lookup
+     * @return the value associated with the given symbol or <tt>null</tt> if no value is present
+     */
+    @SuppressWarnings("unchecked")
+    public V get(CharSequence symbol) {
+        return (V) values[find(symbol, hash(symbol))];
+    }
+
+    /**
+     * Associates the given value with the given symbol.
+     * <p>
+     * Symbols which are explicitly put are always added, even if the maximum size is reached.
+     * </p>
+     *
+     * @param symbol the symbol to associate the value with
+     * @param value  the value to store
+     * @return the value previously associated with the symbol or <tt>null</tt> if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(String symbol, V value) {
+        if (symbol == null) {
+            throw new IllegalArgumentException("symbol must not be null");
+        }
+        int hash = hash(symbol);
+        int index = find(symbol, hash);
+        if (keys[index] == null) {
+            insert(index, hash, symbol, value);
+            return null;
+        }
+        V result = (V) values[index];
+        values[index] = value;
+        return result;
+    }
+
+    /**
+     * Determines if symbols which only differ in case are treated as equal.
+     *
+     * @return <tt>true</tt> if the table ignores case, <tt>false</tt> otherwise
+     */
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Returns the number of known symbols.
+     *
+     * @return the number of symbols in this table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Determines if the table contains any symbols.
+     *
+     * @return <tt>true</tt> if there are no symbols, <tt>false</tt> otherwise
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -52,10 +52,31 @@ public class Token implements Position {
     }
 
     private TokenType type;
-    private String trigger = "";
-    private String internTrigger = null;
-    private String contents = "";
-    private String source = "";
+
+    /*
+     * The trigger, contents and source are recorded as ranges (start inclusive, end exclusive) into the input of the
+     * tokenizer, as long as the appended characters are adjacent within that input. Otherwise (or if no input array
+     * is available) a StringBuilder is used. The string values are only created when requested.
+     */
+    private char[] data;
+    private int triggerStart;
+    private int triggerEnd;
+    private int contentStart;
+    private int contentEnd;
+    private int sourceStart;
+    private int sourceEnd;
+    private StringBuilder triggerBuilder;
+    private StringBuilder contentBuilder;
+    private StringBuilder sourceBuilder;
+    private String trigger;
+    private String contents;
+    private String source;
+
+    /*
+     * Value of a numeric token, if already computed by the tokenizer or by getNumericValue()
+     */
+    private boolean numericValueKnown;
+    private double numericValue;
 
     private int line;
     protected int pos;
@@ -108,9 +129,18 @@ public class Token implements Position {
      * @return <tt>this</tt> to support fluent method calls
      */
     public Token addToTrigger(Char ch) {
-        trigger += ch.getValue();
-        internTrigger = null;
-        source += ch.getValue();
+        return addToTrigger(ch.getValue());
+    }
+
+    /**
+     * Adds the given character to the trigger (and the source) but not to the content
+     *
+     * @param ch the character to add to the trigger and source
+     * @return <tt>this</tt> to support fluent method calls
+     */
+    public Token addToTrigger(char ch) {
+        triggerBuilder().append(ch);
+        sourceBuilder().append(ch);
         return this;
     }
 
@@ -121,7 +151,17 @@ public class Token implements Position {
      * @return <tt>this</tt> to support fluent method calls
      */
     public Token addToSource(Char ch) {
-        source += ch.getValue();
+        return addToSource(ch.getValue());
+    }
+
+    /**
+     * Adds the given character to the source of this token, but neither to the trigger nor to the content.
+     *
+     * @param ch the character to add to the source
+     * @return <tt>this</tt> to support fluent method calls
+     */
+    public Token addToSource(char ch) {
+        sourceBuilder().append(ch);
         return this;
     }
 
@@ -142,8 +182,8 @@ public class Token implements Position {
      * @return <tt>this</tt> to support fluent method calls
      */
     public Token addToContent(char ch) {
-        contents += ch;
-        source += ch;
+        contentBuilder().append(ch);
+        sourceBuilder().append(ch);
         return this;
     }
 
@@ -154,20 +194,164 @@ public class Token implements Position {
      * @return <tt>this</tt> to support fluent method calls
      */
     public Token silentAddToContent(char ch) {
-        contents += ch;
+        contentBuilder().append(ch);
         return this;
     }
 
+    /*
+     * Tries to extend the given range by the character at index. Returns the new end of the range or -1 if
+     * the character cannot be recorded as part of the range.
+     */
+    private int extend(char[] input, int index, int start, int end) {
+        if (input == null || (data != null && data != input)) {
+            return -1;
+        }
+        if (start == end || end == index) {
+            data = input;
+            return index + 1;
+        }
+        return -1;
+    }
+
+    /*
+     * Adds the character at the given index of the given input to the trigger. Used by the tokenizer to record
+     * ranges instead of copying characters.
+     */
+    void appendToTrigger(char[] input, int index, char ch) {
+        if (triggerBuilder == null && trigger == null) {
+            int end = extend(input, index, triggerStart, triggerEnd);
+            if (end >= 0) {
+                if (triggerStart == triggerEnd) {
+                    triggerStart = index;
+                }
+                triggerEnd = end;
+                return;
+            }
+        }
+        triggerBuilder().append(ch);
+    }
+
+    /*
+     * Adds the character at the given index of the given input to the contents.
+     */
+    void appendToContent(char[] input, int index, char ch) {
+        numericValueKnown = false;
+        if (contentBuilder == null && contents == null) {
+            int end = extend(input, index, contentStart, contentEnd);
+            if (end >= 0) {
+                if (contentStart == contentEnd) {
+                    contentStart = index;
+                }
+                contentEnd = end;
+                return;
+            }
+        }
+        contentBuilder().append(ch);
+    }
+
+    /*
+     * Adds the character at the given index of the given input to the source.
+     */
+    void appendToSource(char[] input, int index, char ch) {
+        if (sourceBuilder == null && source == null) {
+            int end = extend(input, index, sourceStart, sourceEnd);
+            if (end >= 0) {
+                if (sourceStart == sourceEnd) {
+                    sourceStart = index;
+                }
+                sourceEnd = end;
+                return;
+            }
+        }
+        sourceBuilder().append(ch);
+    }
+
+    /*
+     * Switches the trigger to a StringBuilder (if not done yet), so that arbitrary characters can be appended.
+     */
+    private StringBuilder triggerBuilder() {
+        if (triggerBuilder == null) {
+            triggerBuilder = new StringBuilder(getTrigger());
+        }
+        trigger = null;
+        return triggerBuilder;
+    }
+
+    private StringBuilder contentBuilder() {
+        numericValueKnown = false;
+        if (contentBuilder == null) {
+            contentBuilder = new StringBuilder(getContents());
+        }
+        contents = null;
+        return contentBuilder;
+    }
+
+    private StringBuilder sourceBuilder() {
+        if (sourceBuilder == null) {
+            sourceBuilder = new StringBuilder(getSource());
+        }
+        source = null;
+        return sourceBuilder;
+    }
+
+    /*
+     * Creates a string for the given range of the input
+     */
+    private String slice(int start, int end) {
+        if (start == end) {
+            return "";
+        }
+        return new String(data, start, end - start);
+    }
+
     /**
      * Returns the string or character which further specifies this token.
      *
      * @return a first character or characters which where used to determine the token type
      */
     public String getTrigger() {
-        if (internTrigger == null) {
-            internTrigger = trigger.intern();
+        if (trigger == null) {
+            trigger = triggerBuilder != null ? triggerBuilder.toString() : slice(triggerStart, triggerEnd);
+        }
+        return trigger;
+    }
+
+    /*
+     * Compares the trigger with the given string. If the trigger is still a range of the input, this is done without
+     * creating a string.
+     */
+    private boolean isTrigger(String expected) {
+        if (trigger != null || triggerBuilder != null) {
+            return getTrigger().equals(expected);
+        }
+        if (expected.length() != triggerEnd - triggerStart) {
+            return false;
         }
-        return internTrigger;
+        for (int i = 0; i < expected.length(); i++) {
+            if (data[triggerStart + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Replaces the contents by the canonical string provided by the given symbol table. Therefore all tokens of the
+     * same tokenizer with equal contents share one string.
+     */
+    void resolveContents(SymbolTable<?> symbols) {
+        if (contentBuilder == null && contents == null && data != null) {
+            contents = symbols.getSymbol(data, contentStart, contentEnd - contentStart);
+        } else {
+            contents = symbols.getSymbol(getContents());
+        }
+    }
+
+    /*
+     * Used by the tokenizer to turn an INTEGER into a DECIMAL without copying the token
+     */
+    void setType(TokenType type) {
+        this.type = type;
     }
 
     /**
@@ -185,6 +369,9 @@ public class Token implements Position {
      * @return the content of this token
      */
     public String getContents() {
+        if (contents == null) {
+            contents = contentBuilder != null ? contentBuilder.toString() : slice(contentStart, contentEnd);
+        }
         return contents;
     }
 
@@ -194,9 +381,42 @@ public class Token implements Position {
      * @return all characters consumed while parsing this token
      */
     public String getSource() {
+        if (source == null) {
+            source = sourceBuilder != null ? sourceBuilder.toString() : slice(sourceStart, sourceEnd);
+        }
         return source;
     }
 
+    /*
+     * Used by the tokenizer to provide the value of a number which was computed while reading it
+     */
+    void setNumericValue(double value) {
+        this.numericValue = value;
+        this.numericValueKnown = true;
+    }
+
+    /**
+     * Returns the value of a numeric token.
+     * <p>
+     * In most cases, the value is already computed by the tokenizer while reading the digits. Otherwise the contents
+     * are parsed using {@link Double#parseDouble(String)}.
+     * </p>
+     *
+     * @return the value of this INTEGER or DECIMAL token
+     * @throws IllegalStateException if this token isn't a number
+     * @throws NumberFormatException if the contents of this token cannot be parsed as number
+     */
+    public double getNumericValue() {
+        if (!isNumber()) {
+            throw new IllegalStateException(String.format("%s is not a number", this));
+        }
+        if (!numericValueKnown) {
+            numericValue = Double.parseDouble(getContents());
+            numericValueKnown = true;
+        }
+        return numericValue;
+    }
+
     @Override
     public int getLine() {
         return line;
@@ -217,7 +437,7 @@ public class Token implements Position {
      */
     public void setTrigger(String trigger) {
         this.trigger = trigger;
-        this.internTrigger = null;
+        this.triggerBuilder = null;
     }
 
     /**
@@ -230,6 +450,8 @@ public class Token implements Position {
      */
     public void setContent(String content) {
         this.contents = content;
+        this.contentBuilder = null;
+        this.numericValueKnown = false;
     }
 
     /**
@@ -242,6 +464,7 @@ public class Token implements Position {
      */
     public void setSource(String source) {
         this.source = source;
+        this.sourceBuilder = null;
     }
 
 
@@ -278,7 +501,7 @@ public class Token implements Position {
             throw new IllegalArgumentException("trigger must not be null");
         }
 
-        return getTrigger() == trigger.intern();
+        return isTrigger(trigger);
     }
 
     /**
@@ -292,7 +515,7 @@ public class Token implements Position {
             return false;
         }
         for (String aTrigger : triggers) {
-            if (aTrigger != null && aTrigger.intern() == getTrigger()) {
+            if (aTrigger != null && isTrigger(aTrigger)) {
                 return true;
             }
         }
@@ -30,16 +30,41 @@ import java.util.*;
  * the ID matches one of the supplied keywords, and convert if necessary.</li>
  * <li>If the current character is an opening or closing bracket, a SYMBOL for that single character is returned</li>
  * <li>If the current character is one of the special id starters, all valid ID characters
- * ({@link #isIdentifierChar(Char)} are consumed and returned as SPECIAL_ID</li>
+ * ({@link #isIdentifierChar(char)} are consumed and returned as SPECIAL_ID</li>
  * <li>All other characters, especially all operators, will be read and returned as one SYMBOL. Therefore <tt>#++*</tt>
  * will be returned as a single symbol.</li>
  * </ul>
  * </p>
+ * <p>
+ * The settings (brackets, comment markers, string delimiters and special id starters and terminators) are compiled
+ * into a table of character classes, so that most decisions only require one array lookup per character. The table
+ * is rebuilt once a setting changes.
+ * </p>
+ * <p>
+ * Large inputs can be tokenized in a streaming fashion by supplying a {@link Reader}. Tokens then don't refer to the
+ * underlying input and only a window of characters is kept in memory (see {@link LookaheadReader}). This window only
+ * grows if the tokenizer looks further ahead than its initial size, which it only does to match very long comment
+ * markers. The number of buffered tokens can additionally be limited using {@link #setMaximumLookahead(int)}. Note
+ * that this limit applies to tokens and not to the characters buffered by the reader.
+ * </p>
  *
  * @author Andreas Haufler (aha@scireum.de)
  * @since 2013/09
  */
 public class Tokenizer extends Lookahead<Token> {
+    /*
+     * All powers of ten which can be exactly represented as double
+     */
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+                                                   1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    /*
+     * Largest integer up to which all integers can be exactly represented as double
+     */
+    private static final long MAX_EXACT_SIGNIFICAND = 1L << 53;
+    /*
+     * Maximal number of distinct identifiers remembered by the symbol table
+     */
+    private static final int MAXIMUM_NUMBER_OF_SYMBOLS = 8192;
     /*
      * Contains the underlying input
      */
@@ -89,16 +114,59 @@ public class Tokenizer extends Lookahead<Token> {
     /*
      * Contains keywords which will cause IDs to be converted to KEYWORD if the name matches
      */
-    private Map<String, String> keywords = new IdentityHashMap<String, String>();
+    private SymbolTable<String> keywords = new SymbolTable<String>(true, Integer.MAX_VALUE);
     /*
      * Determines if keywords are case sensitive
      */
     private boolean keywordsCaseSensitive = false;
+    /*
+     * Contains the names of all identifiers read so far, so that tokens with the same name share one string. This is
+     * kept when the tokenizer is reset but limited in size, so that streaming large inputs doesn't fill it up.
+     */
+    private SymbolTable<Object> symbols = new SymbolTable<Object>(false, MAXIMUM_NUMBER_OF_SYMBOLS);
     /*
      * Contains all characters which are used to delimit a string, and also a second character which is used to
      * escape characters within this string. '\0' means no escaping.
      */
-    private Map<Character, Character> stringDelimiters = new IdentityHashMap<Character, Character>();
+    private Map<Character, Character> stringDelimiters = new HashMap<Character, Character>();
+
+    /*
+     * Character classes used by the tokenizer. A character can belong to several classes.
+     */
+    private static final int WHITESPACE = 1;
+    private static final int DIGIT = 1 << 1;
+    private static final int LETTER = 1 << 2;
+    private static final int IDENTIFIER_PART = 1 << 3;
+    private static final int BRACKET = 1 << 4;
+    private static final int STRING_DELIMITER = 1 << 5;
+    private static final int SPECIAL_ID_STARTER = 1 << 6;
+    private static final int SPECIAL_ID_TERMINATOR = 1 << 7;
+    private static final int COMMENT_START = 1 << 8;
+    private static final int SYMBOL = 1 << 9;
+
+    /*
+     * Number of characters for which the classes are precomputed
+     */
+    private static final int CHAR_CLASSES_SIZE = 256;
+
+    /*
+     * Contains the classes of the first CHAR_CLASSES_SIZE characters, computed from the current settings. This is
+     * reset to null by all setters which change the classification, so that it is recomputed on demand.
+     */
+    private int[] charClasses;
+
+    /*
+     * Character classes for the default settings. As this table is never modified, it is shared by all tokenizers
+     * until a setting is changed.
+     */
+    private static final int[] DEFAULT_CHAR_CLASSES = new Tokenizer("").compileCharClasses();
+
+    /*
+     * Determine if a subclass overrides the Char based checks, which are then still called (at the cost of creating
+     * a Char per checked character)
+     */
+    private final boolean charBasedIdentifierCheck;
+    private final boolean charBasedSymbolCheck;
 
     /**
      * Creates a new tokenizer for the given input
@@ -107,12 +175,124 @@ public class Tokenizer extends Lookahead<Token> {
      *              read character b character.
      */
     public Tokenizer(Reader input) {
-        this.input = new LookaheadReader(input);
+        this(new LookaheadReader(input));
+    }
+
+    /**
+     * Creates a new tokenizer for the given character sequence.
+     * <p>
+     * Tokens read from in-memory input refer to ranges of the input and only create strings when their contents,
+     * trigger or source is requested.
+     * </p>
+     *
+     * @param input the input to parse
+     */
+    public Tokenizer(CharSequence input) {
+        this(new LookaheadReader(input));
+    }
+
+    /**
+     * Creates a new tokenizer for the given range of the given array.
+     * <p>
+     * The array is not copied. Therefore it must not be modified while the tokenizer or any of its tokens is in use.
+     * </p>
+     *
+     * @param input  the array containing the input to parse
+     * @param offset the index of the first character to parse
+     * @param length the number of characters to parse
+     */
+    public Tokenizer(char[] input, int offset, int length) {
+        this(new LookaheadReader(input, offset, length));
+    }
+
+    private Tokenizer(LookaheadReader input) {
+        this.input = input;
         this.input.setProblemCollector(problemCollector);
 
         // Setup default string handling
         addStringDelimiter('"', '\\');
         addStringDelimiter('\'', '\0');
+        charClasses = DEFAULT_CHAR_CLASSES;
+        charBasedIdentifierCheck = overrides("isIdentifierChar");
+        charBasedSymbolCheck = overrides("isSymbolCharacter");
+    }
+
+    /*
+     * Determines if a subclass overrides the Char based variant of the given method
+     */
+    private boolean overrides(String method) {
+        for (Class<?> type = getClass(); type != Tokenizer.class; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod(method, Char.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Check the superclass...
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Determines if the current character is a valid identifier part, using the Char based check if it is overridden
+     */
+    private boolean isAtIdentifierChar() {
+        if (charBasedIdentifierCheck) {
+            return isIdentifierChar(input.current());
+        }
+        return isIdentifierChar(input.currentChar());
+    }
+
+    /*
+     * Determines if the current character is a symbol character, using the Char based check if it is overridden
+     */
+    private boolean isAtSymbolCharacter() {
+        if (charBasedSymbolCheck) {
+            return isSymbolCharacter(input.current());
+        }
+        return isSymbolCharacter(input.currentChar());
+    }
+
+    /**
+     * Resets the tokenizer so that it reads the given input.
+     * <p>
+     * All settings like keywords or comment markers are kept, so that a tokenizer can be reused for many inputs.
+     * </p>
+     *
+     * @param input the input to parse
+     */
+    public void reset(Reader input) {
+        this.input.reset(input);
+        reset();
+    }
+
+    /**
+     * Resets the tokenizer so that it reads the given character sequence.
+     *
+     * @param input the input to parse
+     * @see #reset(java.io.Reader)
+     */
+    public void reset(CharSequence input) {
+        this.input.reset(input);
+        reset();
+    }
+
+    /**
+     * Resets the tokenizer so that it reads the given range of the given array.
+     *
+     * @param input  the array containing the input to parse
+     * @param offset the index of the first character to parse
+     * @param length the number of characters to parse
+     * @see #reset(java.io.Reader)
+     */
+    public void reset(char[] input, int offset, int length) {
+        this.input.reset(input, offset, length);
+        reset();
+    }
+
+    private void reset() {
+        itemBuffer.clear();
+        endReached = false;
+        endOfInputIndicator = null;
     }
 
     @Override
@@ -128,65 +308,199 @@ public class Tokenizer extends Lookahead<Token> {
 
     @Override
     protected Token fetch() {
-        // Fetch and ignore any whitespace
-        while (input.current().isWhitepace()) {
-            input.consume();
-        }
+        while (true) {
+            // Fetch and ignore any whitespace
+            char current = input.currentChar();
+            int charClass = classOf(current);
+            while ((charClass & WHITESPACE) != 0) {
+                input.consume(1);
+                current = input.currentChar();
+                charClass = classOf(current);
+            }
 
-        // End of input reached? Pass end of input signal on...
-        if (input.current().isEndOfInput()) {
-            return null;
-        }
+            // End of input reached? Pass end of input signal on...
+            if (current == '\0') {
+                return null;
+            }
 
-        // Handle (and ignore) line comments
-        if (isAtStartOfLineComment()) {
-            skipToEndOfLine();
-            return fetch();
-        }
+            // Only characters which start a comment marker need to be checked further
+            if ((charClass & COMMENT_START) != 0) {
+                // Handle (and ignore) line comments
+                if (isAtStartOfLineComment()) {
+                    skipToEndOfLine();
+                    continue;
+                }
 
-        // Handle (and ignore) block comments
-        if (isAtStartOfBlockComment()) {
-            skipBlockComment();
-            return fetch();
-        }
+                // Handle (and ignore) block comments
+                if (isAtStartOfBlockComment()) {
+                    skipBlockComment();
+                    continue;
+                }
+            }
 
-        // A digit signals the start of a number
-        if (isAtStartOfNumber()) {
-            return fetchNumber();
-        }
+            // A digit signals the start of a number
+            if (isAtStartOfNumber()) {
+                return fetchNumber();
+            }
+
+            // A letter signals the start of an id
+            if (isAtStartOfIdentifier()) {
+                return fetchId();
+            }
 
-        // A letter signals the start of an id
-        if (isAtStartOfIdentifier()) {
-            return fetchId();
+            // A " or ' (or whatever string delimiters are used...) start a string constant
+            if ((charClass & STRING_DELIMITER) != 0) {
+                return fetchString();
+            }
+
+            // Treat brackets as special symbols: (( will create two consecutive symbols but ** will create a single
+            // symbol "**".
+            if (isAtBracket(false)) {
+                Token result = Token.create(Token.TokenType.SYMBOL, input);
+                result.appendToContent(input.getData(), input.getIndex(), current);
+                consumeIntoTrigger(result);
+                return result;
+            }
+
+            // Check if the current character starts a special ID
+            if (isAtStartOfSpecialId()) {
+                return fetchSpecialId();
+            }
+
+            // Read all symbol characters and form a SYMBOL of it
+            if (isAtSymbolCharacter()) {
+                return fetchSymbol();
+            }
+
+            problemCollector.add(ParseError.error(input.current(),
+                                                  String.format("Invalid character in input: '%s'",
+                                                                input.current().getStringValue())
+            ));
+            input.consume(1);
         }
+    }
+
+    /**
+     * Consumes the current character and adds it to the content and the source of the given token.
+     * <p>
+     * For in-memory input, no characters are copied. Rather the range of the token within the input is extended.
+     * </p>
+     *
+     * @param token the token to add the current character to
+     */
+    protected void consumeIntoContent(Token token) {
+        char[] data = input.getData();
+        int index = input.getIndex();
+        char current = input.currentChar();
+        token.appendToContent(data, index, current);
+        token.appendToSource(data, index, current);
+        input.consume(1);
+    }
+
+    /**
+     * Consumes the current character and adds it to the trigger and the source of the given token.
+     *
+     * @param token the token to add the current character to
+     * @see #consumeIntoContent(Token)
+     */
+    protected void consumeIntoTrigger(Token token) {
+        char[] data = input.getData();
+        int index = input.getIndex();
+        char current = input.currentChar();
+        token.appendToTrigger(data, index, current);
+        token.appendToSource(data, index, current);
+        input.consume(1);
+    }
+
+    /**
+     * Consumes the current character and only adds it to the source of the given token.
+     *
+     * @param token the token to add the current character to
+     * @see #consumeIntoContent(Token)
+     */
+    protected void consumeIntoSource(Token token) {
+        token.appendToSource(input.getData(), input.getIndex(), input.currentChar());
+        input.consume(1);
+    }
 
-        // A " or ' (or whatever string delimiters are used...) start a string constant
-        if (stringDelimiters.containsKey(input.current().getValue())) {
-            return fetchString();
+    /*
+     * Checks if the given character is one of the given characters
+     */
+    private static boolean isOneOf(char ch, char[] tests) {
+        for (char test : tests) {
+            if (test == ch && test != '\0') {
+                return true;
+            }
         }
+        return false;
+    }
 
-        // Treat brackets as special symbols: (( will create two consecutive symbols but ** will create a single
-        // symbol "**".
-        if (isAtBracket(false)) {
-            return Token.createAndFill(Token.TokenType.SYMBOL, input.consume());
+    /*
+     * Returns the character classes of the given character
+     */
+    private int classOf(char ch) {
+        if (ch < CHAR_CLASSES_SIZE) {
+            int[] table = charClasses;
+            if (table == null) {
+                table = compileCharClasses();
+            }
+            return table[ch];
         }
+        return classify(ch);
+    }
 
-        // Check if the current character starts a special ID
-        if (isAtStartOfSpecialId()) {
-            return fetchSpecialId();
+    private int[] compileCharClasses() {
+        int[] table = new int[CHAR_CLASSES_SIZE];
+        for (char ch = 0; ch < CHAR_CLASSES_SIZE; ch++) {
+            table[ch] = classify(ch);
         }
+        charClasses = table;
+        return table;
+    }
 
-        // Read all symbol characters and form a SYMBOL of it
-        if (isSymbolCharacter(input.current())) {
-            return fetchSymbol();
+    /*
+     * Computes the character classes of the given character based on the current settings
+     */
+    private int classify(char ch) {
+        if (ch == '\0') {
+            return 0;
+        }
+        int result = 0;
+        if (Character.isWhitespace(ch)) {
+            result |= WHITESPACE;
+        }
+        if (Character.isDigit(ch)) {
+            result |= DIGIT | IDENTIFIER_PART;
+        }
+        if (Character.isLetter(ch)) {
+            result |= LETTER | IDENTIFIER_PART;
+        }
+        if (ch == '_') {
+            result |= IDENTIFIER_PART;
+        }
+        if (isOneOf(ch, brackets)) {
+            result |= BRACKET;
+        }
+        if (stringDelimiters.containsKey(ch)) {
+            result |= STRING_DELIMITER;
+        }
+        if (specialIdStarters.contains(ch)) {
+            result |= SPECIAL_ID_STARTER;
+        }
+        if (specialIdTerminators.contains(ch)) {
+            result |= SPECIAL_ID_TERMINATOR;
         }
+        if (startsWith(lineComment, ch) || startsWith(blockCommentStart, ch)) {
+            result |= COMMENT_START;
+        }
+        if ((result & (WHITESPACE | DIGIT | LETTER | BRACKET | STRING_DELIMITER)) == 0 && !Character.isISOControl(ch)) {
+            result |= SYMBOL;
+        }
+        return result;
+    }
 
-        problemCollector.add(ParseError.error(input.current(),
-                                              String.format("Invalid character in input: '%s'",
-                                                            input.current().getStringValue())
-        ));
-        input.consume();
-        return fetch();
+    private static boolean startsWith(String string, char ch) {
+        return string != null && string.length() > 0 && string.charAt(0) == ch;
     }
 
     /**
@@ -198,7 +512,7 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if the current input is the start of a special id, <tt>false</tt> otherwise
      */
     protected boolean isAtStartOfSpecialId() {
-        return specialIdStarters.contains(input.current().getValue());
+        return (classOf(input.currentChar()) & SPECIAL_ID_STARTER) != 0;
     }
 
     /**
@@ -210,7 +524,8 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if the current input is the start of a numeric constant, <tt>false</tt> otherwise
      */
     protected boolean isAtStartOfNumber() {
-        return input.current().isDigit() || input.current().is('-') && input.next().isDigit();
+        char current = input.currentChar();
+        return (classOf(current) & DIGIT) != 0 || current == '-' && (classOf(input.nextChar(1)) & DIGIT) != 0;
     }
 
     /**
@@ -224,10 +539,11 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if the current input is an opening or closing bracket
      */
     protected boolean isAtBracket(boolean inSymbol) {
-        if (input.current().is(brackets)) {
+        char current = input.currentChar();
+        if ((classOf(current) & BRACKET) != 0) {
             return true;
         }
-        if (!inSymbol && treatSinglePipeAsBracket && input.current().is('|') && !input.next().is('|')) {
+        if (!inSymbol && treatSinglePipeAsBracket && current == '|' && input.nextChar(1) != '|') {
             return true;
         }
 
@@ -242,14 +558,9 @@ public class Tokenizer extends Lookahead<Token> {
      * otherwise
      */
     protected boolean canConsumeThisString(String string) {
-        if (string == null) {
+        if (string == null || !input.isAt(string)) {
             return false;
         }
-        for (int i = 0; i < string.length(); i++) {
-            if (!input.next(i).is(string.charAt(i))) {
-                return false;
-            }
-        }
         input.consume(string.length());
         return true;
     }
@@ -274,8 +585,10 @@ public class Tokenizer extends Lookahead<Token> {
      * Read everything upon (and including) the next line break
      */
     protected void skipToEndOfLine() {
-        while (!input.current().isEndOfInput() && !input.current().isNewLine()) {
-            input.consume();
+        char current = input.currentChar();
+        while (current != '\0' && current != '\n') {
+            input.consume(1);
+            current = input.currentChar();
         }
     }
 
@@ -303,15 +616,23 @@ public class Tokenizer extends Lookahead<Token> {
         return canConsumeThisString(blockCommentEnd);
     }
 
+    /*
+     * Checks if a line or block comment starts at the current position without consuming anything
+     */
+    private boolean isAtComment() {
+        return (lineComment != null && input.isAt(lineComment)) || (blockCommentStart != null && input.isAt(
+                blockCommentStart));
+    }
+
     /**
      * Checks if we're looking at an end of block comment
      */
     protected void skipBlockComment() {
-        while (!input.current().isEndOfInput()) {
+        while (input.currentChar() != '\0') {
             if (isAtEndOfBlockComment()) {
                 return;
             }
-            input.consume();
+            input.consume(1);
         }
         problemCollector.add(ParseError.error(input.current(), "Premature end of block comment"));
     }
@@ -322,13 +643,14 @@ public class Tokenizer extends Lookahead<Token> {
      * @return the parsed string constant a Token
      */
     protected Token fetchString() {
-        char separator = input.current().getValue();
-        char escapeChar = stringDelimiters.get(input.current().getValue());
-        Token result = Token.create(Token.TokenType.STRING, input.current());
-        result.addToTrigger(input.consume());
-        while (!input.current().isNewLine() && !input.current().is(separator) && !input.current().isEndOfInput()) {
-            if (escapeChar != '\0' && input.current().is(escapeChar)) {
-                result.addToSource(input.consume());
+        char separator = input.currentChar();
+        char escapeChar = stringDelimiters.get(separator);
+        Token result = Token.create(Token.TokenType.STRING, input);
+        consumeIntoTrigger(result);
+        char current = input.currentChar();
+        while (current != '\n' && current != separator && current != '\0') {
+            if (escapeChar != '\0' && current == escapeChar) {
+                consumeIntoSource(result);
                 if (!handleStringEscape(separator, escapeChar, result)) {
                     problemCollector.add(ParseError.error(input.next(),
                                                           String.format("Cannot use '%s' as escaped character",
@@ -336,11 +658,12 @@ public class Tokenizer extends Lookahead<Token> {
                     ));
                 }
             } else {
-                result.addToContent(input.consume());
+                consumeIntoContent(result);
             }
+            current = input.currentChar();
         }
-        if (input.current().is(separator)) {
-            result.addToSource(input.consume());
+        if (current == separator) {
+            consumeIntoSource(result);
         } else {
             problemCollector.add(ParseError.error(input.current(), "Premature end of string constant"));
         }
@@ -360,25 +683,20 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if an escape was possible, <tt>false</tt> otherwise
      */
     protected boolean handleStringEscape(char separator, char escapeChar, Token stringToken) {
-        if (input.current().is(separator)) {
-            stringToken.addToContent(separator);
-            stringToken.addToSource(input.consume());
-            return true;
-        } else if (input.current().is(escapeChar)) {
+        char current = input.currentChar();
+        if (current == separator) {
+            stringToken.silentAddToContent(separator);
+        } else if (current == escapeChar) {
             stringToken.silentAddToContent(escapeChar);
-            stringToken.addToSource(input.consume());
-            return true;
-        } else if (input.current().is('n')) {
+        } else if (current == 'n') {
             stringToken.silentAddToContent('\n');
-            stringToken.addToSource(input.consume());
-            return true;
-        } else if (input.current().is('r')) {
+        } else if (current == 'r') {
             stringToken.silentAddToContent('\r');
-            stringToken.addToSource(input.consume());
-            return true;
         } else {
             return false;
         }
+        consumeIntoSource(stringToken);
+        return true;
     }
 
     /**
@@ -388,7 +706,7 @@ public class Tokenizer extends Lookahead<Token> {
      * @return <tt>true</tt> if the underlying input is looking at a valid identifier starter, <tt>false</tt> otherwise
      */
     protected boolean isAtStartOfIdentifier() {
-        return input.current().isLetter();
+        return (classOf(input.currentChar()) & LETTER) != 0;
     }
 
     /**
@@ -397,18 +715,20 @@ public class Tokenizer extends Lookahead<Token> {
      * @return the parsed identifier as Token
      */
     protected Token fetchId() {
-        Token result = Token.create(Token.TokenType.ID, input.current());
-        result.addToContent(input.consume());
-        while (isIdentifierChar(input.current())) {
-            result.addToContent(input.consume());
+        Token result = Token.create(Token.TokenType.ID, input);
+        consumeIntoContent(result);
+        while (isAtIdentifierChar()) {
+            consumeIntoContent(result);
         }
-        if (!input.current().isEndOfInput() && specialIdTerminators.contains(input.current().getValue())) {
+        result.resolveContents(symbols);
+        char current = input.currentChar();
+        if ((classOf(current) & SPECIAL_ID_TERMINATOR) != 0) {
             Token specialId = Token.create(Token.TokenType.SPECIAL_ID, result);
-            specialId.setTrigger(input.current().getStringValue());
+            specialId.setTrigger(String.valueOf(current));
             specialId.setContent(result.getContents());
             specialId.setSource(result.getContents());
-            specialId.addToSource(input.current());
-            input.consume();
+            specialId.addToSource(current);
+            input.consume(1);
             return handleKeywords(specialId);
         }
         return handleKeywords(result);
@@ -421,10 +741,10 @@ public class Tokenizer extends Lookahead<Token> {
      * @return a keyword Token if the given identifier was a keyword, the original Token otherwise
      */
     protected Token handleKeywords(Token idToken) {
-        String keyword = keywordsCaseSensitive ? keywords.get(idToken.getContents()
-                                                                     .intern()) : keywords.get(idToken.getContents()
-                                                                                                      .toLowerCase()
-                                                                                                      .intern());
+        if (keywords.isEmpty()) {
+            return idToken;
+        }
+        String keyword = keywords.get(idToken.getContents());
         if (keyword != null) {
             Token keywordToken = Token.create(Token.TokenType.KEYWORD, idToken);
             keywordToken.setTrigger(keyword);
@@ -438,30 +758,43 @@ public class Tokenizer extends Lookahead<Token> {
     }
 
     /**
-     * Determines if the given Char is a valid identifier part.
+     * Determines if the given character is a valid identifier part.
      * <p>
      * By default, letters, digits and '_' are valid identifier parts.
      * </p>
      *
      * @param current the character to check
+     * @return <tt>true</tt> if the given character is a valid identifier part, <tt>false</tt> otherwise
+     */
+    protected boolean isIdentifierChar(char current) {
+        return (classOf(current) & IDENTIFIER_PART) != 0;
+    }
+
+    /**
+     * Determines if the given Char is a valid identifier part.
+     *
+     * @param current the character to check
      * @return <tt>true</tt> if the given Char is a valid identifier part, <tt>false</tt> otherwise
+     * @deprecated override {@link #isIdentifierChar(char)} instead. This method is still called if it is overridden,
+     *             but then a {@link Char} has to be created for each checked character
      */
+    @Deprecated
     protected boolean isIdentifierChar(Char current) {
-        return current.isDigit() || current.isLetter() || current.is('_');
+        return isIdentifierChar(current.getValue());
     }
 
-
     /**
      * Reads and returns a special id.
      *
      * @return the parsed special id as Token
      */
     protected Token fetchSpecialId() {
-        Token result = Token.create(Token.TokenType.SPECIAL_ID, input.current());
-        result.addToTrigger(input.consume());
-        while (isIdentifierChar(input.current())) {
-            result.addToContent(input.consume());
+        Token result = Token.create(Token.TokenType.SPECIAL_ID, input);
+        consumeIntoTrigger(result);
+        while (isAtIdentifierChar()) {
+            consumeIntoContent(result);
         }
+        result.resolveContents(symbols);
         return handleKeywords(result);
     }
 
@@ -475,68 +808,103 @@ public class Tokenizer extends Lookahead<Token> {
      * @return the parsed symbol as Token
      */
     protected Token fetchSymbol() {
-        Token result = Token.create(Token.TokenType.SYMBOL, input.current());
-        result.addToTrigger(input.consume());
-        while (isSymbolCharacter(input.current())) {
-            result.addToTrigger(input.consume());
+        Token result = Token.create(Token.TokenType.SYMBOL, input);
+        consumeIntoTrigger(result);
+        while (isAtSymbolCharacter()) {
+            consumeIntoTrigger(result);
         }
         return result;
     }
 
     /**
-     * Determines if the given Char is a symbol character.
+     * Determines if the given character is a symbol character.
      * <p>
-     * By default these are all non-control characters, which don't match any other class (letter, digit, whitepsace)
+     * By default these are all non-control characters, which don't match any other class (letter, digit, whitepsace,
+     * bracket, string delimiter) and don't start a comment or a negative number. The character class is determined
+     * by a table lookup, therefore overriding other methods like {@link #isAtBracket(boolean)} has no effect here.
      * </p>
      *
      * @param ch the character to check
      * @return <tt>true</tt> if the given character is a valid symbol character, <tt>false</tt> otherwise
      */
-    protected boolean isSymbolCharacter(Char ch) {
-        if (ch.isEndOfInput() || ch.isDigit() || ch.isLetter() || ch.isWhitepace()) {
-            return false;
-        }
-
-        char c = ch.getValue();
-        if (Character.isISOControl(c)) {
+    protected boolean isSymbolCharacter(char ch) {
+        int charClass = classOf(ch);
+        if ((charClass & SYMBOL) == 0) {
             return false;
         }
-
-        if (isAtBracket(true) || isAtStartOfBlockComment() || isAtStartOfLineComment() || isAtStartOfNumber() || isAtStartOfIdentifier() || stringDelimiters
-                .containsKey(ch.getValue())) {
+        if ((charClass & COMMENT_START) != 0 && isAtComment()) {
             return false;
         }
-        return true;
+        return ch != '-' || !isAtStartOfNumber();
     }
 
+    /**
+     * Determines if the given Char is a symbol character.
+     *
+     * @param ch the character to check
+     * @return <tt>true</tt> if the given character is a valid symbol character, <tt>false</tt> otherwise
+     * @deprecated override {@link #isSymbolCharacter(char)} instead. This method is still called if it is
+     *             overridden, but then a {@link Char} has to be created for each checked character
+     */
+    @Deprecated
+    protected boolean isSymbolCharacter(Char ch) {
+        return isSymbolCharacter(ch.getValue());
+    }
 
     /**
      * Reads and returns a number.
+     * <p>
+     * While reading the digits, the value of the number is computed, so that the parser doesn't have to parse the
+     * contents again. As long as the digits fit into 53 bits and there are at most 22 fractional digits, the value is
+     * exactly computed by a single division by a power of ten, which is correctly rounded. Otherwise the value is
+     * left to {@link Token#getNumericValue()}, which falls back to {@link Double#parseDouble(String)}.
+     * </p>
      *
      * @return the parsed number as Token
      */
     protected Token fetchNumber() {
-        Token result = Token.create(Token.TokenType.INTEGER, input.current());
-        result.addToContent(input.consume());
-        while (input.current().isDigit() || (input.current().is(decimalSeparator, groupingSeparator) && input.next()
-                                                                                                             .isDigit())) {
-            if (input.current().is(groupingSeparator)) {
-                result.addToSource(input.consume());
-            } else if (input.current().is(decimalSeparator)) {
+        Token result = Token.create(Token.TokenType.INTEGER, input);
+        char current = input.currentChar();
+        boolean negative = current == '-';
+        long significand = negative ? 0 : Character.digit(current, 10);
+        boolean exact = true;
+        int fractionDigits = 0;
+        consumeIntoContent(result);
+        current = input.currentChar();
+        while ((classOf(current) & DIGIT) != 0 || ((current == decimalSeparator || current == groupingSeparator)
+                                                   && (classOf(input.nextChar(1)) & DIGIT) != 0)) {
+            if (current == groupingSeparator) {
+                consumeIntoSource(result);
+            } else if (current == decimalSeparator) {
                 if (result.is(Token.TokenType.DECIMAL)) {
                     problemCollector.add(ParseError.error(input.current(), "Unexpected decimal separators"));
+                    consumeIntoSource(result);
+                    exact = false;
+                } else if (decimalSeparator == effectiveDecimalSeparator) {
+                    result.setType(Token.TokenType.DECIMAL);
+                    consumeIntoContent(result);
                 } else {
-                    Token decimalToken = Token.create(Token.TokenType.DECIMAL, result);
-                    decimalToken.setContent(result.getContents() + effectiveDecimalSeparator);
-                    decimalToken.setSource(result.getSource());
-                    result = decimalToken;
+                    result.setType(Token.TokenType.DECIMAL);
+                    result.silentAddToContent(effectiveDecimalSeparator);
+                    consumeIntoSource(result);
                 }
-                result.addToSource(input.consume());
             } else {
-                result.addToContent(input.consume());
+                if (exact) {
+                    significand = significand * 10 + Character.digit(current, 10);
+                    exact = significand <= MAX_EXACT_SIGNIFICAND;
+                }
+                if (result.is(Token.TokenType.DECIMAL)) {
+                    fractionDigits++;
+                }
+                consumeIntoContent(result);
             }
+            current = input.currentChar();
         }
 
+        if (exact && fractionDigits < POWERS_OF_TEN.length) {
+            double value = fractionDigits == 0 ? significand : significand / POWERS_OF_TEN[fractionDigits];
+            result.setNumericValue(negative ? -value : value);
+        }
         return result;
     }
 
@@ -563,6 +931,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void setKeywordsCaseSensitive(boolean keywordsCaseSensitive) {
         this.keywordsCaseSensitive = keywordsCaseSensitive;
+        this.keywords = new SymbolTable<String>(!keywordsCaseSensitive, Integer.MAX_VALUE);
     }
 
     /**
@@ -575,7 +944,7 @@ public class Tokenizer extends Lookahead<Token> {
      * @param keyword the keyword to be added to the list of known keywords.
      */
     public void addKeyword(String keyword) {
-        keywords.put(keywordsCaseSensitive ? keyword.intern() : keyword.toLowerCase().intern(), keyword);
+        keywords.put(keyword, keyword);
     }
 
     /**
@@ -586,6 +955,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void addSpecialIdStarter(char character) {
         specialIdStarters.add(character);
+        charClasses = null;
     }
 
     /**
@@ -596,6 +966,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void addSpecialIdTerminator(char character) {
         specialIdTerminators.add(character);
+        charClasses = null;
     }
 
     /**
@@ -607,6 +978,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void clearStringDelimiters() {
         stringDelimiters.clear();
+        charClasses = null;
     }
 
     /**
@@ -618,6 +990,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void addStringDelimiter(char stringDelimiter, char escapeCharacter) {
         stringDelimiters.put(stringDelimiter, escapeCharacter);
+        charClasses = null;
     }
 
     /**
@@ -627,6 +1000,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void addUnescapedStringDelimiter(char stringDelimiter) {
         stringDelimiters.put(stringDelimiter, '\0');
+        charClasses = null;
     }
 
     /**
@@ -715,6 +1089,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void setLineComment(String lineComment) {
         this.lineComment = lineComment;
+        charClasses = null;
     }
 
     /**
@@ -736,6 +1111,7 @@ public class Tokenizer extends Lookahead<Token> {
      */
     public void setBlockCommentStart(String blockCommentStart) {
         this.blockCommentStart = blockCommentStart;
+        charClasses = null;
     }
 
     /**
@@ -0,0 +1,395 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the batch evaluation provided by {@link Expression#evaluate(java.util.Map, double[], int, int)}.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class BatchTest {
+
+    private static final int ROWS = 2500;
+
+    private static final String[] FORMULAS = {"3*a + 4 * b - c",
+                                              "a / b * 10 % 3 + a ^ 2",
+                                              "a < b || a = b && b >= c",
+                                              "a <= b && a != c",
+                                              "sin(a) + sqrt(abs(b)) + min(a, b) * max(a, c) + round(a / 3)",
+                                              "atan2(a, b) + floor(b / 3) + ceil(a / 7) - sign(a - b)",
+                                              "if(a > b, a * 2, if(a = b, 0, b / 2))",
+                                              "sqrt(a - 100)",
+                                              "1 + a - b + 2 - a * b * 3 * c + 4",
+                                              "42"};
+
+    private Map<Variable, double[]> createColumns(Variable a, Variable b) {
+        double[] as = new double[ROWS];
+        double[] bs = new double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            as[i] = i % 7 == 0 ? Double.NaN : i * 0.5;
+            bs[i] = (i % 13) - 6;
+        }
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, as);
+        columns.put(b, bs);
+        return columns;
+    }
+
+    @Test
+    public void batchMatchesRowByRow() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        scope.getVariable("c").setValue(3);
+        Map<Variable, double[]> columns = createColumns(a, b);
+        for (String formula : FORMULAS) {
+            Expression expr = Parser.parse(formula, scope);
+            double[] out = new double[ROWS];
+            expr.evaluate(columns, out, 10, ROWS);
+            assertEquals(0d, out[9], 0d);
+            for (int i = 10; i < ROWS; i++) {
+                a.setValue(columns.get(a)[i]);
+                b.setValue(columns.get(b)[i]);
+                assertEquals(formula + " in row " + i, expr.evaluate(), out[i], BinaryOperation.EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void parallel() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        int rows = 100 * Batch.BLOCK_SIZE + 17;
+        double[] as = new double[rows];
+        double[] bs = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            as[i] = i;
+            bs[i] = i % 10;
+        }
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, as);
+        columns.put(b, bs);
+        Expression expr = Parser.parse("if(b > 4, a * 2, a - b)", scope);
+        double[] out = new double[rows];
+        expr.parallelEvaluate(columns, out, 0, rows);
+        for (int i = 0; i < rows; i++) {
+            assertEquals(bs[i] > 4 ? as[i] * 2 : as[i] - bs[i], out[i], BinaryOperation.EPSILON);
+        }
+    }
+
+    @Test
+    public void ifOnlyEvaluatesSelectedBranchWithSideEffects() throws ParseException {
+        final AtomicInteger calls = new AtomicInteger();
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        functions.register("track", new UnaryDoubleFunction() {
+            @Override
+            public double eval(double x) {
+                calls.incrementAndGet();
+                return x;
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return 1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return eval(args.get(0).evaluate());
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return false;
+            }
+        });
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        double[] as = new double[ROWS];
+        int positive = 0;
+        for (int i = 0; i < ROWS; i++) {
+            as[i] = i % 3 - 1;
+            positive += as[i] > 0 ? 1 : 0;
+        }
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, as);
+        Expression expr = Parser.parse("if(a > 0, track(a) * 2, -a)", scope, functions);
+        double[] out = new double[ROWS];
+        expr.evaluate(columns, out, 0, ROWS);
+        assertEquals(positive, calls.get());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(as[i] > 0 ? as[i] * 2 : -as[i], out[i], BinaryOperation.EPSILON);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void nestedParallel() throws Exception {
+        Scope scope = Scope.create();
+        final Variable a = scope.getVariable("a");
+        final Expression expr = Parser.parse("a * 2 + 1", scope);
+        final int rows = 64 * Batch.BLOCK_SIZE;
+        final double[] as = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            as[i] = i;
+        }
+        // Occupy all threads of the default executor with tasks which start parallel evaluations themselves
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int t = 0; t < Runtime.getRuntime().availableProcessors() * 2; t++) {
+            results.add(Batch.getDefaultExecutor().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    double[] out = new double[rows];
+                    expr.parallelEvaluate(Collections.singletonMap(a, as), out, 0, rows);
+                    for (int i = 0; i < rows; i++) {
+                        if (out[i] != i * 2 + 1) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+    }
+
+    @Test
+    public void userFunctions() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a").withValue(-1);
+        Variable b = scope.getVariable("b").withValue(-2);
+        FunctionCall call = new FunctionCall();
+        call.setFunction(new Function() {
+            @Override
+            public int getNumberOfArguments() {
+                return 2;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return args.get(0).evaluate() - args.get(1).evaluate();
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        call.addParameter(new VariableReference(a));
+        call.addParameter(new BinaryOperation(BinaryOperation.Op.MULTIPLY,
+                                              new Constant(2),
+                                              new VariableReference(b)));
+        Map<Variable, double[]> columns = createColumns(a, b);
+        double[] out = new double[ROWS];
+        call.evaluate(columns, out, 0, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(columns.get(a)[i] - 2 * columns.get(b)[i], out[i], BinaryOperation.EPSILON);
+        }
+        // Variables remain untouched
+        assertEquals(-1d, a.getValue(), 0d);
+        assertEquals(-2d, b.getValue(), 0d);
+    }
+    @Test
+    public void kernelsMatchScalarResults() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        double[] specialValues = {Double.NaN, -0d, 0d, 1.5, -1.5, 2.5, -2.5, 1, Double.MIN_VALUE,
+                                  Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        int rows = specialValues.length * specialValues.length;
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, new double[rows]);
+        columns.put(b, new double[rows]);
+        for (int i = 0; i < rows; i++) {
+            columns.get(a)[i] = specialValues[i / specialValues.length];
+            columns.get(b)[i] = specialValues[i % specialValues.length];
+        }
+        String[] formulas = {"abs(a)", "sqrt(a)", "floor(a)", "ceil(a)", "min(a, b)", "max(a, b)", "a <= b",
+                             "a >= b", "(a < b) && (b < 2)", "(a < b) || (b < 2)"};
+        for (String formula : formulas) {
+            Expression expr = Parser.parse(formula, scope);
+            double[] out = new double[rows];
+            expr.evaluate(columns, out, 0, rows);
+            for (int i = 0; i < rows; i++) {
+                a.setValue(columns.get(a)[i]);
+                b.setValue(columns.get(b)[i]);
+                // Compare the bits, so that NaN as well as the sign of zero is checked
+                assertEquals(formula + " for " + a.getValue() + ", " + b.getValue(),
+                             Double.doubleToLongBits(expr.evaluate()),
+                             Double.doubleToLongBits(out[i]));
+            }
+        }
+    }
+
+    @Test
+    public void rowByRowFallback() throws ParseException {
+        Scope scope = Scope.create();
+        final Variable a = scope.getVariable("a").withValue(-1);
+        Variable b = scope.getVariable("b").withValue(-2);
+        FunctionRegistry functions = new FunctionRegistry();
+        functions.register("firstPositive", new LazyFunction() {
+            @Override
+            public double eval(Arguments args) {
+                // The variables themselves are never modified by a batch evaluation
+                assertEquals(-1d, a.getValue(), 0d);
+                for (int i = 0; i < args.size(); i++) {
+                    double value = args.evaluate(i);
+                    if (value > 0) {
+                        return value;
+                    }
+                }
+                return 0d;
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return -1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return false;
+            }
+        });
+        Expression expr = Parser.parseStatements("t := a * 2; firstPositive(b, t, 1) + t", scope, functions);
+        Map<Variable, double[]> columns = createColumns(a, b);
+        double[] out = new double[ROWS];
+        expr.parallelEvaluate(columns, out, 0, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            double valueA = columns.get(a)[i];
+            double valueB = columns.get(b)[i];
+            double expected = (valueB > 0 ? valueB : valueA * 2 > 0 ? valueA * 2 : 1) + valueA * 2;
+            assertEquals("row " + i, expected, out[i], BinaryOperation.EPSILON);
+        }
+        assertEquals(-2d, b.getValue(), 0d);
+    }
+
+    /*
+     * Interpolates linearly between the given points, using a binary search for single values and a single sweep
+     * over the table for a sorted block of values
+     */
+    private static class InterpolationTable implements UnaryDoubleFunction, BatchFunction {
+        private final double[] xs = {0, 10, 20, 40};
+        private final double[] ys = {0, 5, 25, 30};
+        private final AtomicInteger batches = new AtomicInteger();
+
+        @Override
+        public double eval(double a) {
+            int index = Arrays.binarySearch(xs, a);
+            if (index >= 0) {
+                return ys[index];
+            }
+            return interpolate(-index - 1, a);
+        }
+
+        private double interpolate(int upper, double a) {
+            if (upper == 0) {
+                return ys[0];
+            }
+            if (upper == xs.length) {
+                return ys[xs.length - 1];
+            }
+            double factor = (a - xs[upper - 1]) / (xs[upper] - xs[upper - 1]);
+            return ys[upper - 1] + factor * (ys[upper] - ys[upper - 1]);
+        }
+
+        @Override
+        public void eval(double[][] argColumns, double[] out, int len) {
+            batches.incrementAndGet();
+            double[] values = argColumns[0];
+            int upper = 0;
+            for (int row = 0; row < len; row++) {
+                if (row > 0 && values[row] < values[row - 1]) {
+                    upper = 0;
+                }
+                while (upper < xs.length && xs[upper] < values[row]) {
+                    upper++;
+                }
+                out[row] = upper < xs.length && xs[upper] == values[row] ? ys[upper] : interpolate(upper, values[row]);
+            }
+        }
+
+        @Override
+        public int getNumberOfArguments() {
+            return 1;
+        }
+
+        @Override
+        public double eval(List<Expression> args) {
+            return eval(args.get(0).evaluate());
+        }
+
+        @Override
+        public boolean isNaturalFunction() {
+            return true;
+        }
+    }
+
+    @Test
+    public void batchFunctions() throws ParseException {
+        InterpolationTable table = new InterpolationTable();
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        functions.register("table", table);
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Expression expr = Parser.parse("table(a / 50) + 1", scope, functions);
+        double[] as = new double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            as[i] = i;
+        }
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, as);
+        double[] out = new double[ROWS];
+        expr.evaluate(columns, out, 0, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            a.setValue(as[i]);
+            assertEquals(expr.evaluate(), out[i], BinaryOperation.EPSILON);
+        }
+        assertEquals(16d, out[750], BinaryOperation.EPSILON);
+        // The function is invoked once per block instead of once per row
+        assertEquals((ROWS + Batch.BLOCK_SIZE - 1) / Batch.BLOCK_SIZE, table.batches.get());
+    }
+
+    @Test
+    public void batchFunctionAdapter() {
+        BatchFunction adapter = new BatchFunctionAdapter(Functions.ATAN2);
+        double[][] columns = {{1, Double.NaN, -1, 0}, {2, 1, -2, 0}};
+        double[] out = new double[4];
+        adapter.eval(columns, out, 3);
+        assertEquals(Math.atan2(1, 2), out[0], BinaryOperation.EPSILON);
+        assertTrue(Double.isNaN(out[1]));
+        assertEquals(Math.atan2(-1, -2), out[2], BinaryOperation.EPSILON);
+        assertEquals(0d, out[3], 0d);
+        assertEquals(2, adapter.getNumberOfArguments());
+    }
+}
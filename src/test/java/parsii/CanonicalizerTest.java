@@ -0,0 +1,130 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the structural equality of expressions as well as the {@link Canonicalizer} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class CanonicalizerTest {
+
+    private static final String[][] EQUIVALENT = {{"a + b", "b + a"},
+                                                  {"(a + b) + c - 3", "a + (c - 1 + b) - 2"},
+                                                  {"a * b * 2", "2 * (b * a)"},
+                                                  {"a - (b - c)", "c + a - b"},
+                                                  {"a > b", "b < a"},
+                                                  {"a >= b * c", "c * b <= a"},
+                                                  {"a = b || c != 1", "1 != c || b = a"},
+                                                  {"min(a, sin(b)) + max(c, 2)", "max(2, c) + min(sin(b), a)"},
+                                                  {"a + b * 0 + sqrt(4)", "2 + a + b * 0"}};
+
+    private static final String[][] DIFFERENT = {{"a - b", "b - a"},
+                                                 {"a / b", "b / a"},
+                                                 {"a ^ 2", "2 ^ a"},
+                                                 {"sin(a)", "cos(a)"},
+                                                 {"a * (b + c)", "a * b + a * c"}};
+
+    @Test
+    public void structuralEquality() throws ParseException {
+        Scope scope = Scope.create();
+        String[] formulas = {"a * b + sin(c)", "a < b && c > 2 || a = 1", "-a + 3 * (b - c) / 2 ^ a", "a"};
+        for (String formula : formulas) {
+            Expression expr = Parser.parse(formula, scope);
+            Expression other = Parser.parse(formula, scope);
+            assertEquals(formula, expr, other);
+            assertEquals(formula, expr.hashCode(), other.hashCode());
+            assertFalse(formula, expr.equals(Parser.parse(formula + " + d", scope)));
+        }
+        assertFalse(Parser.parse("a * b + sin(c)", scope).equals(Parser.parse("a * b + sin(a)", scope)));
+        assertFalse(Parser.parse("a", scope).equals(Parser.parse("a", Scope.create())));
+        assertEquals(new Constant(Double.NaN), new Constant(0d / 0d));
+
+        // Deep chains don't overflow the stack
+        StringBuilder chain = new StringBuilder("x0 = 0");
+        for (int i = 1; i < 20000; i++) {
+            chain.append(" || x").append(i).append(" = 0");
+        }
+        Expression expr = Parser.parse(chain.toString(), scope);
+        assertEquals(expr, Parser.parse(chain.toString(), scope));
+        assertEquals(expr.hashCode(), Parser.parse(chain.toString(), scope).hashCode());
+
+        // ...neither when being canonicalized
+        StringBuilder reversed = new StringBuilder("x19999 = 0");
+        for (int i = 19998; i >= 0; i--) {
+            reversed.append(" || 0 = x").append(i);
+        }
+        Expression canonical = Canonicalizer.canonicalize(expr);
+        assertEquals(canonical, Canonicalizer.canonicalize(Parser.parse(reversed.toString(), scope)));
+        assertEquals(canonical, Canonicalizer.canonicalize(canonical));
+    }
+
+    @Test
+    public void collidingOperands() {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        // Both constants have the same hash code, so do the comparisons below
+        Constant one = new Constant(1d);
+        Constant other = new Constant(Double.longBitsToDouble(0x3FF0000100000001L));
+        assertEquals(one.hashCode(), other.hashCode());
+        for (int i = 0; i < 100; i++) {
+            Expression left = new BinaryOperation(BinaryOperation.Op.LT, new VariableReference(a), one);
+            Expression right = new BinaryOperation(BinaryOperation.Op.LT, new VariableReference(a), other);
+            assertEquals(left.hashCode(), right.hashCode());
+            assertEquals(Canonicalizer.canonicalize(new BinaryOperation(BinaryOperation.Op.OR, left, right)),
+                         Canonicalizer.canonicalize(new BinaryOperation(BinaryOperation.Op.OR, right, left)));
+        }
+    }
+
+    @Test
+    public void canonicalForm() throws ParseException {
+        Scope scope = Scope.create();
+        Random random = new Random(7);
+        for (String[] pair : EQUIVALENT) {
+            Expression first = Parser.parse(pair[0], scope);
+            Expression second = Parser.parse(pair[1], scope);
+            Expression canonical = Canonicalizer.canonicalize(first);
+            assertEquals(pair[0], canonical, Canonicalizer.canonicalize(second));
+            assertEquals(pair[0], canonical.hashCode(), Canonicalizer.canonicalize(second).hashCode());
+            assertEquals(pair[0], canonical, Canonicalizer.canonicalize(canonical));
+            for (int i = 0; i < 20; i++) {
+                for (Variable variable : scope.getVariables()) {
+                    if (!variable.isConstant()) {
+                        variable.setValue(random.nextInt(7) - 3);
+                    }
+                }
+                assertEquals(pair[0], first.evaluate(), canonical.evaluate(), BinaryOperation.EPSILON);
+            }
+        }
+        for (String[] pair : DIFFERENT) {
+            assertFalse(pair[0],
+                        Canonicalizer.canonicalize(Parser.parse(pair[0], scope))
+                                     .equals(Canonicalizer.canonicalize(Parser.parse(pair[1], scope))));
+        }
+        assertEquals(new Constant(0d), Canonicalizer.canonicalize(new Constant(-0d)));
+    }
+
+    @Test
+    public void sharedCanonicalForms() throws ParseException {
+        Scope scope = Scope.create();
+        ExpressionInterner interner = new ExpressionInterner();
+        Expression first = interner.intern(Canonicalizer.canonicalize(Parser.parse("price * (1 + tax)", scope)));
+        Expression second = interner.intern(Canonicalizer.canonicalize(Parser.parse("(tax + 1) * price", scope)));
+        assertSame(first, second);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.eval.BinaryOperation;
+import parsii.eval.Expression;
+import parsii.eval.ExpressionCache;
+import parsii.eval.Scope;
+import parsii.eval.Variable;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ExpressionCache} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class ExpressionCacheTest {
+
+    @Test
+    public void hitsAndEvictions() throws ParseException {
+        ExpressionCache cache = new ExpressionCache(2);
+        Scope scope = Scope.create();
+        Scope otherScope = Scope.create();
+        Expression expr = cache.get("a + 1", scope);
+        assertSame(expr, cache.get("a + 1", scope));
+        assertNotSame(expr, cache.get("a + 1", otherScope));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // "a + 1" in scope was used last, therefore the entry for otherScope is evicted
+        cache.get("a + 1", scope);
+        cache.get("b", scope);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        assertSame(expr, cache.get("a + 1", scope));
+        assertEquals(3, cache.getHits());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedInBatches() throws ParseException {
+        ExpressionCache cache = new ExpressionCache(64);
+        Scope scope = Scope.create();
+        Expression hot = cache.get("a", scope);
+        for (int i = 0; i < 1000; i++) {
+            cache.get("a + " + i, scope);
+            assertTrue(cache.size() <= 64);
+            assertSame(hot, cache.get("a", scope));
+        }
+        // a sixteenth of the entries is evicted at once
+        assertTrue(cache.size() >= 60);
+        assertEquals(1001 - cache.size(), cache.getEvictions());
+        assertEquals(1000, cache.getHits());
+    }
+
+    @Test
+    public void errorsAreNotCached() throws ParseException {
+        ExpressionCache cache = new ExpressionCache(10);
+        Scope scope = Scope.create();
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("a + ", scope);
+                fail("ParseException expected");
+            } catch (ParseException e) {
+                assertFalse(e.getErrors().isEmpty());
+            }
+        }
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        final ExpressionCache cache = new ExpressionCache(100);
+        final Scope scope = Scope.create();
+        final Variable a = scope.getVariable("a");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Expression>> results = new ArrayList<Future<Expression>>();
+            for (int i = 0; i < 32; i++) {
+                final int index = i;
+                results.add(executor.submit(new Callable<Expression>() {
+                    @Override
+                    public Expression call() throws Exception {
+                        start.await();
+                        Expression expr = cache.get("a * a + sqrt(a)", scope);
+                        // Each thread uses its own frame to evaluate the shared expression
+                        double[] frame = scope.createFrame();
+                        a.setValue(frame, index);
+                        assertEquals(index * index + Math.sqrt(index), expr.evaluate(frame), BinaryOperation.EPSILON);
+                        return expr;
+                    }
+                }));
+            }
+            start.countDown();
+            Expression expected = results.get(0).get();
+            for (Future<Expression> result : results) {
+                assertSame(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(31, cache.getHits());
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.compile.CompiledExpression;
+import parsii.compile.ExpressionCompiler;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ExpressionCompiler} and the {@link PostfixExpression} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class ExpressionCompilerTest {
+
+    private static final String[] FORMULAS = {"1 - (10 - -100)",
+                                              "3*a + 4 * b",
+                                              "a / b * 10 % 3",
+                                              "a ^ 2 + b ** 0.5",
+                                              "a < b",
+                                              "a <= b && b >= a",
+                                              "a = b || a != b",
+                                              "a > b",
+                                              "sin(a) + cos(b) + tan(a) + sqrt(b) + abs(-a) + ln(b) + log(b) + exp(a)",
+                                              "sinh(a) - cosh(b) * tanh(a) + asin(0.5) + acos(0.5) + atan(a)",
+                                              "atan2(a, b) + min(a, b) * max(a, b) + sign(-b) + deg(a) + rad(b)",
+                                              "round(a * 3.3) + floor(b / 3) + ceil(a / 7)",
+                                              "if(a > b, a * 2, if(a = b, 0, b / 2))",
+                                              "1 + a - b + 2 - a * b * 3 * a + 4"};
+
+    @Test
+    public void compiledMatchesInterpreted() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        for (String formula : FORMULAS) {
+            Expression expr = Parser.parse(formula, scope);
+            Expression compiled = ExpressionCompiler.compile(expr);
+            assertTrue(compiled instanceof CompiledExpression);
+            assertEquals(expr.toString(), compiled.toString());
+            for (double[] values : new double[][]{{1, 2}, {2, 2}, {7.5, 3}, {-2, 0.25}}) {
+                a.setValue(values[0]);
+                b.setValue(values[1]);
+                assertEquals(formula, expr.evaluate(), compiled.evaluate(), BinaryOperation.EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void postfixMatchesInterpreted() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        for (String formula : FORMULAS) {
+            Expression expr = Parser.parse(formula, scope);
+            Expression postfix = PostfixExpression.compile(expr);
+            for (double[] values : new double[][]{{1, 2}, {2, 2}, {7.5, 3}, {-2, 0.25}, {Double.NaN, 1}}) {
+                a.setValue(values[0]);
+                b.setValue(values[1]);
+                assertEquals(formula, expr.evaluate(), postfix.evaluate(), BinaryOperation.EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentPostfixEvaluation() throws Exception {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(7.5);
+        scope.getVariable("b").setValue(3);
+        final Expression postfix = PostfixExpression.compile(Parser.parse(FORMULAS[FORMULAS.length - 1], scope));
+        final double expected = postfix.evaluate();
+        final double[] frame = scope.createFrame();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int i = 0; i < 100000; i++) {
+                            if (postfix.evaluate() != expected || postfix.evaluate(frame) != expected) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void nestedPostfixEvaluation() throws ParseException {
+        final Scope scope = Scope.create();
+        final Variable a = scope.getVariable("a").withValue(10);
+        final Expression[] postfix = new Expression[1];
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        // Evaluates the same postfix expression again (once) while its stack is in use
+        functions.register("nest", new UnaryDoubleFunction() {
+            private boolean nested;
+
+            @Override
+            public double eval(double x) {
+                if (nested) {
+                    return x;
+                }
+                nested = true;
+                double value = a.getValue();
+                a.setValue(1);
+                try {
+                    return postfix[0].evaluate();
+                } finally {
+                    a.setValue(value);
+                    nested = false;
+                }
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return 1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return eval(args.get(0).evaluate());
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return false;
+            }
+        });
+        postfix[0] = PostfixExpression.compile(Parser.parse("a + nest(0)", scope, functions));
+        assertEquals(11d, postfix[0].evaluate(), BinaryOperation.EPSILON);
+        assertEquals(11d, postfix[0].evaluate(scope.createFrame()), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void largeSlots() throws ParseException {
+        Scope scope = Scope.create();
+        for (int i = 0; i < 40000; i++) {
+            scope.getVariable("v" + i);
+        }
+        Variable x = scope.getVariable("x").withValue(5);
+        assertTrue(x.getSlot() > Short.MAX_VALUE);
+        Expression expr = Parser.parseStatements("t := x * 2; t + 1", scope);
+        Expression compiled = ExpressionCompiler.compile(expr);
+        double[] frame = scope.createFrame();
+        x.setValue(frame, 100);
+        assertEquals(201d, expr.evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(201d, compiled.evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(11d, compiled.evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void nanHandling() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a").withValue(Double.NaN);
+        assertTrue(Double.isNaN(ExpressionCompiler.compile(Parser.parse("round(a)", scope)).evaluate()));
+        assertTrue(Double.isNaN(ExpressionCompiler.compile(Parser.parse("if(a, 1, 2)", scope)).evaluate()));
+        a.setValue(1);
+        assertEquals(1d,
+                     ExpressionCompiler.compile(Parser.parse("if(a, 1, 2)", scope)).evaluate(),
+                     BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void userFunctions() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        FunctionCall call = new FunctionCall();
+        call.setFunction(new Function() {
+            @Override
+            public int getNumberOfArguments() {
+                return 1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return args.get(0).evaluate() * 3;
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        call.addParameter(new VariableReference(a));
+        Expression compiled = ExpressionCompiler.compile(new BinaryOperation(BinaryOperation.Op.ADD,
+                                                                             new Constant(1),
+                                                                             call));
+        a.setValue(2);
+        assertEquals(7d, compiled.evaluate(), BinaryOperation.EPSILON);
+        a.setValue(3);
+        assertEquals(10d, compiled.evaluate(), BinaryOperation.EPSILON);
+    }
+}
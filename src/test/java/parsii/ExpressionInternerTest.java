@@ -0,0 +1,81 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ExpressionInterner} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class ExpressionInternerTest {
+
+    @Test
+    public void sharedSubtrees() throws ParseException {
+        Scope scope = Scope.create();
+        FunctionRegistry functions = FunctionRegistry.getDefault();
+        ExpressionInterner interner = new ExpressionInterner();
+        BinaryOperation gross =
+                (BinaryOperation) Parser.parse("sqrt(price * (1 + tax)) + 2", scope, functions, interner);
+        BinaryOperation net =
+                (BinaryOperation) Parser.parse("sqrt(price * (1 + tax)) / 3", scope, functions, interner);
+        assertSame(gross.getRight(), net.getLeft());
+        assertSame(gross, Parser.parse("sqrt(price * (1 + tax)) + 2", scope, functions, interner));
+        assertNotSame(gross, Parser.parse("sqrt(price * (1 + tax)) + 2", scope, functions));
+        assertTrue(interner.getHits() > 0);
+
+        Parser parser = Parser.create(scope);
+        parser.setInterner(interner);
+        assertSame(net, parser.parseExpression("sqrt(price*(1+tax)) / 3"));
+
+        scope.getVariable("price").setValue(16);
+        scope.getVariable("tax").setValue(3);
+        assertEquals(10d, gross.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(8d / 3, net.evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void resultsAreUnchanged() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(3);
+        scope.getVariable("b").setValue(-2);
+        ExpressionInterner interner = new ExpressionInterner();
+        String[] formulas = {"a + b - 4 + a * b * 2",
+                             "(a + b) * (a + b) - (b + a)",
+                             "if(a > b, min(a, b), 3 ^ a)",
+                             "a < b || a = 3 && b <= 0",
+                             "-a + |b|"};
+        for (String formula : formulas) {
+            Expression expected = Parser.parse(formula, scope);
+            Expression interned = Parser.parse(formula, scope, FunctionRegistry.getDefault(), interner);
+            assertEquals(formula, expected.evaluate(), interned.evaluate(), BinaryOperation.EPSILON);
+            assertSame(interned, interner.intern(interned));
+        }
+    }
+
+    @Test
+    public void longChains() throws ParseException {
+        Scope scope = Scope.create();
+        StringBuilder formula = new StringBuilder("x0 != 0");
+        for (int i = 1; i < 2000; i++) {
+            formula.append(" || x").append(i).append(" != 0");
+        }
+        ExpressionInterner interner = new ExpressionInterner();
+        Expression expr = Parser.parse(formula.toString(), scope, FunctionRegistry.getDefault(), interner);
+        assertEquals(0d, expr.evaluate(), 0d);
+        scope.getVariable("x1999").setValue(1);
+        assertEquals(1d, expr.evaluate(), 0d);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link FormulaGraph} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class FormulaGraphTest {
+
+    @Test
+    public void dependentFormulas() throws ParseException {
+        Scope scope = Scope.create();
+        FormulaGraph graph = new FormulaGraph(scope);
+        // Formulas can be defined before the formulas they depend on
+        Variable margin = graph.define("margin", "revenue - cost");
+        graph.define("revenue", "price * qty");
+        graph.define("cost", "qty * unitCost + fixCost");
+        scope.getVariable("price").setValue(10);
+        scope.getVariable("qty").setValue(5);
+        scope.getVariable("unitCost").setValue(4);
+        scope.getVariable("fixCost").setValue(20);
+        graph.recompute();
+        assertEquals(10d, margin.getValue(), BinaryOperation.EPSILON);
+        assertEquals(Arrays.asList("margin", "revenue", "cost"), graph.getNames());
+
+        // Only revenue and margin are affected by a changed price
+        scope.getVariable("price").setValue(12);
+        assertEquals(Collections.singleton("revenue"), graph.getDirtyNames());
+        assertEquals(2, graph.recompute());
+        assertEquals(20d, margin.getValue(), BinaryOperation.EPSILON);
+        assertEquals(0, graph.recompute());
+
+        // Unchanged results aren't propagated
+        scope.getVariable("fixCost").setValue(20);
+        scope.getVariable("unitCost").setValue(4);
+        assertEquals(0, graph.recompute());
+        graph.define("cost", "qty * unitCost + 20");
+        assertEquals(1, graph.recompute());
+
+        graph.define("revenue", "price * qty * 2");
+        graph.recompute();
+        assertEquals(80d, margin.getValue(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void cycles() throws ParseException {
+        Scope scope = Scope.create();
+        FormulaGraph graph = new FormulaGraph(scope);
+        graph.define("a", "b + 1");
+        graph.define("b", "c * 2");
+        try {
+            graph.define("c", "a - 1");
+            fail("cycle not detected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("The formula for 'c' depends on itself", e.getMessage());
+        }
+        try {
+            graph.define("d", "d + 1");
+            fail("cycle not detected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("The formula for 'd' depends on itself", e.getMessage());
+        }
+        // The graph remains usable
+        scope.getVariable("c").setValue(3);
+        graph.recompute();
+        assertEquals(7d, scope.getVariable("a").getValue(), BinaryOperation.EPSILON);
+        assertNull(graph.getExpression("c"));
+    }
+
+    @Test
+    public void parallelLevels() throws ParseException {
+        Scope scope = Scope.create();
+        FormulaGraph graph = new FormulaGraph(scope);
+        int n = FormulaGraph.MIN_FORMULAS_PER_TASK * 8;
+        StringBuilder total = new StringBuilder("0");
+        for (int i = 0; i < n; i++) {
+            graph.define("y" + i, "x * " + i + " + sqrt(x + " + i + ")");
+            total.append(" + y").append(i);
+        }
+        Variable sum = graph.define("total", total.toString());
+        Variable x = scope.getVariable("x");
+        for (int value = 0; value < 3; value++) {
+            x.setValue(value);
+            graph.recompute();
+            double expected = 0;
+            for (int i = 0; i < n; i++) {
+                expected += value * i + Math.sqrt(value + i);
+            }
+            assertEquals(expected, sum.getValue(), 1e-6);
+        }
+        assertEquals((n + 1) * 3, graph.getEvaluations());
+    }
+
+    @Test
+    public void longChainDefinedOutOfOrder() throws ParseException {
+        Scope scope = Scope.create();
+        FormulaGraph graph = new FormulaGraph(scope);
+        int n = 20000;
+        for (int i = n; i > 0; i--) {
+            graph.define("f" + i, "f" + (i - 1) + " + 1");
+        }
+        // Defining the start of the chain moves all other formulas up by one level
+        graph.define("f0", "x");
+        scope.getVariable("x").setValue(1);
+        assertEquals(n + 1, graph.recompute());
+        assertEquals(n + 1d, scope.getVariable("f" + n).getValue(), BinaryOperation.EPSILON);
+
+        scope.getVariable("x").setValue(5);
+        assertEquals(n + 1, graph.recompute());
+        assertEquals(n + 5d, scope.getVariable("f" + n).getValue(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void longFormulas() throws ParseException {
+        Scope scope = Scope.create();
+        FormulaGraph graph = new FormulaGraph(scope);
+        StringBuilder formula = new StringBuilder("x0 = 0");
+        for (int i = 1; i < 20000; i++) {
+            formula.append(" || x").append(i).append(" = 0");
+        }
+        graph.define("any", formula.toString());
+        // All variables of the formula are known as dependencies
+        try {
+            graph.define("x19999", "any + 1");
+            fail("cycle not detected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("The formula for 'x19999' depends on itself", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.compile.ExpressionCompiler;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the evaluation of expressions using frames as provided by {@link Expression#evaluate(double[])}.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class FrameTest {
+
+    private static final String[] FORMULAS = {"3*a + 4 * b - pi",
+                                              "a / b * 10 % 3 + a ^ 2",
+                                              "a <= b && b >= a || a != b",
+                                              "sin(a) + sqrt(abs(b)) + min(a, b) * max(a, b) + round(a / 3)",
+                                              "if(a > b, a * 2, if(a = b, 0, b / 2))",
+                                              "sqrt(a - 100)"};
+
+    @Test
+    public void slots() {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Scope child = Scope.createWithParent(scope);
+        Variable b = child.getVariable("b");
+        assertEquals(0, a.getSlot());
+        assertEquals(1, b.getSlot());
+        assertEquals(-1, scope.getVariable("pi").getSlot());
+        assertEquals(2, scope.getNumberOfSlots());
+        assertEquals(2, child.getNumberOfSlots());
+        assertEquals(0, Scope.create().getNumberOfSlots());
+
+        a.setValue(3);
+        double[] frame = child.createFrame();
+        assertEquals(3d, a.getValue(frame), 0d);
+        b.setValue(frame, 4);
+        assertEquals(4d, b.getValue(frame), 0d);
+        assertEquals(0d, b.getValue(), 0d);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void constantsCannotBeWritten() {
+        Scope scope = Scope.create();
+        scope.getVariable("pi").setValue(scope.createFrame(), 3);
+    }
+
+    @Test
+    public void frameMatchesVariables() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        for (String formula : FORMULAS) {
+            Expression expr = Parser.parse(formula, scope);
+            Expression postfix = PostfixExpression.compile(expr);
+            Expression compiled = ExpressionCompiler.compile(expr);
+            for (double[] values : new double[][]{{1, 2}, {2, 2}, {7.5, 3}, {-2, 0.25}, {Double.NaN, 1}}) {
+                a.setValue(values[0]);
+                b.setValue(values[1]);
+                double expected = expr.evaluate();
+                double[] frame = scope.createFrame();
+                a.setValue(0);
+                b.setValue(0);
+                assertEquals(formula, expected, expr.evaluate(frame), BinaryOperation.EPSILON);
+                assertEquals(formula, expected, postfix.evaluate(frame), BinaryOperation.EPSILON);
+                assertEquals(formula, expected, compiled.evaluate(frame), BinaryOperation.EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void userFunctions() {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        FunctionCall call = new FunctionCall();
+        call.setFunction(new Function() {
+            @Override
+            public int getNumberOfArguments() {
+                return 1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return args.get(0).evaluate() * 3;
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        call.addParameter(new VariableReference(a));
+        Expression expr = new BinaryOperation(BinaryOperation.Op.ADD, new Constant(1), call);
+        double[] frame = scope.createFrame();
+        a.setValue(frame, 2);
+        assertEquals(7d, expr.evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(7d, PostfixExpression.compile(expr).evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(7d, ExpressionCompiler.compile(expr).evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(1d, expr.evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void specializedFunctions() throws ParseException {
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        functions.register("hyp", new BinaryDoubleFunction() {
+            @Override
+            public double eval(double a, double b) {
+                return Math.sqrt(a * a + b * b);
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return 2;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return eval(args.get(0).evaluate(), args.get(1).evaluate());
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        functions.register("total", new NaryDoubleFunction() {
+            @Override
+            public double eval(double[] args, int n) {
+                double result = 0;
+                for (int i = 0; i < n; i++) {
+                    result += args[i];
+                }
+                return result;
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return -1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                double result = 0;
+                for (Expression arg : args) {
+                    result += arg.evaluate();
+                }
+                return result;
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        functions.register("fail", new UnaryDoubleFunction() {
+            @Override
+            public double eval(double a) {
+                throw new IllegalStateException("fail must not be evaluated");
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return 1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return eval(args.get(0).evaluate());
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return false;
+            }
+        });
+        // Returns the first argument which isn't zero, without evaluating the remaining ones
+        functions.register("first", new LazyFunction() {
+            @Override
+            public double eval(Arguments args) {
+                for (int i = 0; i < args.size(); i++) {
+                    double value = args.evaluate(i);
+                    if (value != 0d) {
+                        return value;
+                    }
+                }
+                return 0d;
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return -1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                for (Expression arg : args) {
+                    double value = arg.evaluate();
+                    if (value != 0d) {
+                        return value;
+                    }
+                }
+                return 0d;
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return false;
+            }
+        });
+
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        Expression expr = Parser.parse("hyp(a, b) + total(a, b, 1) + first(0, a, fail(b)) + total()", scope, functions);
+        a.setValue(3);
+        b.setValue(4);
+        assertEquals(16d, expr.evaluate(), BinaryOperation.EPSILON);
+        double[] frame = scope.createFrame();
+        a.setValue(frame, 6);
+        b.setValue(frame, 8);
+        assertEquals(31d, expr.evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(31d, PostfixExpression.compile(expr).evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(31d, ExpressionCompiler.compile(expr).evaluate(frame), BinaryOperation.EPSILON);
+
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, new double[]{3, 6});
+        columns.put(b, new double[]{4, 8});
+        double[] out = new double[2];
+        expr.evaluate(columns, out, 0, 2);
+        assertEquals(16d, out[0], BinaryOperation.EPSILON);
+        assertEquals(31d, out[1], BinaryOperation.EPSILON);
+
+        // NaN is passed through without invoking the function
+        a.setValue(Double.NaN);
+        assertTrue(Double.isNaN(Parser.parse("hyp(a, b) + total(1, a)", scope, functions).evaluate()));
+    }
+
+    @Test
+    public void parametersCanBeChanged() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(2);
+        FunctionCall call = (FunctionCall) Parser.parse("max(a, 1)", scope);
+        List<Expression> parameters = call.getParameters();
+        int hash = call.hashCode();
+        parameters.set(1, new Constant(5));
+        assertEquals(5d, call.evaluate(), BinaryOperation.EPSILON);
+        assertNotEquals(hash, call.hashCode());
+        parameters.remove(1);
+        call.addParameter(new Constant(-1));
+        assertEquals(2, call.getParameters().size());
+        assertEquals(2d, call.evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void overriddenListEvaluation() throws ParseException {
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        functions.register("twice", new UnaryFunction() {
+            @Override
+            protected double eval(double a) {
+                return 2 * a;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                double value = args.get(0).evaluate();
+                return Double.isNaN(value) ? -1 : eval(value);
+            }
+        });
+        functions.register("diff", new BinaryFunction() {
+            @Override
+            protected double eval(double a, double b) {
+                return a - b;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return Math.abs(args.get(0).evaluate() - args.get(1).evaluate());
+            }
+        });
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Expression expr = Parser.parse("twice(sqrt(a)) + diff(1, 4)", scope, functions);
+        Expression postfix = PostfixExpression.compile(expr);
+        a.setValue(-1);
+        assertEquals(2d, expr.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(2d, postfix.evaluate(), BinaryOperation.EPSILON);
+        a.setValue(4);
+        assertEquals(7d, expr.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(7d, postfix.evaluate(), BinaryOperation.EPSILON);
+
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, new double[]{-1, 4});
+        double[] result = new double[2];
+        expr.evaluate(columns, result, 0, 2);
+        assertEquals(2d, result[0], BinaryOperation.EPSILON);
+        assertEquals(7d, result[1], BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void concurrentEvaluation() throws Exception {
+        final Scope scope = Scope.create();
+        final Variable a = scope.getVariable("a");
+        final Variable b = scope.getVariable("b");
+        final List<Expression> expressions = new ArrayList<Expression>();
+        Expression expr = Parser.parse("if(a > b, a * 2, a - b) + sqrt(b)", scope);
+        expressions.add(expr);
+        expressions.add(PostfixExpression.compile(expr));
+        expressions.add(ExpressionCompiler.compile(expr));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        double[] frame = scope.createFrame();
+                        for (int i = 0; i < 10000; i++) {
+                            double valueA = thread * 10000 + i;
+                            double valueB = i % 10;
+                            a.setValue(frame, valueA);
+                            b.setValue(frame, valueB);
+                            double expected = (valueA > valueB ? valueA * 2 : valueA - valueB) + Math.sqrt(valueB);
+                            for (Expression expression : expressions) {
+                                if (Math.abs(expected - expression.evaluate(frame)) > BinaryOperation.EPSILON) {
+                                    return false;
+                                }
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link IncrementalExpression} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class IncrementalExpressionTest {
+
+    private static final String[] FORMULAS = {"3*a + 4 * b - c",
+                                              "a / b * 10 % 3 + a ^ 2",
+                                              "a < b || a = b && b >= c",
+                                              "sin(a) + sqrt(abs(b)) + min(a, b) * max(a, c) + round(a / 3)",
+                                              "if(a > b, a * 2, if(a = b, 0, c / 2))",
+                                              "a * b + sqrt(a * b) - (a * b) ^ 2"};
+
+    @Test
+    public void resultsMatchExpression() throws ParseException {
+        Scope scope = Scope.create();
+        Variable[] variables = {scope.getVariable("a"), scope.getVariable("b"), scope.getVariable("c")};
+        Random random = new Random(42);
+        for (String formula : FORMULAS) {
+            Expression expr = Parser.parse(formula, scope);
+            List<Expression> expressions = new ArrayList<Expression>();
+            expressions.add(IncrementalExpression.create(expr));
+            expressions.add(IncrementalExpression.create(SubexpressionEliminator.eliminate(expr, scope)));
+            expressions.add(IncrementalExpression.create(LogicalChain.adaptive(expr, 5)));
+            for (int i = 0; i < 200; i++) {
+                // Change one variable at a time, sometimes to the value it already has
+                variables[random.nextInt(variables.length)].setValue(random.nextInt(5) - 1);
+                double expected = expr.evaluate();
+                for (Expression incremental : expressions) {
+                    assertEquals(formula, expected, incremental.evaluate(), BinaryOperation.EPSILON);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onlyDirtyNodesAreRecomputed() throws ParseException {
+        Scope scope = Scope.create();
+        StringBuilder formula = new StringBuilder("0");
+        for (int i = 0; i < 100; i++) {
+            formula.append(" + sqrt(abs(x").append(i).append(" * 2))");
+        }
+        IncrementalExpression expr = IncrementalExpression.create(Parser.parse(formula.toString(), scope));
+        for (int i = 0; i < 100; i++) {
+            scope.getVariable("x" + i).setValue(i);
+        }
+        double total = expr.evaluate();
+        long recomputations = expr.getRecomputations();
+
+        // Unchanged variables don't cause any computation
+        assertEquals(total, expr.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(recomputations, expr.getRecomputations());
+
+        // A changed variable only recomputes its path: The variable, three nodes and the sum
+        scope.getVariable("x42").setValue(50);
+        assertEquals(total - Math.sqrt(84) + Math.sqrt(100), expr.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(recomputations + 5, expr.getRecomputations());
+        scope.getVariable("x42").setValue(50);
+        assertEquals(recomputations + 5, expr.getRecomputations());
+    }
+
+    @Test
+    public void lazyBranches() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a").withValue(1);
+        Variable b = scope.getVariable("b").withValue(2);
+        Variable c = scope.getVariable("c").withValue(3);
+        IncrementalExpression expr = IncrementalExpression.create(Parser.parse("if(a = 1, b * 2, c * 3)", scope));
+        assertEquals(4d, expr.evaluate(), BinaryOperation.EPSILON);
+        // c * 3 was never computed and therefore is still dirty when c changes again
+        c.setValue(4);
+        c.setValue(5);
+        a.setValue(0);
+        assertEquals(15d, expr.evaluate(), BinaryOperation.EPSILON);
+        b.setValue(3);
+        a.setValue(1);
+        assertEquals(6d, expr.evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void volatileFunctions() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(1000);
+        IncrementalExpression expr = IncrementalExpression.create(Parser.parse("rnd(a) + 1", scope));
+        double first = expr.evaluate();
+        boolean changed = false;
+        for (int i = 0; i < 10; i++) {
+            changed |= expr.evaluate() != first;
+        }
+        assertTrue(changed);
+    }
+
+    @Test
+    public void variableListeners() {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        final List<Variable> changes = new ArrayList<Variable>();
+        VariableListener listener = new VariableListener() {
+            @Override
+            public void valueChanged(Variable variable) {
+                changes.add(variable);
+            }
+        };
+        a.addListener(listener);
+        a.setValue(1);
+        a.setValue(1);
+        a.setValue(2);
+        assertEquals(2, changes.size());
+        assertSame(a, changes.get(0));
+        a.removeListener(listener);
+        a.setValue(3);
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void longChains() throws ParseException {
+        Scope scope = Scope.create();
+        StringBuilder formula = new StringBuilder("x0 = 0");
+        for (int i = 1; i < 20000; i++) {
+            formula.append(" && x").append(i).append(" = 0");
+        }
+        IncrementalExpression expr = IncrementalExpression.create(Parser.parse(formula.toString(), scope));
+        assertEquals(1d, expr.evaluate(), 0d);
+        scope.getVariable("x0").setValue(1);
+        assertEquals(0d, expr.evaluate(), 0d);
+        scope.getVariable("x0").setValue(0);
+        scope.getVariable("x19999").setValue(1);
+        assertEquals(0d, expr.evaluate(), 0d);
+        scope.getVariable("x19999").setValue(0);
+        assertEquals(1d, expr.evaluate(), 0d);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.compile.ExpressionCompiler;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the lazy evaluation of logical operations as well as the {@link LogicalChain} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class LogicalChainTest {
+
+    /*
+     * Creates a registry containing "check", which counts its invocations and returns 1 for positive arguments, and
+     * "fail", which must never be invoked
+     */
+    private FunctionRegistry createFunctions(final AtomicInteger checks) {
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        functions.register("check", new UnaryFunction() {
+            @Override
+            protected double eval(double a) {
+                checks.incrementAndGet();
+                return a > 0 ? 1 : 0;
+            }
+        });
+        functions.register("fail", new UnaryFunction() {
+            @Override
+            protected double eval(double a) {
+                throw new IllegalStateException("fail must not be evaluated");
+            }
+        });
+        return functions;
+    }
+
+    @Test
+    public void shortCircuit() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a");
+        FunctionRegistry functions = createFunctions(new AtomicInteger());
+        String[] formulas = {"a && fail(a)", "a = 0 || fail(a)", "(a > 1 && fail(a)) || a < 1 || fail(a + 1)"};
+        double[] frame = scope.createFrame();
+        for (String formula : formulas) {
+            Expression expr = Parser.parse(formula, scope, functions);
+            List<Expression> expressions = new ArrayList<Expression>();
+            expressions.add(expr);
+            expressions.add(PostfixExpression.compile(expr));
+            expressions.add(ExpressionCompiler.compile(expr));
+            expressions.add(LogicalChain.adaptive(expr));
+            double expected = formula.startsWith("a &&") ? 0 : 1;
+            for (Expression e : expressions) {
+                assertEquals(formula, expected, e.evaluate(), 0d);
+                assertEquals(formula, expected, e.evaluate(frame), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void results() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        String[] formulas = {"a > 1 && b < 3 || a = b", "a || b", "a && (b || a = 2) && b != 3", "a = 1 && b"};
+        double[] values = {0, 1, 2, 3, Double.NaN};
+        for (String formula : formulas) {
+            Expression expr = Parser.parse(formula, scope);
+            Expression compiled = ExpressionCompiler.compile(expr);
+            Expression postfix = PostfixExpression.compile(expr);
+            Expression adaptive = LogicalChain.adaptive(expr, 3);
+            for (double valueOfA : values) {
+                for (double valueOfB : values) {
+                    a.setValue(valueOfA);
+                    b.setValue(valueOfB);
+                    double expected = expr.evaluate();
+                    assertTrue(expected == 0 || expected == 1);
+                    assertEquals(formula, expected, compiled.evaluate(), 0d);
+                    assertEquals(formula, expected, postfix.evaluate(), 0d);
+                    assertEquals(formula, expected, adaptive.evaluate(), 0d);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void adaptiveReordering() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        AtomicInteger checks = new AtomicInteger();
+        Expression expr = LogicalChain.adaptive(Parser.parse("check(a) && b > 5", scope, createFunctions(checks)), 100);
+        assertTrue(expr instanceof LogicalChain);
+        assertTrue(((LogicalChain) expr).getOperands().get(0) instanceof FunctionCall);
+
+        // check(a) is true for all rows, whereas b > 5 is only true for every tenth row
+        double[] frame = scope.createFrame();
+        a.setValue(frame, 1);
+        for (int i = 0; i < 200; i++) {
+            b.setValue(frame, i % 10 == 0 ? 10 : 0);
+            assertEquals(i % 10 == 0 ? 1d : 0d, expr.evaluate(frame), 0d);
+        }
+        assertTrue(((LogicalChain) expr).getOperands().get(0) instanceof BinaryOperation);
+
+        // From now on, check(a) is only invoked if b > 5 is true
+        checks.set(0);
+        for (int i = 0; i < 1000; i++) {
+            b.setValue(frame, i % 10 == 0 ? 10 : 0);
+            assertEquals(i % 10 == 0 ? 1d : 0d, expr.evaluate(frame), 0d);
+        }
+        assertEquals(100, checks.get());
+    }
+
+    @Test
+    public void impureOperandsStayInPlace() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a").withValue(1);
+        Variable b = scope.getVariable("b").withValue(0);
+        LogicalChain chain = (LogicalChain) LogicalChain.adaptive(Parser.parse("a > 0 && rnd(1) < 2 && b > 5", scope),
+                                                                  10);
+        List<Expression> operands = chain.getOperands();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0d, chain.evaluate(), 0d);
+        }
+        assertEquals(operands, chain.getOperands());
+        assertEquals(BinaryOperation.Op.AND, chain.getOp());
+        assertEquals(3, operands.size());
+        a.setValue(0);
+        assertEquals(0d, chain.evaluate(), 0d);
+    }
+
+    @Test
+    public void longChains() throws ParseException {
+        Scope scope = Scope.create();
+        StringBuilder formula = new StringBuilder("x0 = 0");
+        for (int i = 1; i < 20000; i++) {
+            formula.append(" || x").append(i).append(" = 0");
+            scope.getVariable("x" + i).setValue(1);
+        }
+        scope.getVariable("x0").setValue(1);
+        LogicalChain chain = (LogicalChain) LogicalChain.adaptive(Parser.parse(formula.toString(), scope));
+        assertEquals(20000, chain.getOperands().size());
+        assertEquals(0d, chain.evaluate(), 0d);
+        scope.getVariable("x19999").setValue(0);
+        assertEquals(1d, chain.evaluate(), 0d);
+    }
+}
@@ -13,6 +13,7 @@ import org.junit.Test;
 import parsii.eval.*;
 import parsii.tokenizer.ParseException;
 
+import java.io.StringReader;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -197,5 +198,200 @@ public class ParserTest {
         assertEquals(5, s.getVariables().size());
     }
 
+    @Test
+    public void associativity() throws ParseException {
+        assertEquals(2d, Parser.parse("1 - 2 + 3").evaluate(), BinaryOperation.EPSILON);
+        assertEquals(1d, Parser.parse("8 / 4 / 2").evaluate(), BinaryOperation.EPSILON);
+        assertEquals(0d, Parser.parse("8 / 4 % 2 * 3").evaluate(), BinaryOperation.EPSILON);
+        assertEquals(64d, Parser.parse("2 ^ 3 ^ 2").evaluate(), BinaryOperation.EPSILON);
+        assertEquals(1d, Parser.parse("1 < 2 = 1").evaluate(), BinaryOperation.EPSILON);
+        assertEquals(0d, Parser.parse("1 && 0 || 0").evaluate(), BinaryOperation.EPSILON);
+        assertEquals(4d, Parser.parse("5 -1").evaluate(), BinaryOperation.EPSILON);
+        Scope scope = Scope.create();
+        assertEquals("(a SUBTRACT b ADD c)", Parser.parse("a - b + c", scope).toString());
+        assertEquals("(a SUBTRACT (b ADD c))", Parser.parse("a - (b + c)", scope).toString());
+        assertEquals("(a MULTIPLY b)", Parser.parse("a * b", scope).toString());
+    }
+
+    @Test
+    public void longFormulas() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(2);
+        StringBuilder sb = new StringBuilder("a");
+        for (int i = 1; i < 2000; i++) {
+            sb.append(i % 2 == 0 ? " + a" : " - 1");
+        }
+        assertEquals(1000d, Parser.parse(sb.toString(), scope).evaluate(), BinaryOperation.EPSILON);
+
+        // Parsing and evaluating a sum of 100k terms must neither take quadratic time nor overflow the stack
+        sb = new StringBuilder("a");
+        for (int i = 1; i < 100000; i++) {
+            sb.append(" + a * ").append(i % 10);
+        }
+        Expression expr = Parser.parse(sb.toString(), scope);
+        assertTrue(expr instanceof Sum);
+        assertEquals(2d + 2d * 45d * 10000d, expr.evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void sumsAndProducts() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a").withValue(3);
+        scope.getVariable("b").setValue(5);
+        Expression expr = Parser.parse("1 + a - b + 2 - a + 4", scope);
+        assertTrue(expr instanceof Sum);
+        assertEquals(7d, ((Sum) expr).getConstant(), 0d);
+        assertEquals(3, ((Sum) expr).getTerms().size());
+        assertEquals("(7.0 ADD a SUBTRACT b SUBTRACT a)", expr.toString());
+        assertEquals(2d, expr.evaluate(), BinaryOperation.EPSILON);
+
+        expr = Parser.parse("2 * a * b * 3", scope);
+        assertTrue(expr instanceof Product);
+        assertEquals(6d, ((Product) expr).getConstant(), 0d);
+        assertEquals(90d, expr.evaluate(), BinaryOperation.EPSILON);
+        a.setValue(-1);
+        assertEquals(-30d, expr.evaluate(), BinaryOperation.EPSILON);
+
+        // Chains which collapse to a single term remain a binary operation
+        assertEquals("(3.0 ADD a)", Parser.parse("1 + a + 2", scope).toString());
+        assertEquals("(6.0 MULTIPLY a)", Parser.parse("2 * a * 3", scope).toString());
+    }
+
+    /*
+     * Uses the deprecated hook to replace ^ by a multiplication
+     */
+    private static class CustomParser extends Parser {
+        private int calls;
 
+        CustomParser(String input, Scope scope) {
+            super(new StringReader(input), scope);
+        }
+
+        @Override
+        protected Expression reOrder(Expression left, Expression right, BinaryOperation.Op op) {
+            calls++;
+            return super.reOrder(left, right, op == BinaryOperation.Op.POWER ? BinaryOperation.Op.MULTIPLY : op);
+        }
+
+        Expression parseInput() throws ParseException {
+            return parse();
+        }
+
+        Expression combine(Expression left, Expression right, BinaryOperation.Op op) {
+            return reOrder(left, right, op);
+        }
+    }
+
+    @Test
+    public void reOrderHook() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(3);
+        CustomParser parser = new CustomParser("1 + a ^ 2 - 4 = 3 && a * 2 % 4 = 2", scope);
+        assertEquals(1d, parser.parseInput().evaluate(), BinaryOperation.EPSILON);
+        assertEquals(8, parser.calls);
+
+        // An unsealed operation on the same level is still rewritten to be left handed
+        Expression right = new BinaryOperation(BinaryOperation.Op.SUBTRACT, new Constant(4), new Constant(3));
+        Expression expr = parser.combine(new Constant(10), right, BinaryOperation.Op.SUBTRACT);
+        assertEquals("((10.0 SUBTRACT 4.0) SUBTRACT 3.0)", expr.toString());
+        assertEquals(3d, expr.evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void reuse() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(2);
+        Parser parser = Parser.create(scope);
+        assertEquals(5d, parser.parseExpression("a + 3").evaluate(), BinaryOperation.EPSILON);
+        try {
+            parser.parseExpression("a + ");
+            fail("ParseException expected");
+        } catch (ParseException e) {
+            assertFalse(e.getErrors().isEmpty());
+        }
+        char[] input = "xx a * a * 4 xx".toCharArray();
+        assertEquals(16d, parser.parseExpression(input, 3, 9).evaluate(), BinaryOperation.EPSILON);
+        assertEquals(-1d, parser.parseExpression(new StringReader("1 - a")).evaluate(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void functionRegistries() throws ParseException {
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        functions.register("twice", new UnaryFunction() {
+            @Override
+            protected double eval(double a) {
+                return 2 * a;
+            }
+        });
+        functions.unregister("rnd");
+        Scope scope = Scope.create();
+        assertEquals(8d, Parser.parse("twice(sqrt(16))", scope, functions).evaluate(), BinaryOperation.EPSILON);
+        assertEquals(2d, Parser.create(scope, functions).parseExpression("twice(1)").evaluate(), 0d);
+        assertNull(FunctionRegistry.getDefault().getFunction("twice"));
+        assertNotNull(FunctionRegistry.getDefault().getFunction("rnd"));
+        try {
+            Parser.parse("rnd(1)", scope, functions);
+            fail("ParseException expected");
+        } catch (ParseException e) {
+            assertFalse(e.getErrors().isEmpty());
+        }
+    }
+
+    @Test
+    public void statements() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("x").setValue(3);
+        scope.getVariable("y").setValue(4);
+        Variable phi = scope.getVariable("phi").withValue(0);
+        Expression expr = Parser.parseStatements("t := x*x + y*y; r := sqrt(t); r * cos(phi)", scope);
+        assertTrue(expr instanceof LetExpression);
+        assertEquals(5d, expr.evaluate(), BinaryOperation.EPSILON);
+        phi.setValue(Math.PI);
+        assertEquals(-5d, expr.evaluate(scope.createFrame()), BinaryOperation.EPSILON);
+        // Locals are neither visible in the scope nor before their assignment
+        assertNull(scope.find("t"));
+        assertEquals(4d, Parser.parseStatements("x := x + 1; x", scope).evaluate(), BinaryOperation.EPSILON);
+        assertEquals(3d, scope.getVariable("x").getValue(), 0d);
+        // Without assignments, this is a plain expression
+        assertFalse(Parser.parseStatements("x * 2", scope) instanceof LetExpression);
+
+        Program program = Parser.parseProgram("r := sqrt(x*x + y*y); r * cos(phi), r * sin(phi), r", scope);
+        double[] results = new double[program.size()];
+        program.evaluate(results);
+        assertArrayEquals(new double[]{-5, 5 * Math.sin(Math.PI), 5}, results, BinaryOperation.EPSILON);
+
+        try {
+            Parser.parseStatements("t := x * y r * 2", scope);
+            fail("ParseException expected");
+        } catch (ParseException e) {
+            assertTrue(e.getErrors().get(0).getMessage().endsWith("Unexpected token 'r'. Expected: ';'"));
+        }
+        try {
+            Parser.parseStatements("a * 2, 3", scope);
+            fail("ParseException expected");
+        } catch (ParseException e) {
+            assertFalse(e.getErrors().isEmpty());
+        }
+    }
+
+    @Test
+    public void statementsReuseTemporaries() throws ParseException {
+        Scope scope = Scope.create();
+        Variable x = scope.getVariable("x").withValue(3);
+        Expression first = Parser.parseStatements("t := x * 2; u := t + 1; t * u", scope);
+        int slots = scope.getNumberOfSlots();
+        for (int i = 0; i < 1000; i++) {
+            Parser.parseStatements("t := x * " + i + "; u := t + 1; t * u", scope);
+        }
+        assertEquals(slots, scope.getNumberOfSlots());
+
+        // Expressions sharing the temporary of a local don't interfere, as each assigns it before reading it
+        Expression second = Parser.parseStatements("t := x - 1; t := t * t; t", scope);
+        assertEquals(42d, first.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(4d, second.evaluate(), BinaryOperation.EPSILON);
+        double[] frame = scope.createFrame();
+        x.setValue(frame, 5);
+        assertEquals(16d, second.evaluate(frame), BinaryOperation.EPSILON);
+        assertEquals(110d, first.evaluate(frame), BinaryOperation.EPSILON);
+    }
 }
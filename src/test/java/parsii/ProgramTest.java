@@ -0,0 +1,107 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.compile.ExpressionCompiler;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link Program} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class ProgramTest {
+
+    private static final String[] FORMULAS = {"sqrt(a*a + b*b)",
+                                              "a / sqrt(a*a + b*b)",
+                                              "b / sqrt(a*a + b*b)",
+                                              "a*a + b*b + c",
+                                              "if(c > 0, a * c, b * c)",
+                                              "a",
+                                              "42"};
+
+    @Test
+    public void sharedSubexpressions() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        Variable c = scope.getVariable("c");
+        List<Expression> expressions = new ArrayList<Expression>();
+        for (String formula : FORMULAS) {
+            expressions.add(Parser.parse(formula, scope));
+        }
+        Program program = Program.create(expressions, scope);
+        assertEquals(FORMULAS.length, program.size());
+        // Next to the results, only a*a, b*b and sqrt(a*a + b*b) are assigned, as they are shared
+        assertEquals(FORMULAS.length + 3, ((LetExpression) program.getBody()).getVariables().size());
+
+        List<Program> programs = new ArrayList<Program>();
+        programs.add(program);
+        programs.add(PostfixExpression.compile(program));
+        programs.add(ExpressionCompiler.compile(program));
+        double[] results = new double[program.size()];
+        for (int i = -2; i < 3; i++) {
+            a.setValue(i);
+            b.setValue(i * 2 + 1);
+            c.setValue(i - 1);
+            double[] frame = scope.createFrame();
+            for (Program p : programs) {
+                p.evaluate(results);
+                assertExpectedResults(expressions, results);
+                p.evaluate(frame, results);
+                assertExpectedResults(expressions, results);
+            }
+        }
+    }
+
+    private void assertExpectedResults(List<Expression> expressions, double[] results) {
+        for (int i = 0; i < expressions.size(); i++) {
+            assertEquals(FORMULAS[i], expressions.get(i).evaluate(), results[i], BinaryOperation.EPSILON);
+        }
+    }
+
+    @Test
+    public void slotsAreReused() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("x").setValue(3);
+        String program = "r := sqrt(x * x + 1); r * 2, r + 1, sqrt(x * x + 1) * x";
+        Parser.parseProgram(program, scope);
+        int slots = scope.getNumberOfSlots();
+        Program second = Parser.parseProgram(program, scope);
+        assertEquals(slots, scope.getNumberOfSlots());
+        double[] results = new double[second.size()];
+        second.evaluate(scope.createFrame(), results);
+        assertArrayEquals(new double[]{2 * Math.sqrt(10), Math.sqrt(10) + 1, 3 * Math.sqrt(10)},
+                          results,
+                          BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void emptyProgram() {
+        Program program = Program.create(Collections.<Expression>emptyList(), Scope.create());
+        assertEquals(0, program.size());
+        program.evaluate(new double[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resultsTooSmall() throws ParseException {
+        Scope scope = Scope.create();
+        Program program = Program.create(Collections.singletonList(Parser.parse("a + 1", scope)), scope);
+        program.evaluate(new double[0]);
+    }
+}
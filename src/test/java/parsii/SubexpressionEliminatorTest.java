@@ -0,0 +1,187 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.compile.ExpressionCompiler;
+import parsii.eval.*;
+import parsii.tokenizer.ParseException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link SubexpressionEliminator} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class SubexpressionEliminatorTest {
+
+    private static final String[] FORMULAS = {"a / sqrt(a*a + b*b) + b / sqrt(a*a + b*b) + sqrt(a*a + b*b)",
+                                              "(a + 1) * (a + 1) - a * a",
+                                              "sin(a) * sin(a) + if(a > b, sin(a), a * a)",
+                                              "max(a, b) / min(a, b) + max(a, b) * (a > b)"};
+
+    @Test
+    public void sharesRepeatedSubexpressions() throws ParseException {
+        Scope scope = Scope.create();
+        Expression expr = SubexpressionEliminator.eliminate(Parser.parse(FORMULAS[0], scope), scope);
+        assertTrue(expr instanceof LetExpression);
+        // a*a, b*b and the sum of both are only used within the sqrt, therefore only the sqrt is shared
+        assertEquals(1, ((LetExpression) expr).getVariables().size());
+        // Temporaries are not visible by name
+        assertEquals(4, scope.getVariables().size());
+
+        Expression unchanged = Parser.parse("a + b * c", scope);
+        assertSame(unchanged, SubexpressionEliminator.eliminate(unchanged, scope));
+    }
+
+    @Test
+    public void conditionalSubexpressions() throws ParseException {
+        final AtomicInteger calls = new AtomicInteger();
+        FunctionRegistry functions = new FunctionRegistry(FunctionRegistry.getDefault());
+        functions.register("heavy", new UnaryDoubleFunction() {
+            @Override
+            public double eval(double a) {
+                calls.incrementAndGet();
+                return a * 2;
+            }
+
+            @Override
+            public int getNumberOfArguments() {
+                return 1;
+            }
+
+            @Override
+            public double eval(List<Expression> args) {
+                return eval(args.get(0).evaluate());
+            }
+
+            @Override
+            public boolean isNaturalFunction() {
+                return true;
+            }
+        });
+        Scope scope = Scope.create();
+        scope.getVariable("x").setValue(-1);
+        for (String formula : new String[]{"if(x > 0, heavy(x) + heavy(x), 0)", "x > 0 && heavy(x) + heavy(x) > 1"}) {
+            Expression expr = SubexpressionEliminator.eliminate(Parser.parse(formula, scope, functions), scope);
+            calls.set(0);
+            assertEquals(formula, 0d, expr.evaluate(), 0d);
+            assertEquals(formula, 0, calls.get());
+        }
+
+        // Values which are computed anyway are also used within conditional parts
+        Expression expr = SubexpressionEliminator.eliminate(Parser.parse("heavy(x) * heavy(x) + if(x > 0, heavy(x), 1)",
+                                                                         scope,
+                                                                         functions), scope);
+        calls.set(0);
+        assertEquals(5d, expr.evaluate(), BinaryOperation.EPSILON);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void temporariesAreReused() throws ParseException {
+        Scope scope = Scope.create();
+        SubexpressionEliminator.eliminate(Parser.parse(FORMULAS[0], scope), scope);
+        int slots = scope.getNumberOfSlots();
+        for (int i = 0; i < 1000; i++) {
+            SubexpressionEliminator.eliminate(Parser.parse(FORMULAS[0], scope), scope);
+            // Distinct formulas don't consume additional slots either
+            SubexpressionEliminator.eliminate(Parser.parse("sqrt(a * " + i + ") + sqrt(a * " + i + ")", scope), scope);
+        }
+        assertEquals(slots, scope.getNumberOfSlots());
+    }
+
+    @Test
+    public void optimizedExpressionsKeepTheirTemporaries() throws ParseException {
+        Scope scope = Scope.create();
+        scope.getVariable("a").setValue(0.5);
+        // The inner expression uses the first temporary, which must not be overwritten by the outer one
+        Expression inner = SubexpressionEliminator.eliminate(Parser.parse("sin(a) * sin(a)", scope), scope);
+        List<Expression> expressions = Arrays.asList(Parser.parse("cos(a) + cos(a)", scope),
+                                                     inner,
+                                                     Parser.parse("cos(a) * 2", scope),
+                                                     Parser.parse("cos(a) + cos(a)", scope));
+        List<Variable> outputs = Arrays.asList(scope.createTemporary(),
+                                               scope.createTemporary(),
+                                               scope.createTemporary(),
+                                               scope.createTemporary());
+        SubexpressionEliminator.eliminate(expressions, outputs, scope).evaluate();
+        assertEquals(2 * Math.cos(0.5), outputs.get(0).getValue(), BinaryOperation.EPSILON);
+        assertEquals(Math.sin(0.5) * Math.sin(0.5), outputs.get(1).getValue(), BinaryOperation.EPSILON);
+        assertEquals(2 * Math.cos(0.5), outputs.get(2).getValue(), BinaryOperation.EPSILON);
+        assertEquals(2 * Math.cos(0.5), outputs.get(3).getValue(), BinaryOperation.EPSILON);
+    }
+
+    @Test
+    public void rndIsNotShared() throws ParseException {
+        Scope scope = Scope.create();
+        Expression expr = SubexpressionEliminator.eliminate(Parser.parse("rnd(10) - rnd(10)", scope), scope);
+        assertFalse(expr instanceof LetExpression);
+        assertFalse(Parser.parse("rnd(10)", scope).isConstant());
+    }
+
+    @Test
+    public void eliminatedMatchesOriginal() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        for (String formula : FORMULAS) {
+            Expression expr = Parser.parse(formula, scope);
+            Expression optimized = SubexpressionEliminator.eliminate(expr, scope);
+            assertTrue(formula, optimized instanceof LetExpression);
+            Expression postfix = PostfixExpression.compile(optimized);
+            Expression compiled = ExpressionCompiler.compile(optimized);
+            for (double[] values : new double[][]{{1, 2}, {2, 2}, {7.5, 3}, {-2, 0.25}, {Double.NaN, 1}}) {
+                a.setValue(values[0]);
+                b.setValue(values[1]);
+                double expected = expr.evaluate();
+                assertEquals(formula, expected, optimized.evaluate(), BinaryOperation.EPSILON);
+                assertEquals(formula, expected, postfix.evaluate(), BinaryOperation.EPSILON);
+                assertEquals(formula, expected, compiled.evaluate(), BinaryOperation.EPSILON);
+                double[] frame = scope.createFrame();
+                assertEquals(formula, expected, optimized.evaluate(frame), BinaryOperation.EPSILON);
+                assertEquals(formula, expected, postfix.evaluate(frame), BinaryOperation.EPSILON);
+                assertEquals(formula, expected, compiled.evaluate(frame), BinaryOperation.EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void batch() throws ParseException {
+        Scope scope = Scope.create();
+        Variable a = scope.getVariable("a");
+        Variable b = scope.getVariable("b");
+        int rows = 1500;
+        double[] as = new double[rows];
+        double[] bs = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            as[i] = i * 0.5;
+            bs[i] = (i % 13) - 6;
+        }
+        Map<Variable, double[]> columns = new HashMap<Variable, double[]>();
+        columns.put(a, as);
+        columns.put(b, bs);
+        for (String formula : FORMULAS) {
+            Expression expr = Parser.parse(formula, scope);
+            double[] expected = new double[rows];
+            expr.evaluate(columns, expected, 0, rows);
+            double[] out = new double[rows];
+            SubexpressionEliminator.eliminate(expr, scope).evaluate(columns, out, 0, rows);
+            assertArrayEquals(formula, expected, out, BinaryOperation.EPSILON);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package parsii;
+
+import org.junit.Test;
+import parsii.tokenizer.Char;
+import parsii.tokenizer.LookaheadReader;
+import parsii.tokenizer.SymbolTable;
+import parsii.tokenizer.Token;
+import parsii.tokenizer.Tokenizer;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link Tokenizer} class.
+ *
+ * @author Andreas Haufler (aha@scireum.de)
+ * @since 2014/03
+ */
+public class TokenizerTest {
+
+    private static final String INPUT = "sin(x_1) + 1_000.25 ** \"a\\\"b\"\n  // comment\n $var -3 /* block */ |a|";
+
+    private void assertTokens(Tokenizer tokenizer) {
+        assertToken(tokenizer.consume(), Token.TokenType.ID, "sin", "sin", 1, 1);
+        assertToken(tokenizer.consume(), Token.TokenType.SYMBOL, "(", "(", 1, 4);
+        assertToken(tokenizer.consume(), Token.TokenType.ID, "x_1", "x_1", 1, 5);
+        assertToken(tokenizer.consume(), Token.TokenType.SYMBOL, "", ")", 1, 8);
+        assertToken(tokenizer.consume(), Token.TokenType.SYMBOL, "", "+", 1, 10);
+        assertToken(tokenizer.consume(), Token.TokenType.DECIMAL, "1000.25", "1_000.25", 1, 12);
+        Token symbol = tokenizer.consume();
+        assertToken(symbol, Token.TokenType.SYMBOL, "", "**", 1, 21);
+        assertTrue(symbol.isSymbol("**"));
+        Token string = tokenizer.consume();
+        assertToken(string, Token.TokenType.STRING, "a\"b", "\"a\\\"b\"", 1, 24);
+        assertEquals("\"", string.getTrigger());
+        Token specialId = tokenizer.consume();
+        assertToken(specialId, Token.TokenType.SPECIAL_ID, "var", "$var", 3, 3);
+        assertEquals("$", specialId.getTrigger());
+        assertToken(tokenizer.consume(), Token.TokenType.INTEGER, "-3", "-3", 3, 8);
+        assertToken(tokenizer.consume(), Token.TokenType.SYMBOL, "|", "|", 3, 23);
+        assertToken(tokenizer.consume(), Token.TokenType.ID, "a", "a", 3, 24);
+        assertToken(tokenizer.consume(), Token.TokenType.SYMBOL, "|", "|", 3, 25);
+        assertTrue(tokenizer.atEnd());
+        assertTrue(tokenizer.getProblemCollector().isEmpty());
+    }
+
+    private void assertToken(Token token, Token.TokenType type, String contents, String source, int line, int pos) {
+        assertEquals(source, type, token.getType());
+        if (type != Token.TokenType.SYMBOL) {
+            assertEquals(source, contents, token.getContents());
+        }
+        assertEquals(source, source, token.getSource());
+        assertEquals(source, line, token.getLine());
+        assertEquals(source, pos, token.getPos());
+    }
+
+    private Tokenizer configure(Tokenizer tokenizer) {
+        tokenizer.addSpecialIdStarter('$');
+        return tokenizer;
+    }
+
+    @Test
+    public void inputs() {
+        assertTokens(configure(new Tokenizer(INPUT)));
+        assertTokens(configure(new Tokenizer(new StringReader(INPUT))));
+        char[] data = ("**" + INPUT + "**").toCharArray();
+        assertTokens(configure(new Tokenizer(data, 2, INPUT.length())));
+    }
+
+    @Test
+    public void reset() {
+        Tokenizer tokenizer = configure(new Tokenizer("a b c"));
+        assertEquals("a", tokenizer.consume().getContents());
+        tokenizer.reset(INPUT);
+        assertTokens(tokenizer);
+        tokenizer.reset(new StringReader(INPUT));
+        assertTokens(tokenizer);
+        tokenizer.reset("x");
+        assertEquals("x", tokenizer.consume().getContents());
+        assertTrue(tokenizer.atEnd());
+    }
+
+    @Test
+    public void longTokens() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String id = sb.toString();
+        assertEquals(id, new Tokenizer(id + " + 1").consume().getContents());
+        assertEquals(id, new Tokenizer(new StringReader(id + " + 1")).consume().getContents());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void charBasedHooks() {
+        Tokenizer tokenizer = new Tokenizer("a.b #+ c") {
+            @Override
+            protected boolean isIdentifierChar(Char current) {
+                return current.is('.') || super.isIdentifierChar(current);
+            }
+
+            @Override
+            protected boolean isSymbolCharacter(Char ch) {
+                return !ch.is('#') && super.isSymbolCharacter(ch);
+            }
+        };
+        assertEquals("a.b", tokenizer.consume().getContents());
+        assertTrue(tokenizer.consume().isSymbol("+"));
+        assertEquals("c", tokenizer.consume().getContents());
+        assertTrue(tokenizer.atEnd());
+        assertEquals(1, tokenizer.getProblemCollector().size());
+    }
+
+    @Test
+    public void commentsAfterSymbols() {
+        Tokenizer tokenizer = new Tokenizer("a +/* comment */ b -// comment\n c");
+        assertEquals("a", tokenizer.consume().getContents());
+        assertTrue(tokenizer.consume().isSymbol("+"));
+        assertEquals("b", tokenizer.consume().getContents());
+        assertTrue(tokenizer.consume().isSymbol("-"));
+        assertEquals("c", tokenizer.consume().getContents());
+        assertTrue(tokenizer.atEnd());
+    }
+
+    @Test
+    public void lookahead() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("a").append(i).append(" ");
+        }
+        Tokenizer tokenizer = new Tokenizer(sb.toString());
+        for (int i = 0; i < 1000; i++) {
+            // Peek far ahead and then consume, so that the buffer wraps around several times
+            if (i % 100 == 0) {
+                assertEquals("a" + Math.min(i + 150, 999), tokenizer.next(Math.min(150, 999 - i)).getContents());
+            }
+            assertEquals("a" + i, tokenizer.consume().getContents());
+        }
+        assertTrue(tokenizer.atEnd());
+
+        tokenizer.reset("a b c");
+        tokenizer.setMaximumLookahead(2);
+        assertEquals("b", tokenizer.next().getContents());
+        try {
+            tokenizer.next(2);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void fetch() {
+        class FetchingReader extends LookaheadReader {
+            FetchingReader(Reader input) {
+                super(input);
+            }
+
+            Char read() {
+                return fetch();
+            }
+        }
+        FetchingReader reader = new FetchingReader(new StringReader("ab\nc"));
+        assertEquals('a', reader.currentChar());
+        Char ch = reader.read();
+        assertEquals('a', ch.getValue());
+        assertEquals(1, ch.getLine());
+        assertEquals(1, ch.getPos());
+        assertEquals('b', reader.current().getValue());
+        assertEquals('b', reader.read().getValue());
+        assertEquals('\n', reader.read().getValue());
+        // Characters are fetched with the same position as reported by current()
+        Char expected = reader.current();
+        ch = reader.read();
+        assertEquals('c', ch.getValue());
+        assertEquals(expected.getLine(), ch.getLine());
+        assertEquals(expected.getPos(), ch.getPos());
+        assertEquals(2, ch.getLine());
+        assertNull(reader.read());
+        assertTrue(reader.current().isEndOfInput());
+    }
+
+    @Test
+    public void streaming() {
+        final String formula = "a1 + 2.5 * (b_2 - 3) /* comment */\n";
+        final int repetitions = 100000;
+        // Generates the input on the fly, so that it is never completely in memory
+        Reader input = new Reader() {
+            private int index;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                if (index >= formula.length() * repetitions) {
+                    return -1;
+                }
+                int count = Math.min(length, formula.length() - index % formula.length());
+                formula.getChars(index % formula.length(), index % formula.length() + count, buffer, offset);
+                index += count;
+                return count;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        class StreamingTokenizer extends Tokenizer {
+            StreamingTokenizer(Reader input) {
+                super(input);
+            }
+
+            int getBufferSize() {
+                return input.getBufferSize();
+            }
+
+            int getNumberOfBufferedTokens() {
+                return itemBuffer.size();
+            }
+        }
+        StreamingTokenizer tokenizer = new StreamingTokenizer(input);
+        tokenizer.setMaximumLookahead(2);
+        int bufferSize = tokenizer.getBufferSize();
+        int tokens = 0;
+        Token last = null;
+        int bufferedTokens = 0;
+        while (tokenizer.more()) {
+            last = tokenizer.consume();
+            tokens++;
+            bufferedTokens = Math.max(bufferedTokens, tokenizer.getNumberOfBufferedTokens());
+        }
+        assertEquals(9 * repetitions, tokens);
+        assertTrue(bufferedTokens <= 2);
+        // Neither the window of characters nor the one of tokens has grown
+        assertEquals(bufferSize, tokenizer.getBufferSize());
+        assertTrue(bufferSize <= 1024);
+        assertEquals(repetitions, last.getLine());
+        assertEquals(")", last.getSource());
+        assertTrue(tokenizer.getProblemCollector().isEmpty());
+    }
+
+    @Test
+    public void numbers() {
+        String[] literals = {"0", "-0", "42", "-17", "0.1", "0.3", "3.14159", "1_000.25", "-2.5", "4.35",
+                             "9007199254740993", "123456789012345678901234567890", "0.0000000000000000000000123",
+                             "1.7976931348623157", "0.30000000000000004", "99999999999999999999.5"};
+        for (String literal : literals) {
+            Token token = new Tokenizer(literal).consume();
+            assertTrue(literal, token.isNumber());
+            assertEquals(literal, Double.parseDouble(literal.replace("_", "")), token.getNumericValue(), 0d);
+        }
+        double negativeZero = new Tokenizer("-0").consume().getNumericValue();
+        assertEquals(Double.doubleToLongBits(-0d), Double.doubleToLongBits(negativeZero));
+
+        // Computed values must be correctly rounded, just like the ones computed by parseDouble
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            String literal = Math.abs(random.nextLong() % 10000000000L) + "." + Math.abs(random.nextInt() % 100000);
+            assertEquals(literal, Double.parseDouble(literal), new Tokenizer(literal).consume().getNumericValue(), 0d);
+        }
+
+        Tokenizer tokenizer = new Tokenizer("1,5");
+        tokenizer.setDecimalSeparator(',');
+        tokenizer.setEffectiveDecimalSeparator('.');
+        assertEquals(1.5d, tokenizer.consume().getNumericValue(), 0d);
+    }
+
+    @Test
+    public void symbols() {
+        Tokenizer tokenizer = new Tokenizer("alpha + IF + beta * Alpha + alpha");
+        tokenizer.addKeyword("if");
+        Token alpha = tokenizer.consume();
+        tokenizer.consume();
+        assertTrue(tokenizer.current().isKeyword("if"));
+        assertEquals("IF", tokenizer.consume().getContents());
+        tokenizer.consume(3);
+        assertEquals("Alpha", tokenizer.consume().getContents());
+        tokenizer.consume();
+        // Identifiers with the same name share one string
+        assertSame(alpha.getContents(), tokenizer.consume().getContents());
+
+        SymbolTable<Integer> table = new SymbolTable<Integer>(true, 2);
+        for (int i = 0; i < 100; i++) {
+            table.put("name" + i, i);
+        }
+        char[] data = "xNAME42x".toCharArray();
+        assertEquals(Integer.valueOf(42), table.get(data, 1, 6));
+        assertEquals(Integer.valueOf(7), table.get("Name7"));
+        assertNull(table.get("name100"));
+        assertEquals("name42", table.getSymbol(data, 1, 6));
+        // The table is full, therefore new symbols are no longer added
+        assertEquals("other", table.getSymbol("other"));
+        assertEquals(100, table.size());
+    }
+
+    @Test
+    public void changedSettings() {
+        Tokenizer tokenizer = new Tokenizer("a #b\n+ `x y` c: ++");
+        assertEquals("a", tokenizer.next(0).getContents());
+        assertTrue(tokenizer.next(1).isSymbol("#"));
+
+        // Changing the settings after tokens were read must be respected for the remaining input
+        tokenizer.reset("a #b\n+ `x y` c: ++");
+        tokenizer.setLineComment("#");
+        tokenizer.addUnescapedStringDelimiter('`');
+        tokenizer.addSpecialIdTerminator(':');
+        assertEquals("a", tokenizer.consume().getContents());
+        assertTrue(tokenizer.consume().isSymbol("+"));
+        Token string = tokenizer.consume();
+        assertTrue(string.isString());
+        assertEquals("x y", string.getContents());
+        assertTrue(tokenizer.current().isSpecialIdentifierWithContent(":", "c"));
+        tokenizer.consume();
+        assertTrue(tokenizer.consume().isSymbol("++"));
+        assertTrue(tokenizer.atEnd());
+
+        // Other tokenizers still use the default settings
+        tokenizer = new Tokenizer("#`");
+        assertTrue(tokenizer.consume().isSymbol("#`"));
+    }
+}